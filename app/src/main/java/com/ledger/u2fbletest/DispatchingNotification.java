@@ -0,0 +1,114 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest;
+
+import com.ledger.u2fbletest.utils.EventDispatcher;
+
+/*
+ * Forwards device notifications through an EventDispatcher, so that slow consumers (certificate parsing,
+ * signature checks) do not hold the GATT callback thread. Events are ordered per device address, keepalives
+ * and raw characteristic data may be dropped when a consumer falls behind, the other events are never dropped.
+ * U2FBLEDevice wraps its own events with it, notifications passed to a device must not be wrapped again.
+ */
+public class DispatchingNotification implements U2FBLEDeviceNotification {
+
+	private static final String SCAN_KEY = "scan";
+
+	private U2FBLEDeviceNotification target;
+	private EventDispatcher dispatcher;
+
+	public DispatchingNotification(U2FBLEDeviceNotification target, EventDispatcher dispatcher) {
+		this.target = target;
+		this.dispatcher = dispatcher;
+	}
+
+	public U2FBLEDeviceNotification getTarget() {
+		return target;
+	}
+
+	private static Object getKey(U2FBLEDevice device) {
+		return (device != null ? device.getAddress() : SCAN_KEY);
+	}
+
+	@Override
+	public void onDeviceDetected(final U2FBLEDevice device) {
+		dispatcher.dispatchEssential(getKey(device), new Runnable() {
+			public void run() {
+				target.onDeviceDetected(device);
+			}
+		});
+	}
+
+	@Override
+	public void onInitialized(final U2FBLEDevice device) {
+		dispatcher.dispatchEssential(getKey(device), new Runnable() {
+			public void run() {
+				target.onInitialized(device);
+			}
+		});
+	}
+
+	@Override
+	public void onConnectionStateChanged(final U2FBLEDevice device, final int state) {
+		dispatcher.dispatchEssential(getKey(device), new Runnable() {
+			public void run() {
+				target.onConnectionStateChanged(device, state);
+			}
+		});
+	}
+
+	@Override
+	public void onResponseAvailable(final U2FBLEDevice device, final byte[] response) {
+		dispatcher.dispatchEssential(getKey(device), new Runnable() {
+			public void run() {
+				target.onResponseAvailable(device, response);
+			}
+		});
+	}
+
+	@Override
+	public void onKeepAlive(final U2FBLEDevice device, final int reason) {
+		dispatcher.dispatch(getKey(device), new Runnable() {
+			public void run() {
+				target.onKeepAlive(device, reason);
+			}
+		});
+	}
+
+	@Override
+	public void onCharacteristicDataAvailable(final U2FBLEDevice device, byte[] response) {
+		/* the characteristic value can be updated before the event runs */
+		final byte[] value = (response != null ? response.clone() : null);
+		dispatcher.dispatch(getKey(device), new Runnable() {
+			public void run() {
+				target.onCharacteristicDataAvailable(device, value);
+			}
+		});
+	}
+
+	@Override
+	public void onException(final U2FBLEDevice device, final String reason) {
+		dispatcher.dispatchEssential(getKey(device), new Runnable() {
+			public void run() {
+				target.onException(device, reason);
+			}
+		});
+	}
+
+}
@@ -0,0 +1,57 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest;
+
+import com.ledger.u2fbletest.transport.FrameTransport;
+import com.ledger.u2fbletest.transport.FrameTransportListener;
+
+/*
+ * FrameTransport over the link layer of a U2FBLEDevice : connection, discovery, MTU and control point length,
+ * deadlines, connection priority and write retries are those of the device, frames being written and
+ * notified as they are. Kept out of the transport package, which is also built by the plain JVM command
+ * line module.
+ */
+public class GattFrameTransport implements FrameTransport {
+
+	private U2FBLEDevice device;
+
+	public GattFrameTransport(U2FBLEDevice device) {
+		this.device = device;
+	}
+
+	public U2FBLEDevice getDevice() {
+		return device;
+	}
+
+	@Override
+	public void open(FrameTransportListener listener) {
+		device.openFrameLink(listener);
+	}
+
+	@Override
+	public boolean writeFrame(byte[] frame) {
+		return device.writeFrame(frame);
+	}
+
+	@Override
+	public void close() {
+		device.close();
+	}
+
+}
@@ -0,0 +1,184 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest;
+
+import java.util.Date;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.ledger.u2fbletest.utils.LogBuffer;
+
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/*
+ * List adapter showing the filtered content of a LogBuffer. Loggers only append to the buffer and request a
+ * refresh, the list is updated at most once per frame with everything logged since the previous one.
+ */
+public class LogAdapter extends BaseAdapter implements Choreographer.FrameCallback {
+
+	public static interface DevicesListener {
+		public void onDevicesChanged(Vector<String> devices);
+	}
+
+	private LogBuffer buffer;
+	private LayoutInflater inflater;
+	private Handler handler;
+	private AtomicBoolean refreshPending;
+	private Vector<LogBuffer.Entry> visible;
+	private Vector<LogBuffer.Entry> pending;
+	private long nextSequence;
+	private int minLevel;
+	private String device;
+	private int deviceCount;
+	private DevicesListener devicesListener;
+
+	private final Runnable postFrame = new Runnable() {
+		public void run() {
+			Choreographer.getInstance().postFrameCallback(LogAdapter.this);
+		}
+	};
+
+	public LogAdapter(LayoutInflater inflater, LogBuffer buffer) {
+		this.inflater = inflater;
+		this.buffer = buffer;
+		handler = new Handler(Looper.getMainLooper());
+		refreshPending = new AtomicBoolean();
+		visible = new Vector<LogBuffer.Entry>();
+		pending = new Vector<LogBuffer.Entry>();
+	}
+
+	public void setDevicesListener(DevicesListener devicesListener) {
+		this.devicesListener = devicesListener;
+	}
+
+	/* Can be called from any thread, only the first request of a frame posts anything */
+	public void requestRefresh() {
+		if (refreshPending.compareAndSet(false, true)) {
+			handler.post(postFrame);
+		}
+	}
+
+	@Override
+	public void doFrame(long frameTimeNanos) {
+		refreshPending.set(false);
+		refresh();
+	}
+
+	/* UI thread only */
+	public void refresh() {
+		pending.removeAllElements();
+		nextSequence = buffer.getSince(nextSequence, pending);
+		boolean changed = false;
+		for (LogBuffer.Entry entry : pending) {
+			if (entry.matches(minLevel, device)) {
+				visible.add(entry);
+				changed = true;
+			}
+		}
+		pending.removeAllElements();
+		int excess = visible.size() - buffer.getCapacity();
+		if (excess > 0) {
+			visible.subList(0, excess).clear();
+		}
+		if (changed) {
+			notifyDataSetChanged();
+		}
+		if ((devicesListener != null) && (buffer.getDeviceCount() != deviceCount)) {
+			Vector<String> devices = buffer.getDevices();
+			deviceCount = devices.size();
+			devicesListener.onDevicesChanged(devices);
+		}
+	}
+
+	/* Null device shows all devices, UI thread only */
+	public void setFilter(int minLevel, String device) {
+		this.minLevel = minLevel;
+		this.device = device;
+		visible.removeAllElements();
+		nextSequence = 0;
+		refresh();
+		notifyDataSetChanged();
+	}
+
+	public void clear() {
+		buffer.clear();
+		visible.removeAllElements();
+		deviceCount = -1;
+		refresh();
+		notifyDataSetChanged();
+	}
+
+	public String getVisibleText() {
+		StringBuffer result = new StringBuffer();
+		for (LogBuffer.Entry entry : visible) {
+			result.append(getText(entry)).append("\r\n");
+		}
+		return result.toString();
+	}
+
+	private static String getText(LogBuffer.Entry entry) {
+		String text = entry.getText();
+		if (text == null) {
+			text = MainActivity.dateFormat.format(new Date(entry.getTimestamp())) + " " + entry.getMessage();
+			entry.setText(text);
+		}
+		return text;
+	}
+
+	@Override
+	public int getCount() {
+		return visible.size();
+	}
+
+	@Override
+	public Object getItem(int position) {
+		return visible.get(position);
+	}
+
+	@Override
+	public long getItemId(int position) {
+		return visible.get(position).getSequence();
+	}
+
+	@Override
+	public boolean hasStableIds() {
+		return true;
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		TextView view = (TextView)convertView;
+		if (view == null) {
+			view = (TextView)inflater.inflate(R.layout.log_entry, parent, false);
+		}
+		LogBuffer.Entry entry = visible.get(position);
+		view.setText(getText(entry));
+		view.setTextColor(entry.getLevel() == LogBuffer.LEVEL_ERROR ? Color.RED : Color.BLACK);
+		return view;
+	}
+
+}
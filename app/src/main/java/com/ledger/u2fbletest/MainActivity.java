@@ -18,21 +18,39 @@
 
 package com.ledger.u2fbletest;
 
-import java.io.ByteArrayInputStream;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
+import java.io.File;
+import java.io.FileWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Vector;
 import com.ledger.u2fbletest.apdus.Authenticate;
 import com.ledger.u2fbletest.apdus.AuthenticateResponse;
+import com.ledger.u2fbletest.apdus.AuthenticateTemplate;
 import com.ledger.u2fbletest.apdus.Register;
 import com.ledger.u2fbletest.apdus.RegisterResponse;
-import com.ledger.u2fbletest.crypto.U2FCrypto;
+import com.ledger.u2fbletest.apdus.RegisterTemplate;
+import com.ledger.u2fbletest.crypto.VerificationPipeline;
+import com.ledger.u2fbletest.registry.Credential;
+import com.ledger.u2fbletest.registry.CredentialRegistry;
+import com.ledger.u2fbletest.runner.ApduChannel;
+import com.ledger.u2fbletest.runner.Campaign;
+import com.ledger.u2fbletest.runner.CampaignEngine;
+import com.ledger.u2fbletest.runner.ChannelFactory;
+import com.ledger.u2fbletest.runner.ConformanceRunner;
+import com.ledger.u2fbletest.runner.PingProbe;
+import com.ledger.u2fbletest.runner.SoakRunner;
+import com.ledger.u2fbletest.runner.ThroughputBenchmark;
+import com.ledger.u2fbletest.simulator.SimulatorChannel;
+import com.ledger.u2fbletest.simulator.U2FSimulator;
+import com.ledger.u2fbletest.transport.FrameClient;
+import com.ledger.u2fbletest.utils.ChallengePool;
 import com.ledger.u2fbletest.utils.Dump;
+import com.ledger.u2fbletest.utils.EventDispatcher;
+import com.ledger.u2fbletest.utils.FileLogger;
+import com.ledger.u2fbletest.utils.LogBuffer;
+import com.ledger.u2fbletest.utils.Promise;
 
 import android.Manifest;
 import android.app.Activity;
@@ -40,11 +58,7 @@ import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
-import android.bluetooth.le.ScanSettings;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
@@ -57,7 +71,6 @@ import android.os.Bundle;
 import android.provider.Settings;
 import android.provider.Settings.SettingNotFoundException;
 import android.text.TextUtils;
-import android.text.method.ScrollingMovementMethod;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.LayoutInflater;
@@ -66,8 +79,12 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -75,12 +92,33 @@ public class MainActivity extends Activity implements Logger {
 	
 	private static final int REQUEST_ENABLE_BT = 0;
 	private static final int PERMISSION_REQUEST_COARSE_LOCATION = 1;
-	private static final byte P256_SUBJECT_PUBLIC_KEY_MARKER[] = { (byte)0x30, (byte)0x59, (byte)0x30, (byte)0x13, (byte)0x06, (byte)0x07, (byte)0x2A, (byte)0x86, (byte)0x48, (byte)0xCE, (byte)0x3D, (byte)0x02, (byte)0x01, (byte)0x06, (byte)0x08, (byte)0x2A, (byte)0x86, (byte)0x48, (byte)0xCE, (byte)0x3D, (byte)0x03, (byte)0x01, (byte)0x07, (byte)0x03, (byte)0x42, (byte)0x00 };
+	private static final int MATRIX_REPETITIONS = 10;
+	private static final int REQUEST_TIMEOUT = 60000;
+	private static final int BENCHMARK_MAX_PAYLOAD = 4096;
+	private static final int BENCHMARK_REPETITIONS = 3;
+	private static final int[] BENCHMARK_FRAGMENT_SIZES = { 20, 64, 128, 244, 512 };
+	private static final long SOAK_SAMPLE_INTERVAL = 60000;
+	private static final long NEGATIVE_PROBE_TTL = NegativeProbeCache.DEFAULT_TTL;
+	private static final long SOAK_EXCHANGE_TIMEOUT = 30000;
+	private static final String CAMPAIGN_FILE = "campaign.txt";
+	private static final String LOG_FILE_PREFIX = "u2fbletest";
+	/* fixed request parameters, built once and never modified */
+	private static final byte[] APPLICATION_PARAMETER = getSequence(0x80, 0x80);
+	private static final byte[] INVALID_APPLICATION_PARAMETER = getSequence(0x80, 0xff);
+	private static final String CAMPAIGN_OUTPUT_FILE = "campaign-results.csv";
 	
 	public static final String TAG = "U2FBLETest";
 	public static DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
 				
-	private TextView logView;
+	private ListView logView;
+	private Spinner logLevelSpinner;
+	private Spinner logDeviceSpinner;
+	private final LogBuffer logBuffer = new LogBuffer();
+	private volatile LogAdapter logAdapter;
+	private volatile FileLogger fileLogger;
+	private final VerificationPipeline verificationPipeline = new VerificationPipeline();
+	private final Vector<String> logDevices = new Vector<String>();
+	private ArrayAdapter<String> logDeviceAdapter;
 	private Button scanButton;
 	private Button getByNameButton;
 	private Button getByAddressButton;
@@ -90,6 +128,17 @@ public class MainActivity extends Activity implements Logger {
 	private Button authenticateCheckButton;
 	private Button invalidApButton;
 	private Button invalidKeyHandleButton;
+	private Button matrixButton;
+	private Button matrixSimulatorButton;
+	private Button campaignButton;
+	private Button probeButton;
+	private volatile PingProbe pingProbe;
+	private Button benchmarkButton;
+	private volatile ThroughputBenchmark throughputBenchmark;
+	private Button soakButton;
+	private volatile SoakRunner soakRunner;
+	private boolean matrixRunning;
+	private volatile CampaignEngine campaignEngine;
 	private boolean scanning;
 	private boolean invalidAp;
 	private boolean invalidKeyHandle;
@@ -99,11 +148,21 @@ public class MainActivity extends Activity implements Logger {
 	private BluetoothManager bluetoothManager;
 	private BluetoothAdapter bluetoothAdapter;
 	
-	private HashMap<String, BluetoothDevice> devices;
+	private U2FBLEScanner scanner;
+	/* without the service filter, authenticators only advertising the service in their scan response are found,
+	 * along with every other advertiser, which the negative probe cache then keeps from being probed again */
+	private boolean scanAllDevices;
+	private final Vector<BluetoothDevice> scannedDevices = new Vector<BluetoothDevice>();
 	
 	private U2FBLEDevice targetDevice;
 	private RegisterResponse registerResponse;
 	private AuthenticateResponse authenticateResponse;
+	/* request templates, patched on the UI thread with a fresh challenge for each request */
+	private RegisterTemplate registerTemplate;
+	private AuthenticateTemplate authenticateTemplate;
+	private CredentialRegistry credentialRegistry;
+	private NegativeProbeCache negativeProbeCache;
+	private EventDispatcher eventDispatcher;
 	
 	public class AuthenticateNotification implements U2FBLEDeviceNotification {
 		
@@ -113,46 +172,64 @@ public class MainActivity extends Activity implements Logger {
 		public AuthenticateNotification(Logger logger, boolean checkOnly) {
 			this.logger = logger;
 			this.checkOnly = checkOnly;
-			targetDevice.updateNotification(this);			
+			targetDevice.updateNotification(this);
 		}
 		
+		/* The queued exchange is serialized when it is sent, so a snapshot of the template is queued rather
+		 * than the template itself */
 		private Authenticate getAuthenticate() {
-			byte challenge[] = new byte[32];
-			byte applicationParameters[] = new byte[32];
-			byte[] originalKeyHandle = registerResponse.getKeyHandle();
-			byte[] keyHandle;
-			for(byte i=0; i<32; i++) {
-				challenge[i] = (byte)(i | 0x10);
-				applicationParameters[i] = (byte)(i | 0x80);				
-			}
-			if (invalidAp) {
-				applicationParameters[0] = (byte)0xff;
-			}
+			byte[] keyHandle = registerResponse.getKeyHandle();
 			if (invalidKeyHandle) {
-				keyHandle = new byte[originalKeyHandle.length];
-				System.arraycopy(originalKeyHandle, 0, keyHandle, 0, keyHandle.length);
+				keyHandle = keyHandle.clone();
 				keyHandle[0] = (byte)0xff;
 				keyHandle[1] = (byte)0xff;
 				keyHandle[keyHandle.length - 1] = (byte)0xff;
 			}
+			byte[] applicationParameter = (invalidAp ? INVALID_APPLICATION_PARAMETER : APPLICATION_PARAMETER);
+			if (authenticateTemplate == null) {
+				authenticateTemplate = new AuthenticateTemplate(applicationParameter, keyHandle, checkOnly);
+			}
 			else {
-				keyHandle = originalKeyHandle;
+				authenticateTemplate.setApplicationParameter(applicationParameter).setKeyHandle(keyHandle).setCheckOnly(checkOnly);
 			}
-			return new Authenticate(challenge, applicationParameters, keyHandle, checkOnly);
+			return authenticateTemplate.nextChallenge(ChallengePool.getInstance()).toAuthenticate();
 		}
 		
-		private void sendAuthenticate() {
-			targetDevice.exchangeApdu(getAuthenticate().serialize());						
+		private void onAuthenticateResponse(U2FBLEDevice device, Authenticate authenticate, AuthenticateResponse response) {
+			authenticateResponse = response;
+			logger.debug(getDeviceCommonName(device) + " authenticate response " + authenticateResponse);
+			logger.debug(getDeviceCommonName(device) + " deadlines " + device.getDeadlineManager());
+			logger.debug(getDeviceCommonName(device) + " statistics " + device.getStatistics());
+			logger.debug("Event dispatcher " + eventDispatcher);
+			verificationPipeline.verifyAuthenticate(authenticate, authenticateResponse, registerResponse).addListener(new VerificationListener(device));
+			if (credentialRegistry != null) {
+				CredentialRegistry.CounterStatus counterStatus = credentialRegistry.checkCounter(authenticate.getKeyHandle(), authenticateResponse.getCounter());
+				if (counterStatus == CredentialRegistry.CounterStatus.REGRESSION) {
+					logger.error(getDeviceCommonName(device) + " counter regression " + authenticateResponse.getCounter());
+				}
+				else {
+					logger.debug("Counter check " + counterStatus);
+				}
+			}
 		}
 		
 		public void start() {
-			if (!targetDevice.isConnected()) {
+			final U2FBLEDevice device = targetDevice;
+			final Authenticate authenticate = getAuthenticate();
+			if (!device.isReady()) {
 				logger.debug("Connecting device");
-				targetDevice.connect();
-			}
-			else {
-				sendAuthenticate();
 			}
+			device.authenticateAsync(authenticate).setTimeout(REQUEST_TIMEOUT).addListener(new Promise.Listener<AuthenticateResponse>() {
+				@Override
+				public void onComplete(Promise<AuthenticateResponse> promise) {
+					if (promise.isSuccessful()) {
+						onAuthenticateResponse(device, authenticate, promise.getValue());
+					}
+					else {
+						logger.error(getDeviceCommonName(device) + " authenticate failed " + promise.getFailure().getMessage());
+					}
+				}
+			});
 		}
 
 		@Override
@@ -161,8 +238,7 @@ public class MainActivity extends Activity implements Logger {
 
 		@Override
 		public void onInitialized(U2FBLEDevice device) {
-			logger.debug("Device connected, click again to send");
-			//sendAuthenticate();
+			logger.debug("Device connected");
 		}
 
 		@Override
@@ -173,10 +249,6 @@ public class MainActivity extends Activity implements Logger {
 		@Override
 		public void onResponseAvailable(U2FBLEDevice device, byte[] response) {
 			logger.debug(getDeviceCommonName(device) + " response " + Dump.dump(response));
-			authenticateResponse = AuthenticateResponse.parse(response);
-			logger.debug(getDeviceCommonName(device) + " authenticate response " + authenticateResponse);
-			Authenticate authenticate = getAuthenticate();
-			logger.debug("Signature verified " + U2FCrypto.checkAuthenticateSignature(authenticate, authenticateResponse, registerResponse));
 		}
 
 		@Override
@@ -197,6 +269,32 @@ public class MainActivity extends Activity implements Logger {
 		}		
 	}
 		
+	/* Signatures are checked by the verification workers, the device lane only queues them */
+	private class VerificationListener implements Promise.Listener<VerificationPipeline.Result> {
+		
+		private U2FBLEDevice device;
+		
+		public VerificationListener(U2FBLEDevice device) {
+			this.device = device;
+		}
+		
+		@Override
+		public void onComplete(Promise<VerificationPipeline.Result> promise) {
+			if (!promise.isSuccessful()) {
+				error(getDeviceCommonName(device) + " verification failed " + promise.getFailure().getMessage());
+			}
+			else
+			if (promise.getValue().isChecked() && !promise.getValue().isVerified()) {
+				error(getDeviceCommonName(device) + " signature " + promise.getValue());
+			}
+			else {
+				debug(getDeviceCommonName(device) + " signature " + promise.getValue());
+			}
+			debug("Verification " + verificationPipeline);
+		}
+		
+	}
+	
 	public class RegisterNotification implements U2FBLEDeviceNotification {
 		
 		private Logger logger;
@@ -207,27 +305,48 @@ public class MainActivity extends Activity implements Logger {
 		}
 		
 		private Register getRegister() {
-			byte challenge[] = new byte[32];
-			byte applicationParameters[] = new byte[32];
-			for(byte i=0; i<32; i++) {
-				challenge[i] = i;
-				applicationParameters[i] = (byte)(i | 0x80);
+			if (registerTemplate == null) {
+				registerTemplate = new RegisterTemplate(APPLICATION_PARAMETER);
 			}
-			return new Register(challenge, applicationParameters);
+			return registerTemplate.nextChallenge(ChallengePool.getInstance()).toRegister();
 		}
 		
-		public void sendRegister() {
-			targetDevice.exchangeApdu(getRegister().serialize());						
+		private void onRegisterResponse(U2FBLEDevice device, Register register, RegisterResponse response) {
+			registerResponse = response;
+			logger.debug(getDeviceCommonName(device) + " register response " + registerResponse);
+			logger.debug(getDeviceCommonName(device) + " deadlines " + device.getDeadlineManager());
+			logger.debug(getDeviceCommonName(device) + " statistics " + device.getStatistics());
+			logger.debug("Event dispatcher " + eventDispatcher);
+			if (credentialRegistry != null) {
+				try {
+					credentialRegistry.add(registerResponse.getKeyHandle(), registerResponse.getPublicKey(), registerResponse.getCertificate());
+					logger.debug("Credential stored, " + credentialRegistry.size() + " known");
+				}
+				catch(Exception e) {
+					e.printStackTrace();
+					logger.debug("Error storing credential " + e.getMessage());
+				}
+			}
+			verificationPipeline.verifyRegister(register, registerResponse).addListener(new VerificationListener(device));
 		}
 		
 		public void start() {
-			if (!targetDevice.isConnected()) {
+			final U2FBLEDevice device = targetDevice;
+			final Register register = getRegister();
+			if (!device.isReady()) {
 				logger.debug("Connecting device");
-				targetDevice.connect();
 			}
-			else {
-				sendRegister();
-			}			
+			device.registerAsync(register).setTimeout(REQUEST_TIMEOUT).addListener(new Promise.Listener<RegisterResponse>() {
+				@Override
+				public void onComplete(Promise<RegisterResponse> promise) {
+					if (promise.isSuccessful()) {
+						onRegisterResponse(device, register, promise.getValue());
+					}
+					else {
+						logger.error(getDeviceCommonName(device) + " register failed " + promise.getFailure().getMessage());
+					}
+				}
+			});
 		}
 
 		@Override
@@ -236,8 +355,7 @@ public class MainActivity extends Activity implements Logger {
 
 		@Override
 		public void onInitialized(U2FBLEDevice device) {
-			logger.debug("Device connected, click again to send");
-			//sendRegister();
+			logger.debug("Device connected");
 		}
 
 		@Override
@@ -248,25 +366,6 @@ public class MainActivity extends Activity implements Logger {
 		@Override
 		public void onResponseAvailable(U2FBLEDevice device, byte[] response) {
 			logger.debug(getDeviceCommonName(device) + " response " + Dump.dump(response));
-			registerResponse = RegisterResponse.parse(response);
-			logger.debug(getDeviceCommonName(device) + " register response " + registerResponse);
-			try {
-				X509Certificate certificate = (X509Certificate)CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(registerResponse.getCertificate()));
-				byte[] encodedPublicKey = certificate.getPublicKey().getEncoded();
-				if (Arrays.equals(Arrays.copyOfRange(encodedPublicKey, 0, P256_SUBJECT_PUBLIC_KEY_MARKER.length), P256_SUBJECT_PUBLIC_KEY_MARKER)) {
-					byte[] publicKey = Arrays.copyOfRange(encodedPublicKey, P256_SUBJECT_PUBLIC_KEY_MARKER.length, P256_SUBJECT_PUBLIC_KEY_MARKER.length + 65);
-					Register register = getRegister();
-					logger.debug("Signature verified " + U2FCrypto.checkRegisterSignature(register, registerResponse, publicKey));
-				}
-				else {
-					logger.debug("Cannot verify signature - certificate not handled");
-				}
-			}
-			catch(Exception e) {
-				e.printStackTrace();
-				logger.debug("Error decoding certificate");
-			}
-			
 		}
 
 		@Override
@@ -292,6 +391,8 @@ public class MainActivity extends Activity implements Logger {
 		private Vector<BluetoothDevice> sourceDevices;
 		private Vector<U2FBLEDevice> targetDevices;
 		private U2FBLEDevice previousDevice;
+		private int previousFingerprint;
+		private int skipped;
 		private Logger logger;
 		
 		public ScanNotification(Vector<BluetoothDevice> devices, Logger logger) {
@@ -304,20 +405,29 @@ public class MainActivity extends Activity implements Logger {
 			moveNext();
 		}
 		
+		/* Devices known not to be authenticators are skipped unless their advertisement changed */
 		private void moveNext() {
 			if (previousDevice != null) {
-				previousDevice.disconnect();
+				/* releases the GATT client, probing many devices would otherwise exhaust them */
+				previousDevice.close();
+				previousDevice = null;
 			}
-			if (sourceDevices.size() != 0) {
+			while (sourceDevices.size() != 0) {
 				BluetoothDevice testDevice = sourceDevices.remove(0);
+				int fingerprint = ScanCache.getInstance().getFingerprint(testDevice.getAddress());
+				if (negativeProbeCache.contains(testDevice.getAddress(), fingerprint)) {
+					logger.debug("Skipping " + testDevice.getAddress() + ", not a U2F authenticator when last probed");
+					skipped++;
+					continue;
+				}
 				logger.debug("Test candidate " + testDevice.getAddress() + " " + (testDevice.getName() != null ? testDevice.getName() : ""));
 				U2FBLEDevice candidate = new U2FBLEDevice(testDevice, this, MainActivity.this, MainActivity.this);
 				previousDevice = candidate;
+				previousFingerprint = fingerprint;
 				candidate.connect();
+				return;
 			}
-			else {
-				logger.debug("Test finished - " + targetDevices.size() + " devices found");
-			}
+			logger.debug("Test finished - " + targetDevices.size() + " devices found, " + skipped + " skipped, negative probe cache " + negativeProbeCache);
 		}
 
 		@Override
@@ -327,6 +437,7 @@ public class MainActivity extends Activity implements Logger {
 		@Override
 		public void onInitialized(U2FBLEDevice device) {
 			logger.debug(getDeviceCommonName(device) + " is a U2F authenticator");
+			negativeProbeCache.remove(device.getAddress());
 			previousDevice = null;
 			targetDevices.add(device);
 			targetDevice = device;
@@ -354,6 +465,10 @@ public class MainActivity extends Activity implements Logger {
 		@Override
 		public void onException(U2FBLEDevice device, String reason) {
 			logger.debug(getDeviceCommonName(device) + " is not a U2F authenticator : " + reason);
+			/* connection failures say nothing about the device, only a missing service is remembered */
+			if (U2FBLEDevice.ERROR_NOT_U2F.equals(reason)) {
+				negativeProbeCache.add(device.getAddress(), previousFingerprint);
+			}
 			moveNext();
 		}
 		
@@ -402,59 +517,175 @@ public class MainActivity extends Activity implements Logger {
 		
 	}		
 	
-	private final ScanCallback leScanCallback = new ScanCallback() {
-		@Override
-		public void onScanFailed(int errorCode) {
-			super.onScanFailed(errorCode);
-		}
+	public class CampaignChannelFactory implements ChannelFactory {
 		
+		/* devices sharing a sim:<id> specification share the simulator, and so its credentials */
+		private HashMap<String, U2FSimulator> simulators = new HashMap<String, U2FSimulator>();
+		/* channels holding a GATT client created for the campaign */
+		private Vector<ApduChannel> owned = new Vector<ApduChannel>();
+
 		@Override
-		public void onScanResult(int callbackType, ScanResult result) {
-			super.onScanResult(callbackType, result);
-			if (devices != null) {
-				BluetoothDevice device = result.getDevice();				
-				/*
-				if ((device.getName() != null) && !devices.containsKey(device.getAddress())) {
-					debug("New device detected " + device.getAddress() + " " + device.getName());
-					if (device.getName().toUpperCase().contains("U2F")) {					
-						devices.put(device.getAddress(), device);
+		public ApduChannel open(String device) {
+			if (device.equals("selected")) {
+				if (targetDevice == null) {
+					throw new RuntimeException("No device selected");
+				}
+				return new U2FBLEDeviceChannel(targetDevice, MainActivity.this);
+			}
+			if (device.equals("sim")) {
+				return new SimulatorChannel(new U2FSimulator());
+			}
+			if (device.startsWith("sim:")) {
+				synchronized(simulators) {
+					U2FSimulator simulator = simulators.get(device);
+					if (simulator == null) {
+						simulator = new U2FSimulator();
+						simulators.put(device, simulator);
 					}
+					return new SimulatorChannel(simulator);
 				}
-				*/
-				if (!devices.containsKey(device.getAddress())) {
-					debug("New device detected " + device.getAddress() + "/" + (device.getName() != null ? device.getName() : ""));					
-					devices.put(device.getAddress(), device);
-				}				
 			}
+			if (bluetoothAdapter == null) {
+				throw new RuntimeException("Bluetooth not initialized");
+			}
+			if (device.startsWith("gatt:")) {
+				/* framing client on the transport SPI, as on the command line, over the U2FBLEDevice link layer */
+				U2FBLEDevice link = U2FBLEDevice.getByAddress(bluetoothAdapter, new GetSingleDeviceNotification(MainActivity.this), MainActivity.this, MainActivity.this, device.substring("gatt:".length()));
+				if (link == null) {
+					throw new RuntimeException("Invalid device " + device);
+				}
+				FrameClient client = new FrameClient(new GattFrameTransport(link), MainActivity.this);
+				owned.add(client);
+				return client;
+			}
+			U2FBLEDevice result = U2FBLEDevice.getByAddress(bluetoothAdapter, new GetSingleDeviceNotification(MainActivity.this), MainActivity.this, MainActivity.this, device);
+			if (result == null) {
+				throw new RuntimeException("Invalid device " + device);
+			}
+			U2FBLEDeviceChannel channel = new U2FBLEDeviceChannel(result, MainActivity.this);
+			owned.add(channel);
+			return channel;
+		}
+		
+		/* Releases the GATT clients opened for the campaign, the selected device stays connected */
+		@Override
+		public void release(ApduChannel channel) {
+			if (!owned.remove(channel)) {
+				return;
+			}
+			if (channel instanceof FrameClient) {
+				((FrameClient)channel).close();
+			}
+			else {
+				((U2FBLEDeviceChannel)channel).getDevice().close();
+			}
+		}
+		
+	}
+	
+	private final U2FBLEScanner.Listener scanListener = new U2FBLEScanner.Listener() {
+		@Override
+		public void onDeviceFound(BluetoothDevice device, ScanResult result) {
+			debug("New device detected " + device.getAddress() + "/" + (device.getName() != null ? device.getName() : "") + " rssi " + result.getRssi());
+			synchronized(scannedDevices) {
+				scannedDevices.add(device);
+			}
+		}
+		
+		@Override
+		public void onScanFailed(int errorCode) {
+			error("Scan failed " + errorCode);
 		}
 	};
 	
-	private void commonLog(final String logType, final String message) {	
+	/* The view is refreshed once per frame from the log buffer, whatever the number of messages */
+	private void commonLog(int level, String message) {	
 		Log.d(TAG, message);
-		runOnUiThread(new Runnable() {
-			public void run() {
-				Date currentDate = new Date();
-				logView.append(dateFormat.format(currentDate) + " " + message);
-				logView.append("\r\n");
+		logBuffer.add(level, message);
+		FileLogger currentFileLogger = fileLogger;
+		if (currentFileLogger != null) {
+			if (level == LogBuffer.LEVEL_ERROR) {
+				currentFileLogger.error(message);
 			}
-		});
+			else
+			if (level == LogBuffer.LEVEL_INFO) {
+				currentFileLogger.info(message);
+			}
+			else {
+				currentFileLogger.debug(message);
+			}
+		}
+		LogAdapter adapter = logAdapter;
+		if (adapter != null) {
+			adapter.requestRefresh();
+		}
 	}
 	
 	@Override
 	public void info(String message) {
-		commonLog("info", message);
+		commonLog(LogBuffer.LEVEL_INFO, message);
 		
 	}
 
 	@Override
 	public void error(String message) {
-		commonLog("error", message);		
+		commonLog(LogBuffer.LEVEL_ERROR, message);		
 	}
 
 	@Override
 	public void debug(String message) {
-		commonLog("debug", message);		
+		commonLog(LogBuffer.LEVEL_DEBUG, message);		
 	}	 
+	
+	private void updateLogFilter() {
+		int devicePosition = logDeviceSpinner.getSelectedItemPosition();
+		String device = null;
+		if ((devicePosition > 0) && (devicePosition < logDevices.size())) {
+			device = logDevices.get(devicePosition);
+		}
+		logAdapter.setFilter(logLevelSpinner.getSelectedItemPosition(), device);
+	}
+	
+	private void initializeLogView() {
+		logView = (ListView)findViewById(R.id.logView);
+		logLevelSpinner = (Spinner)findViewById(R.id.logLevelSpinner);
+		logDeviceSpinner = (Spinner)findViewById(R.id.logDeviceSpinner);
+		ArrayAdapter<String> levelAdapter = new ArrayAdapter<String>(this, android.R.layout.simple_spinner_item, LogBuffer.LEVEL_NAMES);
+		levelAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+		logLevelSpinner.setAdapter(levelAdapter);
+		logDevices.add("all devices");
+		logDeviceAdapter = new ArrayAdapter<String>(this, android.R.layout.simple_spinner_item, logDevices);
+		logDeviceAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+		logDeviceSpinner.setAdapter(logDeviceAdapter);
+		LogAdapter adapter = new LogAdapter(getLayoutInflater(), logBuffer);
+		adapter.setDevicesListener(new LogAdapter.DevicesListener() {
+			@Override
+			public void onDevicesChanged(Vector<String> devices) {
+				String selected = (String)logDeviceSpinner.getSelectedItem();
+				logDevices.setSize(1);
+				logDevices.addAll(devices);
+				logDeviceAdapter.notifyDataSetChanged();
+				int position = logDevices.indexOf(selected);
+				logDeviceSpinner.setSelection(position > 0 ? position : 0);
+			}
+		});
+		logView.setAdapter(adapter);
+		AdapterView.OnItemSelectedListener filterListener = new AdapterView.OnItemSelectedListener() {
+			@Override
+			public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+				updateLogFilter();
+			}
+
+			@Override
+			public void onNothingSelected(AdapterView<?> parent) {
+			}
+		};
+		logLevelSpinner.setOnItemSelectedListener(filterListener);
+		logDeviceSpinner.setOnItemSelectedListener(filterListener);
+		registerForContextMenu(logView);
+		logAdapter = adapter;
+		adapter.refresh();
+	}
 		
 	private boolean initializeBluetooth() {
 		if (bluetoothManager == null) {
@@ -482,15 +713,243 @@ public class MainActivity extends Activity implements Logger {
 		return true;		
 	}
 	
+	private void runMatrix(final ApduChannel channel, final String target) {
+		if (matrixRunning) {
+			debug("Matrix already running");
+			return;
+		}
+		matrixRunning = true;
+		debug("Running matrix against " + target + ", " + MATRIX_REPETITIONS + " repetitions");
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					ConformanceRunner runner = new ConformanceRunner(channel, MainActivity.this);
+					String table = ConformanceRunner.toCsv(runner.run(MATRIX_REPETITIONS));
+					debug("Matrix results\r\n" + table);
+				}
+				catch(Exception e) {
+					e.printStackTrace();
+					debug("Matrix failed " + e.getMessage());
+				}
+				finally {
+					matrixRunning = false;
+				}
+			}
+		}, "ConformanceRunner");
+		thread.start();
+	}
+	
+	private void runPingProbe() {
+		if (pingProbe != null) {
+			debug("Stopping ping probe");
+			pingProbe.stop();
+			return;
+		}
+		if (targetDevice == null) {
+			debug("No device selected");
+			return;
+		}
+		final U2FBLEDevice device = targetDevice;
+		final PingProbe probe = new PingProbe(new U2FBLEDeviceChannel(device, this), this);
+		pingProbe = probe;
+		debug("Ping probe against " + getDeviceCommonName(device) + ", " + PingProbe.DEFAULT_SIZE + " bytes every " + PingProbe.DEFAULT_INTERVAL + " ms, click again to stop");
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					probe.run(0);
+				}
+				catch(Exception e) {
+					e.printStackTrace();
+					debug("Ping probe failed " + e.getMessage());
+				}
+				finally {
+					debug(probe.getSummary());
+					debug(getDeviceCommonName(device) + " statistics " + device.getStatistics());
+					pingProbe = null;
+				}
+			}
+		}, "PingProbe");
+		thread.start();
+	}
+	
+	/* Short sweep, the full 65535 bytes range being left to the command line */
+	private void runBenchmark() {
+		if (throughputBenchmark != null) {
+			debug("Stopping benchmark");
+			throughputBenchmark.stop();
+			return;
+		}
+		if (targetDevice == null) {
+			debug("No device selected");
+			return;
+		}
+		final U2FBLEDevice device = targetDevice;
+		final ThroughputBenchmark benchmark = new ThroughputBenchmark(new U2FBLEDeviceChannel(device, this), this);
+		benchmark.setMaxPayload(BENCHMARK_MAX_PAYLOAD);
+		benchmark.setRepetitions(BENCHMARK_REPETITIONS);
+		throughputBenchmark = benchmark;
+		debug("Benchmark against " + getDeviceCommonName(device) + ", click again to stop");
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					debug(benchmark.toCsv(benchmark.run(BENCHMARK_FRAGMENT_SIZES)));
+				}
+				catch(Exception e) {
+					e.printStackTrace();
+					debug("Benchmark failed " + e.getMessage());
+				}
+				finally {
+					debug(getDeviceCommonName(device) + " statistics " + device.getStatistics());
+					throughputBenchmark = null;
+				}
+			}
+		}, "ThroughputBenchmark");
+		thread.start();
+	}
+	
+	/* Runs until clicked again, each cycle releases the GATT client so that leaked handles and timer tasks accumulate */
+	private void runSoak() {
+		if (soakRunner != null) {
+			debug("Stopping soak test");
+			soakRunner.stop();
+			return;
+		}
+		if (targetDevice == null) {
+			debug("No device selected");
+			return;
+		}
+		final U2FBLEDevice device = targetDevice;
+		final byte[] pingData = new byte[PingProbe.DEFAULT_SIZE];
+		final SoakRunner soak = new SoakRunner(new SoakRunner.Cycle() {
+			@Override
+			public void run(int index) throws Exception {
+				try {
+					device.connectAsync().join(SOAK_EXCHANGE_TIMEOUT);
+					pingData[0] = (byte)index;
+					if (!Arrays.equals(device.pingAsync(pingData).join(SOAK_EXCHANGE_TIMEOUT), pingData)) {
+						throw new RuntimeException("Invalid ping response");
+					}
+				}
+				finally {
+					device.close();
+				}
+			}
+		}, this);
+		soak.addCounter("gatt", new SoakRunner.Counter() {
+			@Override
+			public long sample() {
+				return U2FBLEDevice.getOpenConnectionCount();
+			}
+		}, 0.5);
+		soak.addCounter("timer tasks", new SoakRunner.Counter() {
+			@Override
+			public long sample() {
+				return U2FBLEDevice.getPendingTaskCount();
+			}
+		}, 1);
+		soak.setSampleInterval(SOAK_SAMPLE_INTERVAL);
+		soakRunner = soak;
+		debug("Soak test against " + getDeviceCommonName(device) + ", sampling every " + SOAK_SAMPLE_INTERVAL / 1000 + " s, click again to stop");
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					soak.run();
+					debug(soak.toCsv());
+					debug(soak.getSummary());
+				}
+				catch(Exception e) {
+					e.printStackTrace();
+					debug("Soak test failed " + e.getMessage());
+				}
+				finally {
+					debug(getDeviceCommonName(device) + " statistics " + device.getStatistics());
+					soakRunner = null;
+				}
+			}
+		}, "SoakRunner");
+		thread.start();
+	}
+	
+	/* Campaign boundaries, blocks until the log file is written */
+	private void flushFileLogger() {
+		FileLogger currentFileLogger = fileLogger;
+		if (currentFileLogger != null) {
+			currentFileLogger.flush();
+		}
+	}
+	
+	private void runCampaign() {
+		if (campaignEngine != null) {
+			debug("Stopping campaign");
+			campaignEngine.stop();
+			return;
+		}
+		File directory = getExternalFilesDir(null);
+		final File campaignFile = new File(directory, CAMPAIGN_FILE);
+		final Campaign campaign;
+		try {
+			campaign = Campaign.parse(campaignFile);
+		}
+		catch(Exception e) {
+			debug("Cannot load campaign " + campaignFile.getAbsolutePath() + " : " + e.getMessage());
+			return;
+		}
+		File outputFile = new File(directory, (campaign.getOutput() != null ? campaign.getOutput() : CAMPAIGN_OUTPUT_FILE));
+		final FileWriter output;
+		try {
+			output = new FileWriter(outputFile);
+		}
+		catch(Exception e) {
+			debug("Cannot create campaign output " + outputFile.getAbsolutePath() + " : " + e.getMessage());
+			return;
+		}
+		final CampaignEngine engine = new CampaignEngine(campaign, new CampaignChannelFactory(), output, this);
+		debug("Campaign results written to " + outputFile.getAbsolutePath());
+		campaignEngine = engine;
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				flushFileLogger();
+				try {
+					engine.run();
+					debug("Campaign summary\r\n" + engine.getSummary());
+				}
+				catch(Exception e) {
+					e.printStackTrace();
+					debug("Campaign failed " + e.getMessage());
+				}
+				finally {
+					flushFileLogger();
+					campaignEngine = null;
+					try {
+						output.close();
+					}
+					catch(Exception e) {
+					}
+				}
+			}
+		}, "CampaignEngine");
+		thread.start();
+	}
+	
 	private void startScan() {
-		BluetoothLeScanner bluetoothScanner = bluetoothAdapter.getBluetoothLeScanner();
-		ScanFilter.Builder builder = new ScanFilter.Builder();		
-		Vector<ScanFilter> filter = new Vector<ScanFilter>();
-		filter.add(builder.build());
-		ScanSettings.Builder builderScanSettings = new ScanSettings.Builder();		
-		builderScanSettings.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
-		builderScanSettings.setReportDelay(0);
-		bluetoothScanner.startScan(filter, builderScanSettings.build(), leScanCallback);
+		if (scanner == null) {
+			scanner = new U2FBLEScanner(bluetoothAdapter, this, scanListener);
+		}
+		scanner.setServiceFilter(!scanAllDevices);
+		synchronized(scannedDevices) {
+			scannedDevices.removeAllElements();
+		}
+		scanner.start();
+	}
+	
+	/* i | mask, the first byte being replaced by first */
+	private static byte[] getSequence(int mask, int first) {
+		byte[] result = new byte[32];
+		for (int i=0; i<32; i++) {
+			result[i] = (byte)(i | mask);
+		}
+		result[0] = (byte)first;
+		return result;
 	}
 	
 	private String getDeviceCommonName(U2FBLEDevice device) {
@@ -527,10 +986,12 @@ public class MainActivity extends Activity implements Logger {
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_main);
-		logView = (TextView)findViewById(R.id.logView);
-		logView.setMovementMethod(new ScrollingMovementMethod());
-		logView.setTextIsSelectable(true);
-		registerForContextMenu(logView);
+		initializeLogView();
+		File logDirectory = getExternalFilesDir(null);
+		if (logDirectory != null) {
+			fileLogger = new FileLogger(logDirectory, LOG_FILE_PREFIX);
+			debug("Logging to " + fileLogger.getFile().getAbsolutePath());
+		}
 		scanButton = (Button)findViewById(R.id.scanButton);
 		getByNameButton = (Button)findViewById(R.id.nameButton);
 		getByAddressButton = (Button)findViewById(R.id.addressButton);
@@ -540,6 +1001,29 @@ public class MainActivity extends Activity implements Logger {
 		authenticateCheckButton = (Button)findViewById(R.id.authenticateCheckButton);
 		invalidApButton = (Button)findViewById(R.id.invalidAp);
 		invalidKeyHandleButton = (Button)findViewById(R.id.invalidKeyhandle);
+		matrixButton = (Button)findViewById(R.id.matrixButton);
+		matrixSimulatorButton = (Button)findViewById(R.id.matrixSimulatorButton);
+		campaignButton = (Button)findViewById(R.id.campaignButton);
+		probeButton = (Button)findViewById(R.id.probeButton);
+		benchmarkButton = (Button)findViewById(R.id.benchmarkButton);
+		soakButton = (Button)findViewById(R.id.soakButton);
+		eventDispatcher = new EventDispatcher();
+		U2FBLEDevice.setEventDispatcher(eventDispatcher);
+		U2FBLEDevice.setDefaultPreferredPhy(U2FBLEDevice.PHY_MASK_LE_2M);
+		negativeProbeCache = NegativeProbeCache.open(getFilesDir());
+		negativeProbeCache.setTtl(NEGATIVE_PROBE_TTL);
+		try {
+			credentialRegistry = CredentialRegistry.open(getFilesDir());
+			Credential lastCredential = credentialRegistry.getLast();
+			if (lastCredential != null) {
+				registerResponse = lastCredential.toRegisterResponse();
+				debug("Restored last of " + credentialRegistry.size() + " registered credentials");
+			}
+		}
+		catch(Exception e) {
+			e.printStackTrace();
+			debug("Error opening credential registry " + e.getMessage());
+		}
 		scanButton.setOnClickListener(new OnClickListener() {
 			@Override
 			public void onClick(View view) {
@@ -550,19 +1034,32 @@ public class MainActivity extends Activity implements Logger {
 					 }
 				 }		
 				 if (!scanning) {
+					 Vector<ScanCache.Entry> cached = ScanCache.getInstance().getRanked();
+					 if (!cached.isEmpty()) {
+						 /* seen within the cache TTL, no need to scan again */
+						 debug("Using " + cached.size() + " cached devices, " + ScanCache.getInstance());
+						 Vector<BluetoothDevice> candidates = new Vector<BluetoothDevice>();
+						 for (ScanCache.Entry entry : cached) {
+							 debug("Cached device " + entry);
+							 candidates.add(entry.getDevice());
+						 }
+						 ScanNotification scanNotification = new ScanNotification(candidates, MainActivity.this);
+						 scanNotification.start();
+						 return;
+					 }
 					 debug("Start scan");
 					 scanning = true;
-					 devices = new HashMap<String, BluetoothDevice>();
 					 startScan();
 				 }
 				 else {
 					 debug("Stop scan");
 					 scanning = false;
-					 BluetoothLeScanner bluetoothScanner = bluetoothAdapter.getBluetoothLeScanner();
-					 bluetoothScanner.stopScan(leScanCallback);
-					 Vector<BluetoothDevice> scannedDevices = new Vector<BluetoothDevice>();
-					 scannedDevices.addAll(devices.values());
-					 ScanNotification scanNotification = new ScanNotification(scannedDevices, MainActivity.this);
+					 scanner.stop();
+					 Vector<BluetoothDevice> candidates;
+					 synchronized(scannedDevices) {
+						 candidates = new Vector<BluetoothDevice>(scannedDevices);
+					 }
+					 ScanNotification scanNotification = new ScanNotification(candidates, MainActivity.this);
 					 scanNotification.start();
 				 }
 			}			
@@ -691,7 +1188,7 @@ public class MainActivity extends Activity implements Logger {
 		clearLogsButton.setOnClickListener(new OnClickListener() {
 			@Override
 			public void onClick(View view) {
-				logView.setText("");
+				logAdapter.clear();
 			}			
 		});
 		invalidApButton.setOnClickListener(new OnClickListener() {
@@ -706,6 +1203,47 @@ public class MainActivity extends Activity implements Logger {
 				}
 			}
 		});
+		matrixButton.setOnClickListener(new OnClickListener() {
+			@Override
+			public void onClick(View view) {
+				if (targetDevice == null) {
+					debug("No device selected");
+				}
+				else {
+					runMatrix(new U2FBLEDeviceChannel(targetDevice, MainActivity.this), getDeviceCommonName(targetDevice));
+				}
+			}
+		});
+		matrixSimulatorButton.setOnClickListener(new OnClickListener() {
+			@Override
+			public void onClick(View view) {
+				runMatrix(new SimulatorChannel(new U2FSimulator()), "simulator");
+			}
+		});
+		campaignButton.setOnClickListener(new OnClickListener() {
+			@Override
+			public void onClick(View view) {
+				runCampaign();
+			}
+		});
+		probeButton.setOnClickListener(new OnClickListener() {
+			@Override
+			public void onClick(View view) {
+				runPingProbe();
+			}
+		});
+		benchmarkButton.setOnClickListener(new OnClickListener() {
+			@Override
+			public void onClick(View view) {
+				runBenchmark();
+			}
+		});
+		soakButton.setOnClickListener(new OnClickListener() {
+			@Override
+			public void onClick(View view) {
+				runSoak();
+			}
+		});
 		invalidKeyHandleButton.setOnClickListener(new OnClickListener() {
 			@Override
 			public void onClick(View view) {
@@ -754,6 +1292,27 @@ public class MainActivity extends Activity implements Logger {
 		}
 	}
 		
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		U2FBLEDevice.setEventDispatcher(null);
+		eventDispatcher.shutdown();
+		verificationPipeline.shutdown();
+		if (fileLogger != null) {
+			fileLogger.close();
+			fileLogger = null;
+		}
+		if (credentialRegistry != null) {
+			try {
+				credentialRegistry.close();
+			}
+			catch(Exception e) {
+				e.printStackTrace();
+			}
+			credentialRegistry = null;
+		}
+	}
+		
 	@Override
 	protected void onActivityResult(int requestCode, int resultCode, Intent data) {
 	}
@@ -774,6 +1333,18 @@ public class MainActivity extends Activity implements Logger {
 		if (id == R.id.action_settings) {
 			return true;
 		}
+		if (id == R.id.action_clear_scan_cache) {
+			ScanCache.getInstance().clear();
+			negativeProbeCache.clear();
+			debug("Scan cache and negative probe cache cleared");
+			return true;
+		}
+		if (id == R.id.action_scan_all_devices) {
+			scanAllDevices = !item.isChecked();
+			item.setChecked(scanAllDevices);
+			debug(scanAllDevices ? "Next scans report all devices" : "Next scans only report the U2F service");
+			return true;
+		}
 		return super.onOptionsItemSelected(item);
 	}
 	
@@ -781,7 +1352,7 @@ public class MainActivity extends Activity implements Logger {
 	public void onCreateContextMenu(ContextMenu menu, View v, ContextMenuInfo menuInfo) {
 	    menu.add(0, v.getId(), 0, "Copy to clipboard");
 	    ClipboardManager clipboard = (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
-	    clipboard.setPrimaryClip(ClipData.newPlainText(TAG, logView.getText()));
+	    clipboard.setPrimaryClip(ClipData.newPlainText(TAG, logAdapter.getVisibleText()));
 	}
 	
 	@Override
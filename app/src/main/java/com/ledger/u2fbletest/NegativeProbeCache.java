@@ -0,0 +1,214 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.bluetooth.le.ScanRecord;
+import android.os.ParcelUuid;
+
+/*
+ * Persistent set of advertisers found not to be U2F authenticators, so that the scan probe loop does not connect
+ * to the same headphones on every scan. Entries are keyed by address and carry a fingerprint of the advertised
+ * name and services, a device advertising differently is probed again. Entries expire after the TTL, on the
+ * wall clock as they survive reboots.
+ *
+ * File : magic (4) | version (4) | count (4) followed by records
+ * 		address (8) | fingerprint (4) | expiry (8)
+ */
+public class NegativeProbeCache {
+
+	public static final String FILE_NAME = "negative-probes.dat";
+	public static final long DEFAULT_TTL = 7L * 24 * 3600 * 1000;
+
+	private static final int MAGIC = 0x55324e50;
+	private static final int VERSION = 1;
+
+	private static class Entry {
+		private int fingerprint;
+		private long expiry;
+	}
+
+	private File file;
+	private HashMap<Long, Entry> entries;
+	private long ttl;
+	private long hits;
+	private long misses;
+
+	private NegativeProbeCache(File directory) {
+		file = new File(directory, FILE_NAME);
+		entries = new HashMap<Long, Entry>();
+		ttl = DEFAULT_TTL;
+	}
+
+	/* A missing or unreadable file gives an empty cache */
+	public static NegativeProbeCache open(File directory) {
+		NegativeProbeCache cache = new NegativeProbeCache(directory);
+		if (cache.file.exists()) {
+			try {
+				cache.load();
+			}
+			catch(IOException e) {
+				e.printStackTrace();
+				cache.entries.clear();
+			}
+		}
+		return cache;
+	}
+
+	/* Hash of the advertised name and service UUIDs, the other fields often carry rotating data */
+	public static int fingerprint(String name, ScanRecord record) {
+		int h = 0x811c9dc5;
+		if (name != null) {
+			h = (h ^ name.hashCode()) * 0x01000193;
+		}
+		List<ParcelUuid> uuids = (record != null ? record.getServiceUuids() : null);
+		if (uuids != null) {
+			int services = 0;
+			/* order independent */
+			for (ParcelUuid uuid : uuids) {
+				services += uuid.getUuid().hashCode();
+			}
+			h = (h ^ services) * 0x01000193;
+		}
+		return h;
+	}
+
+	private void load() throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if ((input.readInt() != MAGIC) || (input.readInt() != VERSION)) {
+				throw new IOException("Invalid negative probe cache");
+			}
+			int count = input.readInt();
+			long now = System.currentTimeMillis();
+			for (int i=0; i<count; i++) {
+				long address = input.readLong();
+				Entry entry = new Entry();
+				entry.fingerprint = input.readInt();
+				entry.expiry = input.readLong();
+				if (entry.expiry > now) {
+					entries.put(address, entry);
+				}
+			}
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	/* Written to a temporary file then renamed, so that an interrupted save keeps the previous content */
+	private void save() {
+		File temporary = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+			try {
+				output.writeInt(MAGIC);
+				output.writeInt(VERSION);
+				output.writeInt(entries.size());
+				for (Map.Entry<Long, Entry> item : entries.entrySet()) {
+					output.writeLong(item.getKey());
+					output.writeInt(item.getValue().fingerprint);
+					output.writeLong(item.getValue().expiry);
+				}
+			}
+			finally {
+				output.close();
+			}
+			if (!temporary.renameTo(file)) {
+				throw new IOException("Rename failed");
+			}
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void evict(long now) {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().expiry <= now) {
+				iterator.remove();
+			}
+		}
+	}
+
+	public synchronized void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	public synchronized long getTtl() {
+		return ttl;
+	}
+
+	/* True if the device was found not to be an authenticator and still advertises the same way */
+	public synchronized boolean contains(String address, int fingerprint) {
+		Entry entry = entries.get(U2FBLEScanner.addressToLong(address));
+		boolean hit = (entry != null) && (entry.fingerprint == fingerprint) && (entry.expiry > System.currentTimeMillis());
+		if (hit) {
+			hits++;
+		}
+		else {
+			misses++;
+		}
+		return hit;
+	}
+
+	public synchronized void add(String address, int fingerprint) {
+		long now = System.currentTimeMillis();
+		evict(now);
+		Entry entry = new Entry();
+		entry.fingerprint = fingerprint;
+		entry.expiry = now + ttl;
+		entries.put(U2FBLEScanner.addressToLong(address), entry);
+		save();
+	}
+
+	public synchronized void remove(String address) {
+		if (entries.remove(U2FBLEScanner.addressToLong(address)) != null) {
+			save();
+		}
+	}
+
+	public synchronized int size() {
+		evict(System.currentTimeMillis());
+		return entries.size();
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		save();
+	}
+
+	public synchronized String toString() {
+		return entries.size() + " entries, " + hits + " hits, " + misses + " misses, ttl " + ttl + " ms";
+	}
+
+}
@@ -0,0 +1,210 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Vector;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.SystemClock;
+
+/*
+ * Process wide cache of recently seen authenticators, fed by every scan. Lookups by name or address are answered
+ * from the cache while its entries are fresh, best signal first, so that selecting a device does not need a new scan.
+ */
+public class ScanCache {
+
+	public static final long DEFAULT_TTL = 60000;
+
+	public static class Entry {
+		private BluetoothDevice device;
+		private String name;
+		private int rssi;
+		private byte[] advertisement;
+		private int fingerprint;
+		private long timestamp;
+
+		public BluetoothDevice getDevice() {
+			return device;
+		}
+
+		public String getAddress() {
+			return device.getAddress();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getRssi() {
+			return rssi;
+		}
+
+		public byte[] getAdvertisement() {
+			return advertisement;
+		}
+
+		/* see NegativeProbeCache.fingerprint */
+		public int getFingerprint() {
+			return fingerprint;
+		}
+
+		/* in the SystemClock.elapsedRealtime time base */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public String toString() {
+			return device.getAddress() + "/" + (name != null ? name : "") + " rssi " + rssi + " seen " + (SystemClock.elapsedRealtime() - timestamp) + " ms ago";
+		}
+	}
+
+	private static final Comparator<Entry> BY_RSSI = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry first, Entry second) {
+			return (first.rssi > second.rssi ? -1 : (first.rssi < second.rssi ? 1 : 0));
+		}
+	};
+
+	private static ScanCache instance;
+
+	private HashMap<String, Entry> entries;
+	private long ttl;
+	private long hits;
+	private long misses;
+
+	private ScanCache() {
+		entries = new HashMap<String, Entry>();
+		ttl = DEFAULT_TTL;
+	}
+
+	public static synchronized ScanCache getInstance() {
+		if (instance == null) {
+			instance = new ScanCache();
+		}
+		return instance;
+	}
+
+	public synchronized void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
+	public synchronized long getTtl() {
+		return ttl;
+	}
+
+	public void update(ScanResult result) {
+		BluetoothDevice device = result.getDevice();
+		ScanRecord record = result.getScanRecord();
+		String name = (record != null ? record.getDeviceName() : null);
+		if (name == null) {
+			name = device.getName();
+		}
+		long now = SystemClock.elapsedRealtime();
+		synchronized(this) {
+			Entry entry = entries.get(device.getAddress());
+			if (entry == null) {
+				entry = new Entry();
+				entries.put(device.getAddress(), entry);
+			}
+			entry.device = device;
+			if (name != null) {
+				entry.name = name;
+			}
+			entry.rssi = result.getRssi();
+			if (record != null) {
+				entry.advertisement = record.getBytes();
+				entry.fingerprint = NegativeProbeCache.fingerprint(entry.name, record);
+			}
+			entry.timestamp = now;
+		}
+	}
+
+	private void evict(long now) {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			if (now - iterator.next().timestamp > ttl) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/* Fresh entries, best signal first */
+	public synchronized Vector<Entry> getRanked() {
+		evict(SystemClock.elapsedRealtime());
+		Vector<Entry> result = new Vector<Entry>(entries.values());
+		Collections.sort(result, BY_RSSI);
+		return result;
+	}
+
+	public synchronized Entry getByAddress(String address) {
+		evict(SystemClock.elapsedRealtime());
+		Entry entry = entries.get(address);
+		if (entry != null) {
+			hits++;
+		}
+		else {
+			misses++;
+		}
+		return entry;
+	}
+
+	/* Fingerprint of the last advertisement of a device, 0 if not seen. Not counted as a lookup */
+	public synchronized int getFingerprint(String address) {
+		Entry entry = entries.get(address);
+		return (entry != null ? entry.fingerprint : 0);
+	}
+
+	/* Strongest fresh device advertising this name */
+	public synchronized Entry findByName(String name) {
+		Entry best = null;
+		for (Entry entry : getRanked()) {
+			if (name.equals(entry.name)) {
+				best = entry;
+				break;
+			}
+		}
+		if (best != null) {
+			hits++;
+		}
+		else {
+			misses++;
+		}
+		return best;
+	}
+
+	public synchronized boolean isEmpty() {
+		evict(SystemClock.elapsedRealtime());
+		return entries.isEmpty();
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized String toString() {
+		return entries.size() + " entries, " + hits + " hits, " + misses + " misses, ttl " + ttl + " ms";
+	}
+
+}
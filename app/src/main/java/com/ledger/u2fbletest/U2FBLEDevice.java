@@ -18,14 +18,30 @@
 
 package com.ledger.u2fbletest;
 
+import java.lang.reflect.Method;
 import java.util.List;
+import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.UUID;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import com.ledger.u2fbletest.apdus.Apdu;
+import com.ledger.u2fbletest.apdus.ApduWriter;
+import com.ledger.u2fbletest.apdus.Authenticate;
+import com.ledger.u2fbletest.apdus.AuthenticateResponse;
+import com.ledger.u2fbletest.apdus.Register;
+import com.ledger.u2fbletest.apdus.RegisterResponse;
+import com.ledger.u2fbletest.apdus.StatusWord;
+import com.ledger.u2fbletest.transport.FrameTransportListener;
 import com.ledger.u2fbletest.utils.BLETransportHelper;
+import com.ledger.u2fbletest.utils.DeadlineManager;
 import com.ledger.u2fbletest.utils.Dump;
+import com.ledger.u2fbletest.utils.EventDispatcher;
+import com.ledger.u2fbletest.utils.ExchangeStatistics;
+import com.ledger.u2fbletest.utils.Promise;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -53,6 +69,9 @@ public class U2FBLEDevice {
 	public static final UUID U2F_NOTIFY_CHARACTERISTIC_UUID = UUID.fromString("F1D0FFF2-DEAA-ECEE-B42F-C9BA7ED623BB");
 	public static final UUID U2F_CONTROLPOINT_LENGTH_CHARACTERISTIC_UUID = UUID.fromString("F1D0FFF3-DEAA-ECEE-B42F-C9BA7ED623BB");
 	
+	/* reported once services are discovered on a device which is not an authenticator */
+	public static final String ERROR_NOT_U2F = "Could not find mandatory characteristic or service";
+	
 	private static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 	
 	private static final int CONNECT_TIMEOUT = 5000;
@@ -61,71 +80,346 @@ public class U2FBLEDevice {
 	//private static final int TIMER_DISCOVER = 200;
 	private static final int TIMER_READ = 500;
 	private static final int TIMER_DISCOVER = 500;
+	/* fragment rewrites allowed per exchange, the delay doubles from the base on each attempt of the same fragment */
+	public static final int DEFAULT_WRITE_RETRY_BUDGET = 4;
+	private static final int RETRY_BASE_DELAY = 20;
+	private static final int RETRY_MAX_DELAY = 320;
+	/* stack status codes reported for a transient condition, anything else such as a lost link is final */
+	private static final int GATT_BUSY = 0x84;
+	private static final int GATT_CONNECTION_CONGESTED = 0x8f;
+	/* idle time before the connection priority is relaxed, avoids flapping between back to back exchanges */
+	private static final int PRIORITY_IDLE_DELAY = 2000;
+	
+	/* BluetoothDevice PHY masks, setPreferredPhy is only available from API 26 and called by reflection */
+	public static final int PHY_MASK_LE_1M = 1;
+	public static final int PHY_MASK_LE_2M = 2;
+	public static final int PHY_MASK_LE_CODED = 4;
+	public static final int DEFAULT_MTU = 517;
+	public static final int DEFAULT_ATT_MTU = 23;
+	public static final int ATT_HEADER_LENGTH = 3;
+	
+	private static int defaultPreferredPhy;
+	private static int defaultWriteRetryBudget = DEFAULT_WRITE_RETRY_BUDGET;
+	
+	/* Lifecycle states, kept in the low bits of the state word. The high bits hold an epoch incremented each time
+	 * the connection is restarted, so that timers and callbacks from a previous attempt cannot act on the new one */
+	private static final int STATE_IDLE = 0;
+	private static final int STATE_CONNECTING = 1;
+	private static final int STATE_DISCOVERING = 2;
+	private static final int STATE_READY = 3;
+	private static final int STATE_WRITING = 4;
+	private static final int STATE_AWAITING = 5;
+	private static final int STATE_CLOSED = 6;
+	private static final String[] STATE_NAMES = { "idle", "connecting", "discovering", "ready", "writing", "awaiting", "closed" };
+	private static final int STATE_BITS = 4;
+	private static final int STATE_MASK = (1 << STATE_BITS) - 1;
 		
 	private Logger logger;
 	private U2FBLEDeviceNotification notification;
+	private final U2FBLEDeviceNotification dispatcher;
 	
 	private BluetoothDevice device;
 	private String name;
 	private String address;
 	private int chunkSize;
+	private volatile int fragmentLimit;
 	private int timeoutMs;
 	
-	private BluetoothGatt connection;
+	private volatile BluetoothGatt connection;
 	private BluetoothGattCharacteristic characteristicWrite;
 	private BluetoothGattCharacteristic characteristicNotify;
 	private BluetoothGattCharacteristic characteristicControlpointLength;
 	
-	private Vector<byte[]> fragmentedApduResponse;
-	private Vector<byte[]> sendFragments;
-	private byte[] fragmentedResponse;
-	private boolean pendingWrite;
-	private boolean initialized;
-	private boolean finalizing;
-	private int  state;
+	private final AtomicInteger stateWord;
+	private volatile Transfer transfer;
+	private volatile int  state;
 	private Context context;
-	private Timer timer;
-	private TimerTask connectionTimer;
-	private boolean connectedOnce;
-	private boolean discarded;
+	private static Timer sharedTimer;
+	private static EventDispatcher sharedEvents;
+	private static final AtomicInteger pendingTasks = new AtomicInteger();
+	private static final AtomicInteger openConnections = new AtomicInteger();
+	private final AtomicReference<Deadline> deadline;
+	private DeadlineManager deadlines;
+	private volatile long exchangeStart;
+	private volatile boolean connectedOnce;
+	private volatile boolean latencyMode;
+	private volatile boolean highPriority;
+	private volatile long lastActivity;
+	private volatile long exchangeStartNanos;
+	/* raw frame link, framing being left to the listener while the device stays in the ready state */
+	private volatile FrameTransportListener frameListener;
+	private volatile byte[] pendingFrame;
+	private int frameAttempts;
+	private volatile int preferredPhy;
+	private volatile int preferredMtu;
+	private volatile int mtu;
+	private volatile int writeRetryBudget;
+	private ExchangeStatistics statistics;
+	private Promise<U2FBLEDevice> connectPromise;
+	private Vector<PendingExchange> pendingExchanges;
+	private PendingExchange currentExchange;
+	
+	/* Fragments of the exchange in progress, owned by the thread which moved the device out of the ready state */
+	private static class Transfer {
+		private int command;
+		private Vector<byte[]> sendFragments;
+		private Vector<byte[]> receivedFragments;
+		private byte[] response;
+		/* kept until acknowledged, so that it can be written again with its sequence number */
+		private byte[] fragment;
+		private int attempts;
+		private int retriesLeft;
+		
+		public Transfer(int command, Vector<byte[]> sendFragments, int retriesLeft) {
+			this.command = command;
+			this.sendFragments = sendFragments;
+			this.retriesLeft = retriesLeft;
+			receivedFragments = new Vector<byte[]>();
+		}
+	}
+	
+	/* Timer task counted while scheduled, so that soak runs can spot tasks piling up */
+	private static abstract class CountedTask extends TimerTask {
+		
+		private final Logger logger;
+		
+		public CountedTask(Logger logger) {
+			this.logger = logger;
+		}
+		
+		@Override
+		public final void run() {
+			pendingTasks.decrementAndGet();
+			try {
+				runTask();
+			}
+			catch(RuntimeException e) {
+				/* the timer is shared, a failing task must not stop it */
+				onFailure(e);
+			}
+		}
+		
+		protected void onFailure(RuntimeException e) {
+			logger.error("Timer task failed " + e);
+		}
+		
+		@Override
+		public boolean cancel() {
+			boolean cancelled = super.cancel();
+			if (cancelled) {
+				pendingTasks.decrementAndGet();
+			}
+			return cancelled;
+		}
+		
+		protected abstract void runTask();
+	}
+	
+	/* Device timer task, a failure is reported so that the pending exchange does not wait forever */
+	private abstract class DeviceTask extends CountedTask {
+		
+		public DeviceTask() {
+			super(logger);
+		}
+		
+		@Override
+		protected void onFailure(RuntimeException e) {
+			super.onFailure(e);
+			dispatcher.onException(U2FBLEDevice.this, "Timer task failed " + e);
+		}
+	}
+	
+	private class Deadline extends DeviceTask {
+		private DeadlineManager.Phase phase;
+		private long start;
+		private int budget;
+		private int word;
+		
+		public Deadline(DeadlineManager.Phase phase, int budget, int word) {
+			this.phase = phase;
+			this.budget = budget;
+			this.word = word;
+			start = System.currentTimeMillis();
+		}
+		
+		@Override
+		protected void runTask() {
+			if (!deadline.compareAndSet(this, null)) {
+				return;
+			}
+			/* only expires if the device did not move since the deadline was armed */
+			if (!stateWord.compareAndSet(word, makeWord(getEpoch(word) + 1, STATE_IDLE))) {
+				logger.debug("Ignoring stale " + phase + " deadline");
+				return;
+			}
+			deadlines.recordTimeout(phase, budget);
+			if ((getState(word) == STATE_WRITING) || (getState(word) == STATE_AWAITING)) {
+				statistics.exchangeFailed();
+			}
+			exchangeStart = 0;
+			logger.debug("Connection timeout, " + phase + " after " + budget + " ms");
+			BluetoothGatt current = connection;
+			if (current != null) {
+				current.disconnect();
+			}
+			dispatcher.onException(U2FBLEDevice.this, "Connection timeout (" + phase.toString().toLowerCase(Locale.US) + " " + budget + " ms)");
+		}
+	}
+	
+	private static class PendingExchange {
+		private int command;
+		private Object request;
+		private Promise<byte[]> promise;
+		
+		public PendingExchange(int command, Object request) {
+			this.command = command;
+			this.request = request;
+			promise = new Promise<byte[]>();
+		}
+	}
+	
+	/* Settles the pending promises, then forwards the events to the registered notification. Runs on the event
+	 * dispatcher, so that promise listeners, response parsing and notifications never hold the GATT thread */
+	private final U2FBLEDeviceNotification settler = new U2FBLEDeviceNotification() {
+		
+		@Override
+		public void onDeviceDetected(U2FBLEDevice device) {
+			notification.onDeviceDetected(device);
+		}
+		
+		@Override
+		public void onInitialized(U2FBLEDevice device) {
+			Promise<U2FBLEDevice> promise;
+			synchronized(U2FBLEDevice.this) {
+				promise = connectPromise;
+				connectPromise = null;
+			}
+			notification.onInitialized(device);
+			if (promise != null) {
+				promise.complete(device);
+			}
+			startNextExchange();
+		}
+		
+		@Override
+		public void onConnectionStateChanged(U2FBLEDevice device, int state) {
+			PendingExchange exchange = null;
+			if (state != BluetoothProfile.STATE_CONNECTED) {
+				synchronized(U2FBLEDevice.this) {
+					exchange = currentExchange;
+					currentExchange = null;
+				}
+			}
+			notification.onConnectionStateChanged(device, state);
+			if (exchange != null) {
+				exchange.promise.fail("Disconnected");
+			}
+			FrameTransportListener listener = frameListener;
+			int currentState = getState(stateWord.get());
+			/* a previous link ending while connecting again is not reported */
+			if ((listener != null) && (state != BluetoothProfile.STATE_CONNECTED) && ((currentState == STATE_IDLE) || (currentState == STATE_CLOSED))) {
+				pendingFrame = null;
+				listener.onDisconnected(STATE_NAMES[currentState]);
+			}
+			/* also resumes the queue held by an interrupted synchronous exchange, unless the device was disconnected on purpose */
+			if ((exchange != null) || ((state != BluetoothProfile.STATE_CONNECTED) && (getState(stateWord.get()) != STATE_CLOSED))) {
+				startNextExchange();
+			}
+		}
+		
+		@Override
+		public void onResponseAvailable(U2FBLEDevice device, byte[] response) {
+			PendingExchange exchange;
+			synchronized(U2FBLEDevice.this) {
+				exchange = currentExchange;
+				currentExchange = null;
+			}
+			notification.onResponseAvailable(device, response);
+			if (exchange != null) {
+				exchange.promise.complete(response);
+			}
+			startNextExchange();
+		}
+		
+		@Override
+		public void onKeepAlive(U2FBLEDevice device, int reason) {
+			notification.onKeepAlive(device, reason);
+		}
+		
+		@Override
+		public void onCharacteristicDataAvailable(U2FBLEDevice device, byte[] response) {
+			notification.onCharacteristicDataAvailable(device, response);
+		}
+		
+		@Override
+		public void onException(U2FBLEDevice device, String reason) {
+			PendingExchange exchange;
+			Promise<U2FBLEDevice> promise = null;
+			synchronized(U2FBLEDevice.this) {
+				exchange = currentExchange;
+				currentExchange = null;
+				if (exchange == null) {
+					promise = connectPromise;
+					connectPromise = null;
+				}
+			}
+			notification.onException(device, reason);
+			if (exchange != null) {
+				exchange.promise.fail(reason);
+			}
+			else
+			if (promise != null) {
+				promise.fail(reason);
+			}
+			/* the failure may end a synchronous exchange the queue was waiting for */
+			startNextExchange();
+		}
+	};
 		
 	private static class LocalScanCallback extends ScanCallback {
 		private BluetoothAdapter bluetoothAdapter;
 		private Logger logger;
 		private U2FBLEDeviceNotification notification;
+		private U2FBLEDeviceNotification dispatcher;
 		private Context context;
-		private TimerTask detectTimeout;
-		private Timer timer;
+		private CountedTask detectTimeout;
 		
 		public LocalScanCallback(BluetoothAdapter bluetoothAdapter, Logger logger, U2FBLEDeviceNotification notification, Context context) { 
 			this.bluetoothAdapter = bluetoothAdapter;
 			this.logger = logger;
 			this.notification = notification;
+			this.dispatcher = new DispatchingNotification(notification, getEventDispatcher());
 			this.context = context;
-			timer = new Timer();
-			detectTimeout = new TimerTask() {
+			detectTimeout = new CountedTask(logger) {
 				@Override
-				public void run() {
+				protected void runTask() {
 					LocalScanCallback.this.logger.debug("Timeout detecting device");
-					LocalScanCallback.this.notification.onException(null, "Timeout");
+					LocalScanCallback.this.dispatcher.onException(null, "Timeout");
 					LocalScanCallback.this.bluetoothAdapter.getBluetoothLeScanner().stopScan(LocalScanCallback.this);		
-				}				
+				}
+				
+				@Override
+				protected void onFailure(RuntimeException e) {
+					super.onFailure(e);
+					LocalScanCallback.this.dispatcher.onException(null, "Timeout, " + e);
+				}
 			};
-			timer.schedule(detectTimeout, SCAN_TIMEOUT);									
+			schedule(detectTimeout, SCAN_TIMEOUT);									
 		}
 		
 		@Override
 		public void onScanFailed(int errorCode) {
-			this.notification.onException(null, "Scan failed " + errorCode);			
+			this.dispatcher.onException(null, "Scan failed " + errorCode);			
 		}
 		
 		@Override
 		public void onScanResult(int callbackType, ScanResult result) {
 			logger.debug("Device detected " + result.getDevice().getAddress() + " " + result.getDevice().getName());
+			ScanCache.getInstance().update(result);
 			detectTimeout.cancel();
 			bluetoothAdapter.getBluetoothLeScanner().stopScan(this);
 			U2FBLEDevice device = new U2FBLEDevice(result.getDevice(), this.notification, this.logger, this.context);
-			this.notification.onDeviceDetected(device);
+			this.dispatcher.onDeviceDetected(device);
 		}		
 	}
 		
@@ -139,54 +433,83 @@ public class U2FBLEDevice {
 		
 		public void onCharacteristicChangedInternal(BluetoothGatt gatt,
 				BluetoothGattCharacteristic characteristic) {
-			if (characteristic.equals(characteristicNotify)) {
-				byte[] data = characteristic.getValue();
-				logger.debug("Notified " + Dump.dump(data));
-				switch(BLETransportHelper.getChunkType(data)) {
-					case CHUNK_MSG:
-					case CHUNK_CONTINUATION:
-						break;
-					case CHUNK_ERROR:
-						connectionTimer.cancel();
-						logger.debug("Error reported");
-						notification.onException(U2FBLEDevice.this, "Error reported " + data[3]);
-						return;
-					case CHUNK_KEEPALIVE:
-						connectionTimer.cancel();
-						createTimer();						
-						logger.debug("Keepalive");
-						notification.onKeepAlive(U2FBLEDevice.this, data[3]);
+			if (gatt != connection) {
+				return;
+			}
+			if (!characteristic.equals(characteristicNotify)) {
+				logger.debug("Ignoring characteristic change on " + characteristic.getUuid().toString());
+				return;
+			}
+			byte[] data = characteristic.getValue();
+			logger.debug("Notified " + Dump.dump(data));
+			int word = stateWord.get();
+			int currentState = getState(word);
+			FrameTransportListener listener = frameListener;
+			if ((currentState == STATE_READY) && (listener != null)) {
+				statistics.frameReceived(data.length);
+				listener.onFrame(data.clone());
+				return;
+			}
+			if ((currentState != STATE_WRITING) && (currentState != STATE_AWAITING)) {
+				logger.debug("Ignoring notification while " + STATE_NAMES[currentState]);
+				return;
+			}
+			Transfer current = transfer;
+			switch(BLETransportHelper.getChunkType(data)) {
+				case CHUNK_MSG:
+				case CHUNK_PING:
+					if ((data[0] & 0xff) != current.command) {
+						failTransfer(word, "Unexpected response command " + Dump.dump(data));
 						return;
-					default:
-						connectionTimer.cancel();
-						logger.debug("Unexpected data received");
-						notification.onException(U2FBLEDevice.this, "Unexpected data received " + Dump.dump(data));
-						break;
-				}
-				fragmentedApduResponse.add(data);
-				try {
-					fragmentedResponse = BLETransportHelper.join(BLETransportHelper.COMMAND_MSG,  fragmentedApduResponse);
-				}
-				catch(Exception e) {
-					e.printStackTrace();
-					notification.onException(U2FBLEDevice.this, "Invalid fragmented response " + e.getMessage());
-				}
-				if (fragmentedResponse != null) {
-					fragmentedApduResponse.removeAllElements();
-					logger.debug("Got APDU response " + Dump.dump(fragmentedResponse));					
-					if (pendingWrite) {
-						logger.debug("Wait for pending write confirmation");
 					}
-					else {
-						connectionTimer.cancel();
-						notification.onResponseAvailable(U2FBLEDevice.this, fragmentedResponse);
-						fragmentedResponse = null;
-					}					
-				}				
+					break;
+				case CHUNK_CONTINUATION:
+					break;
+				case CHUNK_ERROR:
+					failTransfer(word, "Error reported " + (data.length > 3 ? data[3] : -1));
+					return;
+				case CHUNK_KEEPALIVE:
+					int status = (data.length > 3 ? data[3] & 0xff : -1);
+					if (currentState == STATE_AWAITING) {
+						completePhase();
+						armDeadline(DeadlineManager.getKeepalivePhase(status), word);
+					}
+					logger.debug("Keepalive " + status);
+					dispatcher.onKeepAlive(U2FBLEDevice.this, status);
+					return;
+				default:
+					failTransfer(word, "Unexpected data received " + Dump.dump(data));
+					return;
+			}
+			if (currentState == STATE_AWAITING) {
+				completePhase();
+			}
+			statistics.frameReceived(data.length);
+			current.receivedFragments.add(data);
+			byte[] response;
+			try {
+				response = BLETransportHelper.join(current.command, current.receivedFragments);
+			}
+			catch(Exception e) {
+				e.printStackTrace();
+				failTransfer(word, "Invalid fragmented response " + e.getMessage());
+				return;
+			}
+			if (response == null) {
+				if (currentState == STATE_AWAITING) {
+					armDeadline(DeadlineManager.Phase.RESPONSE, word);
+				}
+				return;
+			}
+			logger.debug("Got APDU response " + Dump.dump(response));
+			if (currentState == STATE_WRITING) {
+				/* delivered once the last write is acknowledged */
+				logger.debug("Wait for pending write confirmation");
+				current.response = response;
 			}
 			else {
-				logger.debug("Ignoring characteristic change on " + characteristic.getUuid().toString());
-			}			
+				deliverResponse(word, response);
+			}
 		}
 		
 		@Override
@@ -195,40 +518,55 @@ public class U2FBLEDevice {
 			onCharacteristicReadInternal(gatt, characteristic, status);
 		}
 		
-		private void enableNotifications() {
+		private void enableNotifications(int word) {
 			boolean result = connection.setCharacteristicNotification(characteristicNotify, true);
 			if (!result) {
-				notification.onException(U2FBLEDevice.this, "Failed to enable local notifications");
+				failInitialization(word, "Failed to enable local notifications");
 				return;
 			}					
 			BluetoothGattDescriptor descriptor = characteristicNotify.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
 			descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
 			result = connection.writeDescriptor(descriptor);
 			if (!result) {
-				notification.onException(U2FBLEDevice.this, "Failed to enable remote notifications");
+				failInitialization(word, "Failed to enable remote notifications");
 				return;
 			}					
-			createTimer();			
+			armDeadline(DeadlineManager.Phase.WRITE, word);
 		}
 		
 		public void onCharacteristicReadInternal(BluetoothGatt gatt,
 				BluetoothGattCharacteristic characteristic, int status) {
+			if (gatt != connection) {
+				return;
+			}
 			if (status == BluetoothGatt.GATT_SUCCESS) {
 				byte[] value = characteristic.getValue();
 				logger.debug("Read " + Dump.dump(value));
 				if (characteristic.equals(characteristicControlpointLength)) {
-					connectionTimer.cancel();
-					chunkSize = ((value[0] & 0xff) << 8) | (value[1] & 0xff);
-					logger.debug("Using chunksize " + chunkSize);
+					int word = stateWord.get();
+					if (getState(word) != STATE_DISCOVERING) {
+						logger.debug("Ignoring control point length while " + STATE_NAMES[getState(word)]);
+						return;
+					}
+					completePhase();
+					int controlPointLength = ((value[0] & 0xff) << 8) | (value[1] & 0xff);
+					/* fragments must also fit in a single ATT write */
+					chunkSize = Math.min(controlPointLength, mtu - ATT_HEADER_LENGTH);
+					statistics.setFragmentSize(chunkSize);
+					logger.debug("Using chunksize " + chunkSize + ", control point length " + controlPointLength + ", mtu " + mtu);
 					// Finalize initialization
-					enableNotifications();
+					enableNotifications(word);
 				}
 				else {
-					notification.onCharacteristicDataAvailable(U2FBLEDevice.this, value);
+					dispatcher.onCharacteristicDataAvailable(U2FBLEDevice.this, value);
 				}
 			}
+			else
+			if (characteristic.equals(characteristicControlpointLength) && (getState(stateWord.get()) == STATE_DISCOVERING)) {
+				failInitialization(stateWord.get(), "Read failed remotely " + status);
+			}
 			else {
-				notification.onException(U2FBLEDevice.this, "Read failed remotely " + status);
+				dispatcher.onException(U2FBLEDevice.this, "Read failed remotely " + status);
 			}						
 		}
 		
@@ -241,20 +579,42 @@ public class U2FBLEDevice {
 		
 		public void onCharacteristicWriteInternal(BluetoothGatt gatt,
 				BluetoothGattCharacteristic characteristic, int status) {
-			if (!pendingWrite) {
-				logger.debug("Unexpected characteristic write received " + status);
+			int word = stateWord.get();
+			if ((gatt == connection) && (getState(word) == STATE_READY) && (pendingFrame != null)) {
+				frameWritten(word, status);
 				return;
 			}
-			if (status == BluetoothGatt.GATT_SUCCESS) {
-				logger.debug("Write acknowledged");
-				pendingWrite = false;
-				if (sendFragments.size() != 0) {
-					writeNextFragment();
+			if ((gatt != connection) || (getState(word) != STATE_WRITING)) {
+				/* typically an acknowledgement arriving after a timeout */
+				logger.debug("Unexpected characteristic write received " + status + " while " + STATE_NAMES[getState(word)]);
+				return;
+			}
+			if (status != BluetoothGatt.GATT_SUCCESS) {
+				if (isTransientStatus(status)) {
+					retryFragment(word, "Write failed remotely " + status);
+				}
+				else {
+					failTransfer(word, "Write failed remotely " + status);
 				}
+				return;
+			}
+			logger.debug("Write acknowledged");
+			completePhase();
+			Transfer current = transfer;
+			if (current.sendFragments.size() != 0) {
+				writeNextFragment(word);
+			}
+			else
+			if (current.response != null) {
+				/* the response arrived before the last write confirmation */
+				deliverResponse(word, current.response);
 			}
 			else {
-				notification.onException(U2FBLEDevice.this, "Write failed remotely " + status);
-			}			
+				int awaiting = makeWord(getEpoch(word), STATE_AWAITING);
+				if (stateWord.compareAndSet(word, awaiting)) {
+					armDeadline(DeadlineManager.Phase.RESPONSE, awaiting);
+				}
+			}
 		}
 		
 		@Override
@@ -265,28 +625,37 @@ public class U2FBLEDevice {
 		
 		public void onConnectionStateChangeInternal(BluetoothGatt gatt, int status,
 				int newState) {
-			if (!finalizing) {
-				logger.debug("Connection state " + newState);
-				state = newState;
-				notification.onConnectionStateChanged(U2FBLEDevice.this, newState);
-				if ((newState == BluetoothProfile.STATE_CONNECTED) && initialized) {
-					connectionTimer.cancel();
-					// or enableNotifications with a timer ...
-					createDiscoverTimer();
-				}
-				else
-				if ((newState == BluetoothProfile.STATE_CONNECTED) && !initialized) {
-					connectionTimer.cancel();
-					// To avoid encryption failure observed on Qualcomm
-					createDiscoverTimer();
+			if (gatt != connection) {
+				logger.debug("Ignoring state " + newState + " of a previous connection");
+				return;
+			}
+			logger.debug("Connection state " + newState);
+			state = newState;
+			if (newState == BluetoothProfile.STATE_CONNECTED) {
+				if (!transition(STATE_CONNECTING, STATE_DISCOVERING)) {
+					logger.debug("Ignoring connection while " + STATE_NAMES[getState(stateWord.get())]);
+					return;
 				}
-				/*
-				else 
-				if ((newState != BluetoothProfile.STATE_CONNECTED) && connectedOnce && !discarded) {
-					notification.onException(U2FBLEDevice.this, "Unexpected state " + newState);
+				completePhase();
+				highPriority = false;
+				mtu = DEFAULT_ATT_MTU;
+				requestHighPriority();
+				requestPreferredPhy();
+				dispatcher.onConnectionStateChanged(U2FBLEDevice.this, newState);
+				// To avoid encryption failure observed on Qualcomm
+				createDiscoverTimer();
+			}
+			else {
+				if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+					int word = stateWord.get();
+					/* a reused connection can report the end of the previous link after connect() was called again */
+					if ((getState(word) != STATE_IDLE) && (getState(word) != STATE_CLOSED) && (getState(word) != STATE_CONNECTING)) {
+						cancelDeadline();
+						restart(STATE_IDLE);
+					}
 				}
-				*/
-			}			
+				dispatcher.onConnectionStateChanged(U2FBLEDevice.this, newState);
+			}
 		}
 		
 		@Override
@@ -302,25 +671,59 @@ public class U2FBLEDevice {
 		
 		public void onDescriptorWriteInternal(BluetoothGatt gatt,
 				BluetoothGattDescriptor descriptor, int status) {
-			/*
-			if (initialized) {
+			int word = stateWord.get();
+			if ((gatt != connection) || (getState(word) != STATE_DISCOVERING)) {
 				logger.debug("Unexpected descriptor write result received");
 				return;
 			}
-			*/
 			if (status == BluetoothGatt.GATT_SUCCESS) {
 				logger.debug("Descriptor written");
-				connectionTimer.cancel();
-				initialized = true;
-				notification.onInitialized(U2FBLEDevice.this);
+				completePhase();
+				if (transition(STATE_DISCOVERING, STATE_READY)) {
+					scheduleRelaxPriority();
+					dispatcher.onInitialized(U2FBLEDevice.this);
+				}
 			}
 			else {
-				notification.onException(U2FBLEDevice.this, "Invalid status writing dscriptor " + status);
+				failInitialization(word, "Invalid status writing descriptor " + status);
 			}			
 		}
 		
 		@Override
 		public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+			int word = stateWord.get();
+			if ((gatt != connection) || (getState(word) != STATE_DISCOVERING)) {
+				logger.debug("Ignoring MTU change to " + mtu);
+				return;
+			}
+			completePhase();
+			if (status == BluetoothGatt.GATT_SUCCESS) {
+				U2FBLEDevice.this.mtu = mtu;
+				statistics.setMtu(mtu);
+				logger.debug("MTU " + mtu);
+			}
+			else {
+				logger.debug("MTU request failed " + status);
+			}
+			createReadTimer();
+		}
+		
+		/* PHY callbacks only exist from API 26, not annotated so that they compile against older SDKs */
+		public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+			if (status == BluetoothGatt.GATT_SUCCESS) {
+				logger.debug("PHY updated, tx " + ExchangeStatistics.getPhyName(txPhy) + " rx " + ExchangeStatistics.getPhyName(rxPhy));
+				statistics.setPhy(txPhy, rxPhy);
+			}
+			else {
+				logger.debug("PHY update failed " + status);
+			}
+		}
+		
+		public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+			if (status == BluetoothGatt.GATT_SUCCESS) {
+				logger.debug("PHY tx " + ExchangeStatistics.getPhyName(txPhy) + " rx " + ExchangeStatistics.getPhyName(rxPhy));
+				statistics.setPhy(txPhy, rxPhy);
+			}
 		}
 		
 		@Override
@@ -337,8 +740,13 @@ public class U2FBLEDevice {
 		}
 		
 		private void onServicesDiscoveredInternal(BluetoothGatt gatt, int status) {
+			int word = stateWord.get();
+			if ((gatt != connection) || (getState(word) != STATE_DISCOVERING)) {
+				logger.debug("Ignoring service discovery result");
+				return;
+			}
 			logger.debug("Services discovered");
-			connectionTimer.cancel();
+			completePhase();
 			List<BluetoothGattService> services = connection.getServices();
 			for (BluetoothGattService service : services) {
 				logger.debug("Service : " + service.getUuid());
@@ -362,7 +770,13 @@ public class U2FBLEDevice {
 				}
 			}		
 			if ((characteristicNotify == null) || (characteristicWrite == null) || (characteristicControlpointLength == null))  {
-				notification.onException(U2FBLEDevice.this, "Could not find mandatory characteristic or service");
+				failInitialization(word, ERROR_NOT_U2F);
+				return;
+			}
+			if ((preferredMtu > DEFAULT_ATT_MTU) && connection.requestMtu(preferredMtu)) {
+				/* larger frames, the stack also enables data length extension when supported */
+				logger.debug("Requesting MTU " + preferredMtu);
+				armDeadline(DeadlineManager.Phase.READ, word);
 				return;
 			}
 			// To avoid encryption failure observed on Qualcomm
@@ -376,11 +790,21 @@ public class U2FBLEDevice {
 		this.notification = notification;
 		this.logger = logger;
 		this.context = context;
+		dispatcher = new DispatchingNotification(settler, getEventDispatcher());
 		this.name = device.getName();
 		this.address = device.getAddress();
-		fragmentedApduResponse = new Vector<byte[]>();
+		stateWord = new AtomicInteger(STATE_IDLE);
+		deadline = new AtomicReference<Deadline>();
+		latencyMode = true;
+		preferredPhy = defaultPreferredPhy;
+		writeRetryBudget = defaultWriteRetryBudget;
+		preferredMtu = DEFAULT_MTU;
+		mtu = DEFAULT_ATT_MTU;
+		statistics = new ExchangeStatistics();
+		pendingExchanges = new Vector<PendingExchange>();
 		state = BluetoothProfile.STATE_DISCONNECTED;
-		timer = new Timer();
+		timeoutMs = CONNECT_TIMEOUT;
+		deadlines = DeadlineManager.forDevice(address, timeoutMs);
 	}
 	
 	public void updateNotification(U2FBLEDeviceNotification notification) {
@@ -404,7 +828,14 @@ public class U2FBLEDevice {
 		bluetoothScanner.startScan(filter, builderScanSettings.build(), scannerCallback);		
 	}
 	
+	/* Answered from the scan cache when the device was seen recently, scans otherwise */
 	public static void findByName(BluetoothAdapter bluetoothAdapter, U2FBLEDeviceNotification notification, Logger logger, Context context, String name) {
+		ScanCache.Entry entry = ScanCache.getInstance().findByName(name);
+		if (entry != null) {
+			logger.debug("Cached device " + entry);
+			new DispatchingNotification(notification, getEventDispatcher()).onDeviceDetected(new U2FBLEDevice(entry.getDevice(), notification, logger, context));
+			return;
+		}
 		scanDevice(bluetoothAdapter, notification, logger, context, name, ScanType.SCAN_BY_NAME);
 	}
 
@@ -412,75 +843,213 @@ public class U2FBLEDevice {
 		if (!BluetoothAdapter.checkBluetoothAddress(address)) {
 			return null;
 		}
-		BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+		ScanCache.Entry entry = ScanCache.getInstance().getByAddress(address);
+		BluetoothDevice device = (entry != null ? entry.getDevice() : bluetoothAdapter.getRemoteDevice(address));
 		U2FBLEDevice result = new U2FBLEDevice(device, notification, logger, context);
 		return result;
 	}
 		
+	private static int getState(int word) {
+		return word & STATE_MASK;
+	}
+	
+	private static int getEpoch(int word) {
+		return word >>> STATE_BITS;
+	}
+	
+	private static int makeWord(int epoch, int state) {
+		return (epoch << STATE_BITS) | state;
+	}
+	
+	/* Moves between two states of the current epoch, fails if the device is not in the expected state */
+	private boolean transition(int from, int to) {
+		for (;;) {
+			int word = stateWord.get();
+			if (getState(word) != from) {
+				return false;
+			}
+			if (stateWord.compareAndSet(word, makeWord(getEpoch(word), to))) {
+				return true;
+			}
+		}
+	}
+	
+	/* Starts a new epoch, invalidating the deadlines and pending events of the previous one */
+	private int restart(int to) {
+		for (;;) {
+			int word = stateWord.get();
+			int next = makeWord(getEpoch(word) + 1, to);
+			if (stateWord.compareAndSet(word, next)) {
+				return next;
+			}
+		}
+	}
+	
 	public boolean isConnected() {
-		return ((state == BluetoothProfile.STATE_CONNECTED) && !discarded);
+		int currentState = getState(stateWord.get());
+		return (currentState >= STATE_DISCOVERING) && (currentState != STATE_CLOSED);
+	}
+	
+	public String getStateName() {
+		return STATE_NAMES[getState(stateWord.get())];
 	}
 	
 	public BluetoothDevice getBluetoothDevice() {
 		return device;
 	}
 	
-	private void createTimer() {
-		connectionTimer = new TimerTask() {
-			@Override
-			public void run() {
-				logger.debug("Connection timeout");
-				connection.disconnect();
-				notification.onException(U2FBLEDevice.this, "Connection timeout");
-			}				
-		};
-		timer.schedule(connectionTimer, timeoutMs);		
-	}		
+	/* Arms the deadline of a phase, it only fires if the state word is still the given one when it expires */
+	private void armDeadline(DeadlineManager.Phase phase, int word) {
+		int budget = deadlines.getBudget(phase);
+		long start = exchangeStart;
+		if ((start != 0) && (phase != DeadlineManager.Phase.CONNECT)) {
+			budget = (int)Math.max(0, Math.min(budget, start + DeadlineManager.EXCHANGE_CAP - System.currentTimeMillis()));
+		}
+		Deadline next = new Deadline(phase, budget, word);
+		Deadline previous = deadline.getAndSet(next);
+		if (previous != null) {
+			previous.cancel();
+		}
+		schedule(next, budget);
+	}
+	
+	/* Records the latency of the running phase and cancels its deadline */
+	private void completePhase() {
+		Deadline current = deadline.getAndSet(null);
+		if (current != null) {
+			current.cancel();
+			deadlines.record(current.phase, System.currentTimeMillis() - current.start);
+		}
+	}
+	
+	/* Cancels the deadline of the running phase without recording it, the exchange cap still applies */
+	private void suspendDeadline() {
+		Deadline current = deadline.getAndSet(null);
+		if (current != null) {
+			current.cancel();
+		}
+	}
+	
+	private void cancelDeadline() {
+		suspendDeadline();
+		exchangeStart = 0;
+	}
+	
+	private void deliverResponse(int word, byte[] response) {
+		if (!stateWord.compareAndSet(word, makeWord(getEpoch(word), STATE_READY))) {
+			logger.debug("Dropping response received while " + STATE_NAMES[getState(stateWord.get())]);
+			return;
+		}
+		statistics.exchangeCompleted(System.nanoTime() - exchangeStartNanos);
+		cancelDeadline();
+		transfer = null;
+		scheduleRelaxPriority();
+		dispatcher.onResponseAvailable(U2FBLEDevice.this, response);
+	}
+	
+	/* Ends the exchange in progress with an error, the connection stays usable */
+	private void failTransfer(int word, String reason) {
+		if (!stateWord.compareAndSet(word, makeWord(getEpoch(word), STATE_READY))) {
+			logger.debug("Ignoring failure while " + STATE_NAMES[getState(stateWord.get())] + " : " + reason);
+			return;
+		}
+		statistics.exchangeFailed();
+		cancelDeadline();
+		transfer = null;
+		scheduleRelaxPriority();
+		logger.debug(reason);
+		dispatcher.onException(U2FBLEDevice.this, reason);
+	}
+	
+	/* Leaves the discovering state of the given epoch and drops the link, so that the device can be connected again */
+	private void failInitialization(int word, String reason) {
+		if (!stateWord.compareAndSet(word, makeWord(getEpoch(word) + 1, STATE_IDLE))) {
+			logger.debug("Ignoring initialization failure while " + STATE_NAMES[getState(stateWord.get())] + " : " + reason);
+			return;
+		}
+		cancelDeadline();
+		logger.debug(reason);
+		BluetoothGatt current = connection;
+		if (current != null) {
+			current.disconnect();
+		}
+		dispatcher.onException(U2FBLEDevice.this, reason);
+	}
+	
+	public DeadlineManager getDeadlineManager() {
+		return deadlines;
+	}
 	
 	private void createReadTimer() {
-		TimerTask readTimer = new TimerTask() {
+		final int word = stateWord.get();
+		DeviceTask readTimer = new DeviceTask() {
 			@Override
-			public void run() {
+			protected void runTask() {
+				if (stateWord.get() != word) {
+					return;
+				}
 				logger.debug("Reading control point length");
-				boolean result = connection.readCharacteristic(characteristicControlpointLength);
-				if (!result) {
-					notification.onException(U2FBLEDevice.this, "Failed to read control point length");
+				BluetoothGatt current = connection;
+				if ((current == null) || !current.readCharacteristic(characteristicControlpointLength)) {
+					failInitialization(word, "Failed to read control point length");
+					return;
 				}
-				createTimer();				
+				armDeadline(DeadlineManager.Phase.READ, word);
 			}				
 		};
-		timer.schedule(readTimer, TIMER_READ);				
+		schedule(readTimer, TIMER_READ);				
 	}
 	
 	private void createDiscoverTimer() {
-		TimerTask discoverTimer = new TimerTask() {
+		final int word = stateWord.get();
+		DeviceTask discoverTimer = new DeviceTask() {
 			@Override
-			public void run() {
-				if (!connection.discoverServices()) {
-					notification.onException(U2FBLEDevice.this, "Failed to start service discovery");
+			protected void runTask() {
+				if (stateWord.get() != word) {
+					return;
+				}
+				BluetoothGatt current = connection;
+				if ((current == null) || !current.discoverServices()) {
+					failInitialization(word, "Failed to start service discovery");
 				}
 				else {
 					logger.debug("Starting service discovery");
-					createTimer();
+					armDeadline(DeadlineManager.Phase.DISCOVER, word);
 					connectedOnce = true;
 				}				
 			}				
 		};
-		timer.schedule(discoverTimer, TIMER_DISCOVER);						
+		schedule(discoverTimer, TIMER_DISCOVER);						
 	}
 			
 	public void connect(int timeoutMs) {
 		if (isConnected()) {
-			notification.onConnectionStateChanged(U2FBLEDevice.this, BluetoothProfile.STATE_CONNECTED);
+			dispatcher.onConnectionStateChanged(U2FBLEDevice.this, BluetoothProfile.STATE_CONNECTED);
 		}
 		else {
 			this.timeoutMs = timeoutMs;
-			if (connection != null) {
-				logger.debug("Closing previous GATT connection");
-				connection.close();				
+			deadlines.setDefaultBudget(timeoutMs);
+			cancelDeadline();
+			int word = restart(STATE_CONNECTING);
+			transfer = null;
+			BluetoothGatt previous = connection;
+			if ((previous != null) && previous.connect()) {
+				logger.debug("Reconnecting previous GATT connection");
+			}
+			else {
+				if (previous != null) {
+					logger.debug("Closing previous GATT connection");
+					previous.close();				
+					openConnections.decrementAndGet();
+				}
+				/* the stack reconnects bonded devices as soon as they advertise */
+				boolean autoConnect = (device.getBondState() == BluetoothDevice.BOND_BONDED);
+				connection = device.connectGatt(context, autoConnect, gattCallback);
+				if (connection != null) {
+					openConnections.incrementAndGet();
+				}
 			}
-			connection = device.connectGatt(context, false, gattCallback);
-			createTimer();
+			armDeadline(DeadlineManager.Phase.CONNECT, word);
 		}
 	}
 	
@@ -488,16 +1057,133 @@ public class U2FBLEDevice {
 		connect(CONNECT_TIMEOUT);
 	}
 	
+	/* Requests the shortest connection interval while exchanging, relaxed once idle */
+	public void setLatencyMode(boolean latencyMode) {
+		this.latencyMode = latencyMode;
+		if (!latencyMode) {
+			relaxPriority();
+		}
+	}
+	
+	public boolean isLatencyMode() {
+		return latencyMode;
+	}
+	
+	private void requestHighPriority() {
+		lastActivity = System.currentTimeMillis();
+		if (!latencyMode || highPriority) {
+			return;
+		}
+		if (connection.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH)) {
+			logger.debug("Connection priority high");
+			highPriority = true;
+		}
+	}
+	
+	private void relaxPriority() {
+		BluetoothGatt current = connection;
+		if (!highPriority || (current == null)) {
+			return;
+		}
+		highPriority = false;
+		if (current.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED)) {
+			logger.debug("Connection priority balanced");
+		}
+	}
+	
+	private void scheduleRelaxPriority() {
+		lastActivity = System.currentTimeMillis();
+		if (!highPriority) {
+			return;
+		}
+		final int word = stateWord.get();
+		schedule(new DeviceTask() {
+			@Override
+			protected void runTask() {
+				if ((stateWord.get() == word) && (System.currentTimeMillis() - lastActivity >= PRIORITY_IDLE_DELAY)) {
+					relaxPriority();
+				}
+			}
+		}, PRIORITY_IDLE_DELAY);
+	}
+	
 	public void disconnect() {
-		discarded = true;
+		cancelDeadline();
+		restart(STATE_CLOSED);
 		if ((state == BluetoothProfile.STATE_DISCONNECTED) || (connection == null)) {
-			notification.onConnectionStateChanged(U2FBLEDevice.this, BluetoothProfile.STATE_DISCONNECTED);
+			dispatcher.onConnectionStateChanged(U2FBLEDevice.this, BluetoothProfile.STATE_DISCONNECTED);
 		}
 		else {			
 			connection.disconnect();
 		}
 	}
 	
+	/* Disconnects and releases the GATT client, pending requests fail. The device can be connected again */
+	public void close() {
+		cancelDeadline();
+		restart(STATE_CLOSED);
+		BluetoothGatt current;
+		Promise<U2FBLEDevice> promise;
+		synchronized(this) {
+			current = connection;
+			connection = null;
+			promise = connectPromise;
+			connectPromise = null;
+		}
+		state = BluetoothProfile.STATE_DISCONNECTED;
+		if (current != null) {
+			current.disconnect();
+			current.close();
+			openConnections.decrementAndGet();
+		}
+		failPendingExchanges("Closed");
+		if (promise != null) {
+			promise.fail("Closed");
+		}
+		dispatcher.onConnectionStateChanged(U2FBLEDevice.this, BluetoothProfile.STATE_DISCONNECTED);
+	}
+	
+	private static synchronized Timer getTimer() {
+		if (sharedTimer == null) {
+			sharedTimer = new Timer("U2FBLEDevice", true);
+		}
+		return sharedTimer;
+	}
+	
+	/* Shared by all devices, events of a device run in order on the dispatcher lane of its address */
+	public static synchronized EventDispatcher getEventDispatcher() {
+		if (sharedEvents == null) {
+			sharedEvents = new EventDispatcher();
+		}
+		return sharedEvents;
+	}
+	
+	/* Used by the devices created afterwards, null restores a default dispatcher */
+	public static synchronized void setEventDispatcher(EventDispatcher events) {
+		sharedEvents = events;
+	}
+	
+	private static void schedule(CountedTask task, long delay) {
+		pendingTasks.incrementAndGet();
+		try {
+			getTimer().schedule(task, delay);
+		}
+		catch(IllegalStateException e) {
+			/* cancelled before being scheduled */
+			pendingTasks.decrementAndGet();
+		}
+	}
+	
+	/* GATT clients opened by all devices and not closed yet */
+	public static int getOpenConnectionCount() {
+		return openConnections.get();
+	}
+	
+	/* Timer tasks scheduled by all devices and not run or cancelled yet */
+	public static int getPendingTaskCount() {
+		return pendingTasks.get();
+	}
+	
 	public String getAddress() {
 		return address;
 	}
@@ -509,25 +1195,425 @@ public class U2FBLEDevice {
 	public int getChunkSize() {
 		return chunkSize;
 	}
+	
+	/* Lowers the fragment size below the negotiated chunk size, 0 restores it */
+	public void setFragmentSize(int fragmentSize) {
+		fragmentLimit = fragmentSize;
+		statistics.setFragmentSize(getFragmentSize());
+	}
+	
+	public int getFragmentSize() {
+		int limit = fragmentLimit;
+		return ((limit != 0) && (limit < chunkSize) ? limit : chunkSize);
+	}
+	
+	public int getMtu() {
+		return mtu;
+	}
+	
+	public ExchangeStatistics getStatistics() {
+		return statistics;
+	}
+	
+	/* Default PHY mask of new devices, 0 keeps the PHY chosen by the stack */
+	public static synchronized void setDefaultPreferredPhy(int phyMask) {
+		defaultPreferredPhy = phyMask;
+	}
+	
+	/* Fragment rewrites allowed per exchange for new devices, 0 fails on the first write error */
+	public static synchronized void setDefaultWriteRetryBudget(int budget) {
+		defaultWriteRetryBudget = budget;
+	}
+	
+	/* Applied from the next exchange */
+	public void setWriteRetryBudget(int budget) {
+		writeRetryBudget = budget;
+	}
+	
+	public int getWriteRetryBudget() {
+		return writeRetryBudget;
+	}
+	
+	/* Applied on the next connection, 0 keeps the PHY chosen by the stack */
+	public void setPreferredPhy(int phyMask) {
+		preferredPhy = phyMask;
+	}
+	
+	/* Requested after service discovery, 0 keeps the default MTU of 23 */
+	public void setPreferredMtu(int preferredMtu) {
+		this.preferredMtu = preferredMtu;
+	}
+	
+	private boolean invokeGatt(String name, Class<?>[] types, Object[] args) {
+		try {
+			Method method = BluetoothGatt.class.getMethod(name, types);
+			Object result = method.invoke(connection, args);
+			return (!(result instanceof Boolean) || ((Boolean)result).booleanValue());
+		}
+		catch(NoSuchMethodException e) {
+			logger.debug(name + " not available on this Android version");
+		}
+		catch(Exception e) {
+			logger.debug(name + " failed " + e);
+		}
+		return false;
+	}
+	
+	/* Asks for the preferred PHY if any, or reads the PHY in effect. The result comes in onPhyUpdate or onPhyRead */
+	private void requestPreferredPhy() {
+		int phyMask = preferredPhy;
+		if (phyMask != 0) {
+			if (invokeGatt("setPreferredPhy", new Class<?>[] { int.class, int.class, int.class }, new Object[] { phyMask, phyMask, 0 })) {
+				logger.debug("Requested PHY mask " + phyMask);
+			}
+		}
+		else {
+			invokeGatt("readPhy", new Class<?>[0], new Object[0]);
+		}
+	}
 
-	private void writeNextFragment() {
-		byte[] fragment = sendFragments.remove(0);
-		logger.debug("Writing " + Dump.dump(fragment));
-		characteristicWrite.setValue(fragment);
-		pendingWrite = true;
-		if (!connection.writeCharacteristic(characteristicWrite)) {
-			pendingWrite = false;
-			notification.onException(U2FBLEDevice.this, "Writing failed locally");
+	private void writeNextFragment(int word) {
+		Transfer current = transfer;
+		current.fragment = current.sendFragments.remove(0);
+		current.attempts = 0;
+		writeFragment(word, current);
+	}
+	
+	private void writeFragment(int word, Transfer current) {
+		logger.debug("Writing " + Dump.dump(current.fragment));
+		characteristicWrite.setValue(current.fragment);
+		statistics.frameSent(current.fragment.length);
+		armDeadline(DeadlineManager.Phase.WRITE, word);
+		BluetoothGatt gatt = connection;
+		/* false when the stack is still busy with another operation, or once closed */
+		if ((gatt == null) || !gatt.writeCharacteristic(characteristicWrite)) {
+			retryFragment(word, "Writing failed locally");
 		}					
 	}
 	
-	public boolean exchangeApdu(byte[] apdu) {
-		if (!isConnected()) {
+	private static boolean isTransientStatus(int status) {
+		return (status == GATT_BUSY) || (status == GATT_CONNECTION_CONGESTED);
+	}
+	
+	/* Writes the same fragment again after a backoff letting the stack drain its queue, the exchange fails once
+	 * the retry budget is spent. The write deadline is suspended during the backoff and armed again by the next
+	 * write, so the backoff only counts against the exchange cap and a busy stack never ends in a disconnection */
+	private void retryFragment(final int word, String reason) {
+		final Transfer current = transfer;
+		if ((current == null) || (current.retriesLeft <= 0)) {
+			failTransfer(word, reason);
+			return;
+		}
+		int delay = Math.min(RETRY_BASE_DELAY << Math.min(current.attempts, 8), RETRY_MAX_DELAY);
+		long start = exchangeStart;
+		if ((start != 0) && (start + DeadlineManager.EXCHANGE_CAP - System.currentTimeMillis() <= delay)) {
+			failTransfer(word, reason + ", no time left to retry");
+			return;
+		}
+		suspendDeadline();
+		current.retriesLeft--;
+		current.attempts++;
+		statistics.fragmentRetried();
+		logger.debug(reason + ", retrying in " + delay + " ms, " + current.retriesLeft + " retries left");
+		schedule(new DeviceTask() {
+			@Override
+			protected void runTask() {
+				if ((stateWord.get() != word) || (transfer != current)) {
+					return;
+				}
+				writeFragment(word, current);
+			}
+		}, delay);
+	}
+	
+	/* Raw frame link for a FrameTransport : the device connects as for exchanges, then frames are written and
+	 * notified as they are, the caller handling the framing. Frames and exchanges must not be mixed */
+	public void openFrameLink(final FrameTransportListener listener) {
+		frameListener = listener;
+		pendingFrame = null;
+		connectAsync().addListener(new Promise.Listener<U2FBLEDevice>() {
+			@Override
+			public void onComplete(Promise<U2FBLEDevice> promise) {
+				if (promise.isSuccessful()) {
+					listener.onConnected(getFragmentSize());
+				}
+				else {
+					listener.onDisconnected(promise.getFailure().getMessage());
+				}
+			}
+		});
+	}
+	
+	/* Write completion is reported to the frame listener, after the same retries as exchange fragments */
+	public boolean writeFrame(byte[] frame) {
+		int word = stateWord.get();
+		if ((getState(word) != STATE_READY) || (frameListener == null) || (pendingFrame != null)) {
+			return false;
+		}
+		pendingFrame = frame;
+		frameAttempts = 0;
+		requestHighPriority();
+		if (!sendFrame(word, frame)) {
+			retryFrame(word, frame, "Writing failed locally");
+		}
+		return true;
+	}
+	
+	private boolean sendFrame(int word, byte[] frame) {
+		BluetoothGatt current = connection;
+		if (current == null) {
+			return false;
+		}
+		logger.debug("Writing " + Dump.dump(frame));
+		characteristicWrite.setValue(frame);
+		statistics.frameSent(frame.length);
+		armDeadline(DeadlineManager.Phase.WRITE, word);
+		return current.writeCharacteristic(characteristicWrite);
+	}
+	
+	private void frameWritten(int word, int status) {
+		byte[] frame = pendingFrame;
+		if ((status != BluetoothGatt.GATT_SUCCESS) && isTransientStatus(status)) {
+			retryFrame(word, frame, "Write failed remotely " + status);
+			return;
+		}
+		completePhase();
+		endFrame(frame, status == BluetoothGatt.GATT_SUCCESS);
+	}
+	
+	private void endFrame(byte[] frame, boolean success) {
+		if (pendingFrame != frame) {
+			return;
+		}
+		pendingFrame = null;
+		scheduleRelaxPriority();
+		FrameTransportListener listener = frameListener;
+		if (listener != null) {
+			listener.onWriteComplete(success);
+		}
+	}
+	
+	private void retryFrame(final int word, final byte[] frame, String reason) {
+		if (frameAttempts >= writeRetryBudget) {
+			logger.debug(reason);
+			suspendDeadline();
+			endFrame(frame, false);
+			return;
+		}
+		int delay = Math.min(RETRY_BASE_DELAY << Math.min(frameAttempts, 8), RETRY_MAX_DELAY);
+		suspendDeadline();
+		frameAttempts++;
+		statistics.fragmentRetried();
+		logger.debug(reason + ", retrying in " + delay + " ms, " + (writeRetryBudget - frameAttempts) + " retries left");
+		schedule(new DeviceTask() {
+			@Override
+			protected void runTask() {
+				if ((stateWord.get() != word) || (pendingFrame != frame)) {
+					return;
+				}
+				if (!sendFrame(word, frame)) {
+					retryFrame(word, frame, "Writing failed locally");
+				}
+			}
+		}, delay);
+	}
+	
+	/* Only one exchange can leave the ready state. The transfer is published before the state moves to writing,
+	 * so that any thread seeing the writing state also sees its fragments */
+	private boolean exchangeFragments(int command, Vector<byte[]> fragments) {
+		if (getState(stateWord.get()) != STATE_READY) {
 			return false;
 		}
-		createTimer();
-		sendFragments = BLETransportHelper.split(BLETransportHelper.COMMAND_MSG, apdu, chunkSize);
-		writeNextFragment();
+		Transfer next = new Transfer(command, fragments, writeRetryBudget);
+		int writing;
+		synchronized(this) {
+			int word = stateWord.get();
+			if (getState(word) != STATE_READY) {
+				return false;
+			}
+			transfer = next;
+			writing = makeWord(getEpoch(word), STATE_WRITING);
+			if (!stateWord.compareAndSet(word, writing)) {
+				/* the device moved meanwhile, the transfer is withdrawn */
+				transfer = null;
+				return false;
+			}
+		}
+		exchangeStart = System.currentTimeMillis();
+		exchangeStartNanos = System.nanoTime();
+		requestHighPriority();
+		writeNextFragment(writing);
 		return true;
 	}
+	
+	public boolean exchangeApdu(byte[] apdu) {
+		if (!isReady()) {
+			return false;
+		}
+		return exchangeFragments(BLETransportHelper.COMMAND_MSG, BLETransportHelper.split(BLETransportHelper.COMMAND_MSG, apdu, getFragmentSize()));
+	}
+	
+	public boolean exchangeApdu(Apdu apdu) {
+		if (!isReady()) {
+			return false;
+		}
+		return exchangeFragments(BLETransportHelper.COMMAND_MSG, ApduWriter.split(BLETransportHelper.COMMAND_MSG, apdu, getFragmentSize()));
+	}
+	
+	/* Sends a PING, the echoed data is reported through onResponseAvailable */
+	public boolean exchangePing(byte[] data) {
+		if (!isReady()) {
+			return false;
+		}
+		return exchangeFragments(BLETransportHelper.COMMAND_PING, BLETransportHelper.split(BLETransportHelper.COMMAND_PING, data, getFragmentSize()));
+	}
+	
+	/* Connected with notifications enabled, possibly with an exchange in progress */
+	public boolean isReady() {
+		int currentState = getState(stateWord.get());
+		return (currentState == STATE_READY) || (currentState == STATE_WRITING) || (currentState == STATE_AWAITING);
+	}
+	
+	/* Completes once the device is connected and notifications are enabled */
+	public Promise<U2FBLEDevice> connectAsync() {
+		Promise<U2FBLEDevice> promise;
+		synchronized(this) {
+			if (isReady()) {
+				return Promise.completed(this);
+			}
+			if ((connectPromise != null) && !connectPromise.isDone()) {
+				return connectPromise;
+			}
+			promise = new Promise<U2FBLEDevice>();
+			connectPromise = promise;
+		}
+		connect(timeoutMs);
+		return promise;
+	}
+	
+	private Promise<byte[]> queueExchange(int command, Object request) {
+		final PendingExchange exchange = new PendingExchange(command, request);
+		exchange.promise.onCancel(new Runnable() {
+			public void run() {
+				synchronized(U2FBLEDevice.this) {
+					pendingExchanges.remove(exchange);
+				}
+			}
+		});
+		synchronized(this) {
+			pendingExchanges.add(exchange);
+		}
+		startNextExchange();
+		return exchange.promise;
+	}
+	
+	/* Exchanges are queued and sent one at a time, connecting first if needed. A cancelled exchange is removed
+	 * from the queue, or has its response discarded if it was already sent */
+	public Promise<byte[]> exchangeAsync(byte[] apdu) {
+		return queueExchange(BLETransportHelper.COMMAND_MSG, apdu);
+	}
+	
+	public Promise<byte[]> exchangeAsync(Apdu apdu) {
+		return queueExchange(BLETransportHelper.COMMAND_MSG, apdu);
+	}
+	
+	/* Completes with the echoed data */
+	public Promise<byte[]> pingAsync(byte[] data) {
+		return queueExchange(BLETransportHelper.COMMAND_PING, data);
+	}
+	
+	private static byte[] checkStatusWord(byte[] response) {
+		int statusWord = StatusWord.getStatusWord(response);
+		if (statusWord != StatusWord.SW_NO_ERROR) {
+			throw new RuntimeException("Unexpected status " + StatusWord.toString(statusWord));
+		}
+		return response;
+	}
+	
+	public Promise<RegisterResponse> registerAsync(Register register) {
+		return exchangeAsync(register).thenApply(new Promise.Transform<byte[], RegisterResponse>() {
+			@Override
+			public RegisterResponse apply(byte[] response) {
+				return RegisterResponse.parse(checkStatusWord(response));
+			}
+		});
+	}
+	
+	public Promise<AuthenticateResponse> authenticateAsync(Authenticate authenticate) {
+		return exchangeAsync(authenticate).thenApply(new Promise.Transform<byte[], AuthenticateResponse>() {
+			@Override
+			public AuthenticateResponse apply(byte[] response) {
+				return AuthenticateResponse.parse(checkStatusWord(response));
+			}
+		});
+	}
+	
+	/* Queued exchanges wait for a synchronous exchange in progress, they are started again once it completes */
+	private void startNextExchange() {
+		PendingExchange exchange;
+		synchronized(this) {
+			if ((currentExchange != null) || pendingExchanges.isEmpty()) {
+				return;
+			}
+			int currentState = getState(stateWord.get());
+			if ((currentState == STATE_WRITING) || (currentState == STATE_AWAITING)) {
+				return;
+			}
+			if (currentState != STATE_READY) {
+				exchange = null;
+			}
+			else {
+				exchange = pendingExchanges.remove(0);
+				currentExchange = exchange;
+			}
+		}
+		if (exchange == null) {
+			connectAsync().addListener(new Promise.Listener<U2FBLEDevice>() {
+				@Override
+				public void onComplete(Promise<U2FBLEDevice> promise) {
+					if (!promise.isSuccessful()) {
+						failPendingExchanges("Connection failed : " + promise.getFailure().getMessage());
+					}
+				}
+			});
+			return;
+		}
+		boolean sent;
+		if (exchange.command == BLETransportHelper.COMMAND_PING) {
+			sent = exchangePing((byte[])exchange.request);
+		}
+		else
+		if (exchange.request instanceof Apdu) {
+			sent = exchangeApdu((Apdu)exchange.request);
+		}
+		else {
+			sent = exchangeApdu((byte[])exchange.request);
+		}
+		if (!sent) {
+			/* a synchronous exchange or a disconnection took the ready state first, its completion resumes the queue */
+			synchronized(this) {
+				if (currentExchange == exchange) {
+					currentExchange = null;
+				}
+				if (!exchange.promise.isDone()) {
+					pendingExchanges.add(0, exchange);
+				}
+			}
+			/* the competing exchange may have completed before the exchange was queued again */
+			if (getState(stateWord.get()) == STATE_READY) {
+				startNextExchange();
+			}
+		}
+	}
+	
+	private void failPendingExchanges(String reason) {
+		Vector<PendingExchange> exchanges;
+		synchronized(this) {
+			exchanges = new Vector<PendingExchange>(pendingExchanges);
+			pendingExchanges.removeAllElements();
+		}
+		for (PendingExchange exchange : exchanges) {
+			exchange.promise.fail(reason);
+		}
+	}
 }
@@ -0,0 +1,81 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest;
+
+import com.ledger.u2fbletest.runner.FramedChannel;
+
+/*
+ * Blocking ApduChannel on top of the asynchronous U2FBLEDevice API, connecting on demand. Must not be used from the GATT callback thread.
+ */
+public class U2FBLEDeviceChannel implements FramedChannel {
+
+	private static final int EXCHANGE_TIMEOUT = 30000;
+
+	private U2FBLEDevice device;
+	private Logger logger;
+	private long timeoutMs;
+
+	public U2FBLEDeviceChannel(U2FBLEDevice device, Logger logger, long timeoutMs) {
+		this.device = device;
+		this.logger = logger;
+		this.timeoutMs = timeoutMs;
+	}
+
+	public U2FBLEDeviceChannel(U2FBLEDevice device, Logger logger) {
+		this(device, logger, EXCHANGE_TIMEOUT);
+	}
+
+	public U2FBLEDevice getDevice() {
+		return device;
+	}
+
+	public void connect() {
+		if (!device.isReady()) {
+			logger.debug("Channel connecting to " + device.getAddress());
+		}
+		device.connectAsync().join(timeoutMs);
+	}
+
+	@Override
+	public byte[] exchangeApdu(byte[] apdu) {
+		return device.exchangeAsync(apdu).join(timeoutMs);
+	}
+
+	@Override
+	public byte[] ping(byte[] data) {
+		return device.pingAsync(data).join(timeoutMs);
+	}
+
+	@Override
+	public int getMaxFragmentSize() {
+		connect();
+		return device.getChunkSize();
+	}
+
+	@Override
+	public void setFragmentSize(int fragmentSize) {
+		device.setFragmentSize(fragmentSize);
+	}
+
+	@Override
+	public int getFragmentSize() {
+		return device.getFragmentSize();
+	}
+
+}
@@ -0,0 +1,198 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest;
+
+import java.util.List;
+import java.util.Vector;
+
+import com.ledger.u2fbletest.utils.LongHashSet;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+
+/*
+ * Scans for advertisements of the U2F service. The service filter and result batching are handed to the
+ * controller when it supports them, so that unrelated advertisers in crowded rooms do not wake the application.
+ * Each device is reported once per scan, deduplicated on its 48 bits address, every result refreshes the ScanCache.
+ */
+public class U2FBLEScanner extends ScanCallback {
+
+	public static interface Listener {
+		public void onDeviceFound(BluetoothDevice device, ScanResult result);
+		public void onScanFailed(int errorCode);
+	}
+
+	public static final long DEFAULT_REPORT_DELAY = 500;
+
+	private BluetoothAdapter bluetoothAdapter;
+	private Logger logger;
+	private Listener listener;
+	private boolean serviceFilter;
+	private long reportDelay;
+	private int scanMode;
+	private boolean scanning;
+	private LongHashSet seen;
+	private long callbacks;
+	private long results;
+	private long duplicates;
+
+	public U2FBLEScanner(BluetoothAdapter bluetoothAdapter, Logger logger, Listener listener) {
+		this.bluetoothAdapter = bluetoothAdapter;
+		this.logger = logger;
+		this.listener = listener;
+		serviceFilter = true;
+		reportDelay = DEFAULT_REPORT_DELAY;
+		scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+		seen = new LongHashSet();
+	}
+
+	/* Disable to find authenticators only advertising the U2F service in their scan response */
+	public void setServiceFilter(boolean serviceFilter) {
+		this.serviceFilter = serviceFilter;
+	}
+
+	/* 0 reports each advertisement as it is received */
+	public void setReportDelay(long reportDelay) {
+		this.reportDelay = reportDelay;
+	}
+
+	public void setScanMode(int scanMode) {
+		this.scanMode = scanMode;
+	}
+
+	/* Parses a "AA:BB:CC:DD:EE:FF" address without allocating, returns -1 if invalid */
+	public static long addressToLong(String address) {
+		if ((address == null) || (address.length() != 17)) {
+			return -1;
+		}
+		long result = 0;
+		for (int i=0; i<17; i++) {
+			char c = address.charAt(i);
+			if ((i % 3) == 2) {
+				if (c != ':') {
+					return -1;
+				}
+				continue;
+			}
+			int digit = Character.digit(c, 16);
+			if (digit < 0) {
+				return -1;
+			}
+			result = (result << 4) | digit;
+		}
+		return result;
+	}
+
+	public synchronized void start() {
+		if (scanning) {
+			return;
+		}
+		BluetoothLeScanner bluetoothScanner = bluetoothAdapter.getBluetoothLeScanner();
+		Vector<ScanFilter> filters = new Vector<ScanFilter>();
+		ScanFilter.Builder builder = new ScanFilter.Builder();
+		if (serviceFilter) {
+			builder.setServiceUuid(new ParcelUuid(U2FBLEDevice.U2F_SERVICE_UUID));
+		}
+		filters.add(builder.build());
+		long delay = reportDelay;
+		if ((delay != 0) && !bluetoothAdapter.isOffloadedScanBatchingSupported()) {
+			logger.debug("Scan batching not supported by the controller, reporting immediately");
+			delay = 0;
+		}
+		logger.debug("Scanning " + (serviceFilter ? "U2F service" : "all devices") +
+			(serviceFilter ? (bluetoothAdapter.isOffloadedFilteringSupported() ? ", filtered by the controller" : ", filtered by the host") : "") +
+			", report delay " + delay + " ms");
+		ScanSettings.Builder builderScanSettings = new ScanSettings.Builder();
+		builderScanSettings.setScanMode(scanMode);
+		builderScanSettings.setReportDelay(delay);
+		seen.clear();
+		callbacks = 0;
+		results = 0;
+		duplicates = 0;
+		scanning = true;
+		bluetoothScanner.startScan(filters, builderScanSettings.build(), this);
+	}
+
+	public synchronized void stop() {
+		if (!scanning) {
+			return;
+		}
+		BluetoothLeScanner bluetoothScanner = bluetoothAdapter.getBluetoothLeScanner();
+		/* deliver the results still held in the controller batch */
+		bluetoothScanner.flushPendingScanResults(this);
+		bluetoothScanner.stopScan(this);
+		scanning = false;
+		logger.debug("Scan stopped, " + seen.size() + " devices, " + results + " results in " + callbacks + " callbacks, " + duplicates + " duplicates");
+	}
+
+	public synchronized boolean isScanning() {
+		return scanning;
+	}
+
+	private void handleResult(ScanResult result) {
+		BluetoothDevice device = result.getDevice();
+		ScanCache.getInstance().update(result);
+		long key = addressToLong(device.getAddress());
+		boolean added;
+		synchronized(this) {
+			results++;
+			added = seen.add(key);
+			if (!added) {
+				duplicates++;
+			}
+		}
+		if (added) {
+			listener.onDeviceFound(device, result);
+		}
+	}
+
+	@Override
+	public void onScanResult(int callbackType, ScanResult result) {
+		synchronized(this) {
+			callbacks++;
+		}
+		handleResult(result);
+	}
+
+	@Override
+	public void onBatchScanResults(List<ScanResult> batch) {
+		synchronized(this) {
+			callbacks++;
+		}
+		for (ScanResult result : batch) {
+			handleResult(result);
+		}
+	}
+
+	@Override
+	public void onScanFailed(int errorCode) {
+		synchronized(this) {
+			scanning = false;
+		}
+		logger.error("Scan failed " + errorCode);
+		listener.onScanFailed(errorCode);
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.apdus;
+
+import java.util.Vector;
+
+import com.ledger.u2fbletest.utils.FrameWriter;
+
+/*
+ * Encodes extended length APDUs (CLA INS P1 P2 00 Lc1 Lc2 data Le1 Le2) either into a
+ * preallocated buffer or directly into transport frames.
+ */
+public class ApduWriter {
+
+	/* the whole APDU, header, Lc and Le included, must fit in the length field of a transport message */
+	public static final int MAX_DATA_LENGTH = FrameWriter.MAX_LENGTH - 4 - 3 - 2;
+
+	private FrameWriter frameWriter;
+	private byte[] buffer;
+	private int offset;
+
+	public ApduWriter(FrameWriter frameWriter) {
+		this.frameWriter = frameWriter;
+	}
+
+	public ApduWriter(byte[] buffer, int offset) {
+		this.buffer = buffer;
+		this.offset = offset;
+	}
+
+	public static int getLength(int dataLength) {
+		if ((dataLength < 0) || (dataLength > MAX_DATA_LENGTH)) {
+			throw new RuntimeException("Invalid APDU data length " + dataLength);
+		}
+		if (dataLength == 0) {
+			return 4 + 3;
+		}
+		return 4 + 3 + dataLength + 2;
+	}
+
+	public static int getLength(Apdu apdu) {
+		return getLength(apdu.getDataLength());
+	}
+
+	public static byte[] serialize(Apdu apdu) {
+		byte[] result = new byte[getLength(apdu)];
+		apdu.writeTo(new ApduWriter(result, 0));
+		return result;
+	}
+
+	public static Vector<byte[]> split(int command, Apdu apdu, int chunkSize) {
+		FrameWriter frameWriter = new FrameWriter(command, getLength(apdu), chunkSize);
+		apdu.writeTo(new ApduWriter(frameWriter));
+		return frameWriter.getFrames();
+	}
+
+	public void write(int b) {
+		if (frameWriter != null) {
+			frameWriter.write(b);
+		}
+		else {
+			buffer[offset++] = (byte)b;
+		}
+	}
+
+	public void write(byte[] data, int dataOffset, int length) {
+		if (frameWriter != null) {
+			frameWriter.write(data, dataOffset, length);
+		}
+		else {
+			System.arraycopy(data, dataOffset, buffer, offset, length);
+			offset += length;
+		}
+	}
+
+	public void write(byte[] data) {
+		write(data, 0, data.length);
+	}
+
+	public void writeHeader(int cla, int ins, int p1, int p2, int dataLength) {
+		getLength(dataLength);
+		write(cla);
+		write(ins);
+		write(p1);
+		write(p2);
+		write(0x00);
+		if (dataLength != 0) {
+			write(dataLength >> 8); // l1
+			write(dataLength); // l2
+		}
+	}
+
+	public void writeLe() {
+		write(0x00); // le1
+		write(0x00); // le2
+	}
+
+}
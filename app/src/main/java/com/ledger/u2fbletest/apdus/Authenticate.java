@@ -18,11 +18,9 @@
 
 package com.ledger.u2fbletest.apdus;
 
-import java.io.ByteArrayOutputStream;
-
 import com.ledger.u2fbletest.utils.Dump;
 
-public class Authenticate {
+public class Authenticate implements Apdu {
 	
 	private byte[] challenge;
 	private byte[] applicationParameter;
@@ -36,6 +34,9 @@ public class Authenticate {
 		if (applicationParameter.length != 32) {
 			throw new RuntimeException("Invalid application parameter");
 		}
+		if (keyHandle.length > 255) {
+			throw new RuntimeException("Invalid key handle");
+		}
 		this.challenge = challenge;
 		this.applicationParameter = applicationParameter;
 		this.keyHandle = keyHandle;
@@ -62,22 +63,21 @@ public class Authenticate {
 		return checkOnly;
 	}
 	
+	public int getDataLength() {
+		return 32 + 32 + 1 + keyHandle.length;
+	}
+	
+	public void writeTo(ApduWriter writer) {
+		writer.writeHeader(0x00, 0x02, checkOnly ? 0x07 : 0x03, 0x00, getDataLength()); // cla ins p1 p2 lc
+		writer.write(challenge, 0, 32);
+		writer.write(applicationParameter, 0, 32);
+		writer.write(keyHandle.length);
+		writer.write(keyHandle, 0, keyHandle.length);
+		writer.writeLe();
+	}
+	
 	public byte[] serialize() {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		bos.write(0x00); // cla
-		bos.write(0x02); // ins
-		bos.write(checkOnly ? 0x07 : 0x03); // p1
-		bos.write(0x00); // p2
-		bos.write(0x00); // 00
-		bos.write(0x00); // l1
-		bos.write(0x40 + 1 + keyHandle.length); // l2
-		bos.write(challenge, 0, 32);
-		bos.write(applicationParameter, 0, 32);
-		bos.write(keyHandle.length);
-		bos.write(keyHandle, 0, keyHandle.length);
-		bos.write(0x00); // le1
-		bos.write(0x00); // le2
-		return bos.toByteArray();
+		return ApduWriter.serialize(this);
 	}
 	
 	public String toString() {
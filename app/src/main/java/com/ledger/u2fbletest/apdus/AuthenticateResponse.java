@@ -38,6 +38,9 @@ public class AuthenticateResponse {
 	
 	public static AuthenticateResponse parse(byte[] data) {
 		int offset = 0;
+		if (data.length < 1 + 4 + 2) {
+			throw new RuntimeException("Truncated authenticate response");
+		}
 		byte userPresenceFlag = data[offset++];
 		int counter = ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
 		offset += 4;
@@ -46,6 +49,9 @@ public class AuthenticateResponse {
 		}
 		int signatureLength;
 		signatureLength = (data[offset + 1] & 0xff);
+		if (offset + signatureLength + 2 > data.length) {
+			throw new RuntimeException("Truncated signature");
+		}
 		byte[] signature = new byte[signatureLength + 2];
 		System.arraycopy(data, offset, signature, 0, signatureLength + 2);
 		offset += signatureLength + 2;
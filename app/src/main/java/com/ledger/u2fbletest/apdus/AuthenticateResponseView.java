@@ -0,0 +1,144 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.apdus;
+
+import java.nio.ByteBuffer;
+
+import com.ledger.u2fbletest.utils.Dump;
+
+/*
+ * Flyweight view over a raw authenticate response. Only offsets into the wrapped buffer are kept,
+ * the instance can be reused for the next response by calling wrap again.
+ */
+public class AuthenticateResponseView {
+
+	private static final byte DER_SEQ = 0x30;
+
+	private byte[] data;
+	private byte userPresenceFlag;
+	private int counter;
+	private int signatureOffset;
+	private int signatureLength;
+	private int end;
+
+	public AuthenticateResponseView wrap(byte[] data) {
+		return wrap(data, 0, data.length);
+	}
+
+	public AuthenticateResponseView wrap(byte[] data, int offset, int length) {
+		int limit = offset + length;
+		clear();
+		if (length < 1 + 4 + 2) {
+			throw new RuntimeException("Truncated authenticate response");
+		}
+		byte userPresenceFlag = data[offset++];
+		int counter = ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+		offset += 4;
+		if (data[offset] != DER_SEQ) {
+			throw new RuntimeException("Invalid DER sequence for signature");
+		}
+		int signatureOffset = offset;
+		int signatureLength = (data[offset + 1] & 0xff) + 2;
+		offset += signatureLength;
+		if (offset > limit) {
+			throw new RuntimeException("Truncated signature");
+		}
+		this.data = data;
+		this.userPresenceFlag = userPresenceFlag;
+		this.counter = counter;
+		this.signatureOffset = signatureOffset;
+		this.signatureLength = signatureLength;
+		this.end = offset;
+		return this;
+	}
+
+	public void clear() {
+		data = null;
+		userPresenceFlag = 0;
+		counter = 0;
+		signatureOffset = 0;
+		signatureLength = 0;
+		end = 0;
+	}
+
+	public boolean isValid() {
+		return (data != null);
+	}
+
+	private void checkValid() {
+		if (data == null) {
+			throw new RuntimeException("No authenticate response wrapped");
+		}
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	/* Offset just after the signature, i.e. where the status word starts if present */
+	public int getEnd() {
+		return end;
+	}
+
+	public byte getUserPresenceFlag() {
+		return userPresenceFlag;
+	}
+
+	public int getCounter() {
+		return counter;
+	}
+
+	public int getSignatureOffset() {
+		return signatureOffset;
+	}
+
+	public int getSignatureLength() {
+		return signatureLength;
+	}
+
+	public int getSignature(byte[] dest, int destOffset) {
+		checkValid();
+		System.arraycopy(data, signatureOffset, dest, destOffset, signatureLength);
+		return signatureLength;
+	}
+
+	public ByteBuffer getSignatureBuffer() {
+		checkValid();
+		return ByteBuffer.wrap(data, signatureOffset, signatureLength).slice().asReadOnlyBuffer();
+	}
+
+	public AuthenticateResponse toAuthenticateResponse() {
+		byte[] signature = new byte[signatureLength];
+		getSignature(signature, 0);
+		return new AuthenticateResponse(userPresenceFlag, counter, signature);
+	}
+
+	public String toString() {
+		if (data == null) {
+			return "Authenticate response view (empty)";
+		}
+		StringBuffer response = new StringBuffer();
+		response.append("Authenticate response");
+		response.append("\n\tUser presence : ").append(userPresenceFlag);
+		response.append("\n\tCounter : ").append(counter);
+		response.append("\n\tSignature : ").append(Dump.dump(data, signatureOffset, signatureLength));
+		return response.toString();
+	}
+
+}
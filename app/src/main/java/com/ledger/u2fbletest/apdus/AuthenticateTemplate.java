@@ -0,0 +1,122 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.apdus;
+
+import com.ledger.u2fbletest.utils.ChallengePool;
+
+/*
+ * Preserialized authenticate APDU, the challenge, control byte, application parameter and key handle are patched
+ * in place. The buffer is only reallocated when the key handle length changes. The buffer is reused, a template
+ * must only be used for one exchange at a time.
+ */
+public class AuthenticateTemplate implements Apdu {
+
+	private static final int P1_OFFSET = 2;
+	private static final int CHALLENGE_OFFSET = 7;
+	private static final int APPLICATION_PARAMETER_OFFSET = CHALLENGE_OFFSET + 32;
+	private static final int KEY_HANDLE_LENGTH_OFFSET = APPLICATION_PARAMETER_OFFSET + 32;
+	private static final int KEY_HANDLE_OFFSET = KEY_HANDLE_LENGTH_OFFSET + 1;
+	private static final int P1_ENFORCE = 0x03;
+	private static final int P1_CHECK_ONLY = 0x07;
+
+	private byte[] apdu;
+	private int keyHandleLength;
+
+	public AuthenticateTemplate(byte[] applicationParameter, byte[] keyHandle, boolean checkOnly) {
+		apdu = new Authenticate(new byte[32], applicationParameter, keyHandle, checkOnly).serialize();
+		keyHandleLength = keyHandle.length;
+	}
+
+	public AuthenticateTemplate setChallenge(byte[] challenge) {
+		if (challenge.length != 32) {
+			throw new RuntimeException("Invalid challenge");
+		}
+		System.arraycopy(challenge, 0, apdu, CHALLENGE_OFFSET, 32);
+		return this;
+	}
+
+	public AuthenticateTemplate nextChallenge(ChallengePool pool) {
+		pool.next(apdu, CHALLENGE_OFFSET);
+		return this;
+	}
+
+	public AuthenticateTemplate setApplicationParameter(byte[] applicationParameter) {
+		if (applicationParameter.length != 32) {
+			throw new RuntimeException("Invalid application parameter");
+		}
+		System.arraycopy(applicationParameter, 0, apdu, APPLICATION_PARAMETER_OFFSET, 32);
+		return this;
+	}
+
+	public AuthenticateTemplate setKeyHandle(byte[] keyHandle) {
+		if (keyHandle.length != keyHandleLength) {
+			apdu = new Authenticate(getChallenge(), getApplicationParameter(), keyHandle, isCheckOnly()).serialize();
+			keyHandleLength = keyHandle.length;
+			return this;
+		}
+		System.arraycopy(keyHandle, 0, apdu, KEY_HANDLE_OFFSET, keyHandleLength);
+		return this;
+	}
+
+	public AuthenticateTemplate setCheckOnly(boolean checkOnly) {
+		apdu[P1_OFFSET] = (byte)(checkOnly ? P1_CHECK_ONLY : P1_ENFORCE);
+		return this;
+	}
+
+	public boolean isCheckOnly() {
+		return (apdu[P1_OFFSET] == P1_CHECK_ONLY);
+	}
+
+	private byte[] copy(int offset, int length) {
+		byte[] result = new byte[length];
+		System.arraycopy(apdu, offset, result, 0, length);
+		return result;
+	}
+
+	public byte[] getChallenge() {
+		return copy(CHALLENGE_OFFSET, 32);
+	}
+
+	public byte[] getApplicationParameter() {
+		return copy(APPLICATION_PARAMETER_OFFSET, 32);
+	}
+
+	public byte[] getKeyHandle() {
+		return copy(KEY_HANDLE_OFFSET, keyHandleLength);
+	}
+
+	/* Request currently held, for signature checks */
+	public Authenticate toAuthenticate() {
+		return new Authenticate(getChallenge(), getApplicationParameter(), getKeyHandle(), isCheckOnly());
+	}
+
+	/* Internal buffer, valid until the template is patched again */
+	public byte[] getBytes() {
+		return apdu;
+	}
+
+	public int getDataLength() {
+		return 32 + 32 + 1 + keyHandleLength;
+	}
+
+	public void writeTo(ApduWriter writer) {
+		writer.write(apdu);
+	}
+
+}
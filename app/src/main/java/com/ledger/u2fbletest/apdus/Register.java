@@ -18,11 +18,9 @@
 
 package com.ledger.u2fbletest.apdus;
 
-import java.io.ByteArrayOutputStream;
-
 import com.ledger.u2fbletest.utils.Dump;
 
-public class Register {
+public class Register implements Apdu {
 	
 	private byte[] challenge;
 	private byte[] applicationParameter;
@@ -46,20 +44,19 @@ public class Register {
 		return applicationParameter;
 	}
 	
+	public int getDataLength() {
+		return 32 + 32;
+	}
+	
+	public void writeTo(ApduWriter writer) {
+		writer.writeHeader(0x00, 0x01, 0x00, 0x00, getDataLength()); // cla ins p1 p2 lc
+		writer.write(challenge, 0, 32);
+		writer.write(applicationParameter, 0, 32);
+		writer.writeLe();
+	}
+	
 	public byte[] serialize() {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		bos.write(0x00); // cla
-		bos.write(0x01); // ins
-		bos.write(0x00); // p1
-		bos.write(0x00); // p2
-		bos.write(0x00); // 00
-		bos.write(0x00); // l1
-		bos.write(0x40); // l2
-		bos.write(challenge, 0, 32);
-		bos.write(applicationParameter, 0, 32);
-		bos.write(0x00); // le1
-		bos.write(0x00); // le2
-		return bos.toByteArray();
+		return ApduWriter.serialize(this);
 	}
 	
 	public String toString() {
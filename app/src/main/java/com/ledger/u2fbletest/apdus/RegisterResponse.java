@@ -41,8 +41,15 @@ public class RegisterResponse {
 		this.signature = signature;
 	}
 	
+	private static void checkAvailable(byte[] data, int offset, int length, String field) {
+		if ((length < 0) || (offset + length > data.length)) {
+			throw new RuntimeException("Truncated " + field);
+		}
+	}
+	
 	public static RegisterResponse parse(byte[] data) {
 		int offset = 0;		
+		checkAvailable(data, offset, 1 + 65 + 1, "public key");
 		if (data[offset++] != RESERVED) {
 			throw new RuntimeException("Invalid reserved byte");
 		}
@@ -50,6 +57,7 @@ public class RegisterResponse {
 		System.arraycopy(data, offset, publicKey, 0, 65);
 		offset += 65;
 		int keyHandleLength = (data[offset++] & 0xff);
+		checkAvailable(data, offset, keyHandleLength + 2, "key handle");
 		byte[] keyHandle = new byte[keyHandleLength];
 		System.arraycopy(data,  offset, keyHandle, 0, keyHandleLength);
 		offset += keyHandleLength;		
@@ -59,17 +67,20 @@ public class RegisterResponse {
 		int certificateLength;
 		int certificateHeaderLength;		
 		if (data[offset + 1] == DER_LEN_1) {
+			checkAvailable(data, offset, 3, "certificate header");
 			certificateLength = (data[offset + 2] & 0xff);
 			certificateHeaderLength = 3;
 		}
 		else
 		if (data[offset + 1] == DER_LEN_2) {
+			checkAvailable(data, offset, 4, "certificate header");
 			certificateLength = ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
 			certificateHeaderLength = 4;
 		}
 		else {
 			throw new RuntimeException("Invalid certificate length");
 		}
+		checkAvailable(data, offset, certificateHeaderLength + certificateLength + 2, "certificate");
 		byte[] certificate = new byte[certificateHeaderLength + certificateLength];
 		System.arraycopy(data,  offset, certificate, 0, certificateHeaderLength + certificateLength);
 		offset += certificateHeaderLength + certificateLength;
@@ -78,6 +89,7 @@ public class RegisterResponse {
 		}
 		int signatureLength;
 		signatureLength = (data[offset + 1] & 0xff);
+		checkAvailable(data, offset, signatureLength + 2, "signature");
 		byte[] signature = new byte[signatureLength + 2];
 		System.arraycopy(data, offset, signature, 0, signatureLength + 2);
 		offset += signatureLength + 2;
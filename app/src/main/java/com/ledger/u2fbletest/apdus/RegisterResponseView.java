@@ -0,0 +1,246 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.apdus;
+
+import java.nio.ByteBuffer;
+
+import com.ledger.u2fbletest.utils.Dump;
+
+/*
+ * Flyweight view over a raw register response. Only offsets into the wrapped buffer are kept,
+ * the instance can be reused for the next response by calling wrap again.
+ */
+public class RegisterResponseView {
+
+	private static final byte RESERVED = 0x05;
+	private static final byte DER_SEQ = 0x30;
+	private static final byte DER_LEN_1 = (byte)0x81;
+	private static final byte DER_LEN_2 = (byte)0x82;
+
+	public static final int PUBLIC_KEY_LENGTH = 65;
+
+	private byte[] data;
+	private int publicKeyOffset;
+	private int keyHandleOffset;
+	private int keyHandleLength;
+	private int certificateOffset;
+	private int certificateLength;
+	private int signatureOffset;
+	private int signatureLength;
+	private int end;
+
+	public RegisterResponseView wrap(byte[] data) {
+		return wrap(data, 0, data.length);
+	}
+
+	public RegisterResponseView wrap(byte[] data, int offset, int length) {
+		int limit = offset + length;
+		clear();
+		if (length < 1 + PUBLIC_KEY_LENGTH + 1) {
+			throw new RuntimeException("Truncated register response");
+		}
+		if (data[offset++] != RESERVED) {
+			throw new RuntimeException("Invalid reserved byte");
+		}
+		int publicKeyOffset = offset;
+		offset += PUBLIC_KEY_LENGTH;
+		int keyHandleLength = (data[offset++] & 0xff);
+		int keyHandleOffset = offset;
+		offset += keyHandleLength;
+		if (offset + 2 > limit) {
+			throw new RuntimeException("Truncated key handle");
+		}
+		if (data[offset] != DER_SEQ) {
+			throw new RuntimeException("Invalid DER sequence for certificate");
+		}
+		int certificateLength;
+		int certificateHeaderLength;
+		if (data[offset + 1] == DER_LEN_1) {
+			certificateHeaderLength = 3;
+			if (offset + certificateHeaderLength > limit) {
+				throw new RuntimeException("Truncated certificate length");
+			}
+			certificateLength = (data[offset + 2] & 0xff);
+		}
+		else
+		if (data[offset + 1] == DER_LEN_2) {
+			certificateHeaderLength = 4;
+			if (offset + certificateHeaderLength > limit) {
+				throw new RuntimeException("Truncated certificate length");
+			}
+			certificateLength = ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+		}
+		else {
+			throw new RuntimeException("Invalid certificate length");
+		}
+		int certificateOffset = offset;
+		certificateLength += certificateHeaderLength;
+		offset += certificateLength;
+		if (offset + 2 > limit) {
+			throw new RuntimeException("Truncated certificate");
+		}
+		if (data[offset] != DER_SEQ) {
+			throw new RuntimeException("Invalid DER sequence for signature");
+		}
+		int signatureOffset = offset;
+		int signatureLength = (data[offset + 1] & 0xff) + 2;
+		offset += signatureLength;
+		if (offset > limit) {
+			throw new RuntimeException("Truncated signature");
+		}
+		this.data = data;
+		this.publicKeyOffset = publicKeyOffset;
+		this.keyHandleOffset = keyHandleOffset;
+		this.keyHandleLength = keyHandleLength;
+		this.certificateOffset = certificateOffset;
+		this.certificateLength = certificateLength;
+		this.signatureOffset = signatureOffset;
+		this.signatureLength = signatureLength;
+		this.end = offset;
+		return this;
+	}
+
+	public void clear() {
+		data = null;
+		publicKeyOffset = 0;
+		keyHandleOffset = 0;
+		keyHandleLength = 0;
+		certificateOffset = 0;
+		certificateLength = 0;
+		signatureOffset = 0;
+		signatureLength = 0;
+		end = 0;
+	}
+
+	public boolean isValid() {
+		return (data != null);
+	}
+
+	private void checkValid() {
+		if (data == null) {
+			throw new RuntimeException("No register response wrapped");
+		}
+	}
+
+	private int copy(int offset, int length, byte[] dest, int destOffset) {
+		checkValid();
+		System.arraycopy(data, offset, dest, destOffset, length);
+		return length;
+	}
+
+	private ByteBuffer slice(int offset, int length) {
+		checkValid();
+		return ByteBuffer.wrap(data, offset, length).slice().asReadOnlyBuffer();
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	/* Offset just after the signature, i.e. where the status word starts if present */
+	public int getEnd() {
+		return end;
+	}
+
+	public int getPublicKeyOffset() {
+		return publicKeyOffset;
+	}
+
+	public int getPublicKey(byte[] dest, int destOffset) {
+		return copy(publicKeyOffset, PUBLIC_KEY_LENGTH, dest, destOffset);
+	}
+
+	public ByteBuffer getPublicKeyBuffer() {
+		return slice(publicKeyOffset, PUBLIC_KEY_LENGTH);
+	}
+
+	public int getKeyHandleOffset() {
+		return keyHandleOffset;
+	}
+
+	public int getKeyHandleLength() {
+		return keyHandleLength;
+	}
+
+	public int getKeyHandle(byte[] dest, int destOffset) {
+		return copy(keyHandleOffset, keyHandleLength, dest, destOffset);
+	}
+
+	public ByteBuffer getKeyHandleBuffer() {
+		return slice(keyHandleOffset, keyHandleLength);
+	}
+
+	public int getCertificateOffset() {
+		return certificateOffset;
+	}
+
+	public int getCertificateLength() {
+		return certificateLength;
+	}
+
+	public int getCertificate(byte[] dest, int destOffset) {
+		return copy(certificateOffset, certificateLength, dest, destOffset);
+	}
+
+	public ByteBuffer getCertificateBuffer() {
+		return slice(certificateOffset, certificateLength);
+	}
+
+	public int getSignatureOffset() {
+		return signatureOffset;
+	}
+
+	public int getSignatureLength() {
+		return signatureLength;
+	}
+
+	public int getSignature(byte[] dest, int destOffset) {
+		return copy(signatureOffset, signatureLength, dest, destOffset);
+	}
+
+	public ByteBuffer getSignatureBuffer() {
+		return slice(signatureOffset, signatureLength);
+	}
+
+	public RegisterResponse toRegisterResponse() {
+		byte[] publicKey = new byte[PUBLIC_KEY_LENGTH];
+		byte[] keyHandle = new byte[keyHandleLength];
+		byte[] certificate = new byte[certificateLength];
+		byte[] signature = new byte[signatureLength];
+		getPublicKey(publicKey, 0);
+		getKeyHandle(keyHandle, 0);
+		getCertificate(certificate, 0);
+		getSignature(signature, 0);
+		return new RegisterResponse(publicKey, keyHandle, certificate, signature);
+	}
+
+	public String toString() {
+		if (data == null) {
+			return "Register response view (empty)";
+		}
+		StringBuffer response = new StringBuffer();
+		response.append("Register response");
+		response.append("\n\tPublic key : ").append(Dump.dump(data, publicKeyOffset, PUBLIC_KEY_LENGTH));
+		response.append("\n\tKey handle : ").append(Dump.dump(data, keyHandleOffset, keyHandleLength));
+		response.append("\n\tCertificate : ").append(Dump.dump(data, certificateOffset, certificateLength));
+		response.append("\n\tSignature : ").append(Dump.dump(data, signatureOffset, signatureLength));
+		return response.toString();
+	}
+
+}
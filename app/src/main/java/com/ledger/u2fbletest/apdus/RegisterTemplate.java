@@ -0,0 +1,83 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.apdus;
+
+import com.ledger.u2fbletest.utils.ChallengePool;
+
+/*
+ * Preserialized register APDU for a fixed application parameter, only the challenge is patched before each send.
+ * The buffer is reused, a template must only be used for one exchange at a time.
+ */
+public class RegisterTemplate implements Apdu {
+
+	private static final int CHALLENGE_OFFSET = 7;
+	private static final int APPLICATION_PARAMETER_OFFSET = CHALLENGE_OFFSET + 32;
+
+	private byte[] apdu;
+
+	public RegisterTemplate(byte[] applicationParameter) {
+		apdu = new Register(new byte[32], applicationParameter).serialize();
+	}
+
+	public RegisterTemplate setChallenge(byte[] challenge) {
+		if (challenge.length != 32) {
+			throw new RuntimeException("Invalid challenge");
+		}
+		System.arraycopy(challenge, 0, apdu, CHALLENGE_OFFSET, 32);
+		return this;
+	}
+
+	public RegisterTemplate nextChallenge(ChallengePool pool) {
+		pool.next(apdu, CHALLENGE_OFFSET);
+		return this;
+	}
+
+	private byte[] copy(int offset, int length) {
+		byte[] result = new byte[length];
+		System.arraycopy(apdu, offset, result, 0, length);
+		return result;
+	}
+
+	public byte[] getChallenge() {
+		return copy(CHALLENGE_OFFSET, 32);
+	}
+
+	public byte[] getApplicationParameter() {
+		return copy(APPLICATION_PARAMETER_OFFSET, 32);
+	}
+
+	/* Request currently held, for signature checks */
+	public Register toRegister() {
+		return new Register(getChallenge(), getApplicationParameter());
+	}
+
+	/* Internal buffer, valid until the template is patched again */
+	public byte[] getBytes() {
+		return apdu;
+	}
+
+	public int getDataLength() {
+		return 32 + 32;
+	}
+
+	public void writeTo(ApduWriter writer) {
+		writer.write(apdu);
+	}
+
+}
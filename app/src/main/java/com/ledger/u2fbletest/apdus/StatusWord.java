@@ -0,0 +1,45 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.apdus;
+
+public class StatusWord {
+
+	public static final int SW_NO_ERROR = 0x9000;
+	public static final int SW_WRONG_LENGTH = 0x6700;
+	public static final int SW_CONDITIONS_NOT_SATISFIED = 0x6985;
+	public static final int SW_WRONG_DATA = 0x6A80;
+	public static final int SW_INS_NOT_SUPPORTED = 0x6D00;
+	public static final int SW_CLA_NOT_SUPPORTED = 0x6E00;
+
+	public static int getStatusWord(byte[] response) {
+		if ((response == null) || (response.length < 2)) {
+			throw new RuntimeException("Missing status word");
+		}
+		return ((response[response.length - 2] & 0xff) << 8) | (response[response.length - 1] & 0xff);
+	}
+
+	public static String toString(int statusWord) {
+		String result = Integer.toHexString(statusWord & 0xffff);
+		while (result.length() < 4) {
+			result = "0" + result;
+		}
+		return result;
+	}
+
+}
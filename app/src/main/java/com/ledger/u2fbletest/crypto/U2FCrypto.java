@@ -18,7 +18,12 @@
 
 package com.ledger.u2fbletest.crypto;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
 
 import org.spongycastle.asn1.ASN1InputStream;
 import org.spongycastle.asn1.ASN1Integer;
@@ -32,27 +37,37 @@ import org.spongycastle.crypto.signers.ECDSASigner;
 
 import com.ledger.u2fbletest.apdus.Authenticate;
 import com.ledger.u2fbletest.apdus.AuthenticateResponse;
+import com.ledger.u2fbletest.apdus.AuthenticateResponseView;
 import com.ledger.u2fbletest.apdus.Register;
 import com.ledger.u2fbletest.apdus.RegisterResponse;
+import com.ledger.u2fbletest.apdus.RegisterResponseView;
 
 public class U2FCrypto {
 	
 	public static final X9ECParameters CURVE_PARAMS = CustomNamedCurves.getByName("secp256r1");
 	public static final ECDomainParameters CURVE = new ECDomainParameters(CURVE_PARAMS.getCurve(), CURVE_PARAMS.getG(), CURVE_PARAMS.getN(), CURVE_PARAMS.getH());
 	
-	public static boolean checkRegisterSignature(Register input, RegisterResponse output, byte[] publicKeyPoint) {
+	private static final byte P256_SUBJECT_PUBLIC_KEY_MARKER[] = { (byte)0x30, (byte)0x59, (byte)0x30, (byte)0x13, (byte)0x06, (byte)0x07, (byte)0x2A, (byte)0x86, (byte)0x48, (byte)0xCE, (byte)0x3D, (byte)0x02, (byte)0x01, (byte)0x06, (byte)0x08, (byte)0x2A, (byte)0x86, (byte)0x48, (byte)0xCE, (byte)0x3D, (byte)0x03, (byte)0x01, (byte)0x07, (byte)0x03, (byte)0x42, (byte)0x00 };
+	
+	/* Returns the attestation public key point, or null if the certificate does not use a P-256 key */
+	public static byte[] getAttestationPublicKey(byte[] certificate) throws CertificateException {
+		return getAttestationPublicKey(certificate, 0, certificate.length);
+	}
+	
+	public static byte[] getAttestationPublicKey(byte[] data, int offset, int length) throws CertificateException {
+		X509Certificate x509 = (X509Certificate)CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(data, offset, length));
+		byte[] encodedPublicKey = x509.getPublicKey().getEncoded();
+		if (!Arrays.equals(Arrays.copyOfRange(encodedPublicKey, 0, P256_SUBJECT_PUBLIC_KEY_MARKER.length), P256_SUBJECT_PUBLIC_KEY_MARKER)) {
+			return null;
+		}
+		return Arrays.copyOfRange(encodedPublicKey, P256_SUBJECT_PUBLIC_KEY_MARKER.length, P256_SUBJECT_PUBLIC_KEY_MARKER.length + 65);
+	}
+	
+	private static boolean verifySignature(byte[] publicKeyPoint, byte[] message, byte[] signature, int offset, int length) {
 		ECDSASigner signer = new ECDSASigner();
-		SHA256Digest sha256 = new SHA256Digest();
-		byte[] message = new byte[32];
 		ECPublicKeyParameters parameters = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(publicKeyPoint), CURVE);
 		signer.init(false, parameters);
-		sha256.update((byte)0x00);
-		sha256.update(input.getApplicationParameter(), 0, input.getApplicationParameter().length);
-		sha256.update(input.getChallenge(), 0, input.getChallenge().length);
-		sha256.update(output.getKeyHandle(), 0, output.getKeyHandle().length);
-		sha256.update(output.getPublicKey(), 0, output.getPublicKey().length);
-		sha256.doFinal(message, 0);
-		ASN1InputStream decoder = new ASN1InputStream(output.getSignature());
+		ASN1InputStream decoder = new ASN1InputStream(new ByteArrayInputStream(signature, offset, length));
 		try {
 			ASN1Sequence seq = ASN1Sequence.getInstance(decoder.readObject());
 			ASN1Integer r = (ASN1Integer)seq.getObjectAt(0);
@@ -71,37 +86,54 @@ public class U2FCrypto {
 		}		
 	}
 	
-	public static boolean checkAuthenticateSignature(Authenticate input, AuthenticateResponse output, RegisterResponse registerData) {
-		ECDSASigner signer = new ECDSASigner();
+	public static boolean checkRegisterSignature(Register input, RegisterResponse output, byte[] publicKeyPoint) {
 		SHA256Digest sha256 = new SHA256Digest();
 		byte[] message = new byte[32];
-		ECPublicKeyParameters parameters = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(registerData.getPublicKey()), CURVE);
-		signer.init(false, parameters);
+		sha256.update((byte)0x00);
 		sha256.update(input.getApplicationParameter(), 0, input.getApplicationParameter().length);
-		sha256.update(output.getUserPresenceFlag());
-		sha256.update((byte)((output.getCounter() >> 24) & 0xff));
-		sha256.update((byte)((output.getCounter() >> 16) & 0xff));
-		sha256.update((byte)((output.getCounter() >> 8) & 0xff));
-		sha256.update((byte)(output.getCounter() & 0xff));
 		sha256.update(input.getChallenge(), 0, input.getChallenge().length);
+		sha256.update(output.getKeyHandle(), 0, output.getKeyHandle().length);
+		sha256.update(output.getPublicKey(), 0, output.getPublicKey().length);
 		sha256.doFinal(message, 0);
-		ASN1InputStream decoder = new ASN1InputStream(output.getSignature());
-		try {
-			ASN1Sequence seq = ASN1Sequence.getInstance(decoder.readObject());
-			ASN1Integer r = (ASN1Integer)seq.getObjectAt(0);
-			ASN1Integer s = (ASN1Integer)seq.getObjectAt(1);
-			return signer.verifySignature(message, r.getValue(), s.getValue());
-		}
-		catch(IOException e) {
-			return false;
-		}			
-		finally {
-			try {
-				decoder.close();
-			}
-			catch(IOException e) {				
-			}
-		}
+		return verifySignature(publicKeyPoint, message, output.getSignature(), 0, output.getSignature().length);
+	}
+	
+	/* Hashes the fields in place in the wrapped response */
+	public static boolean checkRegisterSignature(Register input, RegisterResponseView output, byte[] publicKeyPoint) {
+		SHA256Digest sha256 = new SHA256Digest();
+		byte[] message = new byte[32];
+		byte[] data = output.getData();
+		sha256.update((byte)0x00);
+		sha256.update(input.getApplicationParameter(), 0, input.getApplicationParameter().length);
+		sha256.update(input.getChallenge(), 0, input.getChallenge().length);
+		sha256.update(data, output.getKeyHandleOffset(), output.getKeyHandleLength());
+		sha256.update(data, output.getPublicKeyOffset(), RegisterResponseView.PUBLIC_KEY_LENGTH);
+		sha256.doFinal(message, 0);
+		return verifySignature(publicKeyPoint, message, data, output.getSignatureOffset(), output.getSignatureLength());
+	}
+	
+	private static byte[] getAuthenticateMessage(Authenticate input, byte userPresenceFlag, int counter) {
+		SHA256Digest sha256 = new SHA256Digest();
+		byte[] message = new byte[32];
+		sha256.update(input.getApplicationParameter(), 0, input.getApplicationParameter().length);
+		sha256.update(userPresenceFlag);
+		sha256.update((byte)((counter >> 24) & 0xff));
+		sha256.update((byte)((counter >> 16) & 0xff));
+		sha256.update((byte)((counter >> 8) & 0xff));
+		sha256.update((byte)(counter & 0xff));
+		sha256.update(input.getChallenge(), 0, input.getChallenge().length);
+		sha256.doFinal(message, 0);
+		return message;
+	}
+	
+	public static boolean checkAuthenticateSignature(Authenticate input, AuthenticateResponse output, RegisterResponse registerData) {
+		byte[] message = getAuthenticateMessage(input, output.getUserPresenceFlag(), output.getCounter());
+		return verifySignature(registerData.getPublicKey(), message, output.getSignature(), 0, output.getSignature().length);
+	}
+	
+	public static boolean checkAuthenticateSignature(Authenticate input, AuthenticateResponseView output, RegisterResponse registerData) {
+		byte[] message = getAuthenticateMessage(input, output.getUserPresenceFlag(), output.getCounter());
+		return verifySignature(registerData.getPublicKey(), message, output.getData(), output.getSignatureOffset(), output.getSignatureLength());
 	}
 	
 }
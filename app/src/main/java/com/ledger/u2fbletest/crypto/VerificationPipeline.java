@@ -0,0 +1,248 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.crypto;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ledger.u2fbletest.apdus.Authenticate;
+import com.ledger.u2fbletest.apdus.AuthenticateResponse;
+import com.ledger.u2fbletest.apdus.Register;
+import com.ledger.u2fbletest.apdus.RegisterResponse;
+import com.ledger.u2fbletest.utils.LatencyStats;
+import com.ledger.u2fbletest.utils.Promise;
+
+/*
+ * Verification stage run after the exchanges : completed register and authenticate exchanges are queued, checked
+ * on a pool of workers, and the outcome published through a promise. Submitting never blocks, a full queue
+ * fails the promise instead. Queue wait and verification times are tracked separately.
+ */
+public class VerificationPipeline {
+
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	public static class Result {
+		private boolean checked;
+		private boolean verified;
+		private String detail;
+		private long queueNanos;
+		private long verifyNanos;
+
+		private Result(boolean checked, boolean verified, String detail) {
+			this.checked = checked;
+			this.verified = verified;
+			this.detail = detail;
+		}
+
+		/* False when the signature could not be checked at all, for instance with an unsupported certificate */
+		public boolean isChecked() {
+			return checked;
+		}
+
+		public boolean isVerified() {
+			return verified;
+		}
+
+		public String getDetail() {
+			return detail;
+		}
+
+		public long getQueueNanos() {
+			return queueNanos;
+		}
+
+		public long getVerifyNanos() {
+			return verifyNanos;
+		}
+
+		public String toString() {
+			return (!checked ? "not checked" : verified ? "verified" : "not verified") + (detail != null ? " (" + detail + ")" : "") + " in " +
+				(verifyNanos / 1000) + " us after " + (queueNanos / 1000) + " us queued";
+		}
+	}
+
+	private static abstract class Job {
+		private Promise<Result> promise;
+		private long submitted;
+
+		private Job() {
+			promise = new Promise<Result>();
+		}
+
+		protected abstract Result verify() throws Exception;
+	}
+
+	private ThreadPoolExecutor executor;
+	private LatencyStats queueLatency;
+	private LatencyStats verifyLatency;
+	private int submitted;
+	private int completed;
+	private int verified;
+	private int unchecked;
+	private int rejected;
+	private int failed;
+	private int maxDepth;
+
+	public VerificationPipeline(int workers, int queueSize) {
+		final AtomicInteger index = new AtomicInteger();
+		executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Verification-" + index.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		queueLatency = new LatencyStats();
+		verifyLatency = new LatencyStats();
+	}
+
+	/* One worker per core, keeping one core for the radio and the UI */
+	public VerificationPipeline() {
+		this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), DEFAULT_QUEUE_SIZE);
+	}
+
+	public Promise<Result> verifyRegister(final Register register, final RegisterResponse response) {
+		return submit(new Job() {
+			@Override
+			protected Result verify() throws Exception {
+				byte[] publicKey = U2FCrypto.getAttestationPublicKey(response.getCertificate());
+				if (publicKey == null) {
+					return new Result(false, false, "certificate not handled");
+				}
+				return new Result(true, U2FCrypto.checkRegisterSignature(register, response, publicKey), null);
+			}
+		});
+	}
+
+	public Promise<Result> verifyAuthenticate(final Authenticate authenticate, final AuthenticateResponse response, final RegisterResponse registerResponse) {
+		return submit(new Job() {
+			@Override
+			protected Result verify() throws Exception {
+				return new Result(true, U2FCrypto.checkAuthenticateSignature(authenticate, response, registerResponse), null);
+			}
+		});
+	}
+
+	private Promise<Result> submit(final Job job) {
+		job.submitted = System.nanoTime();
+		Runnable task = new Runnable() {
+			public void run() {
+				long start = System.nanoTime();
+				Result result;
+				try {
+					result = job.verify();
+				}
+				catch(Exception e) {
+					result = new Result(true, false, "error " + e.getMessage());
+				}
+				long end = System.nanoTime();
+				result.queueNanos = start - job.submitted;
+				result.verifyNanos = end - start;
+				queueLatency.add(result.queueNanos);
+				verifyLatency.add(result.verifyNanos);
+				synchronized(VerificationPipeline.this) {
+					completed++;
+					if (!result.checked) {
+						unchecked++;
+					}
+					else
+					if (result.verified) {
+						verified++;
+					}
+					else {
+						failed++;
+					}
+					VerificationPipeline.this.notifyAll();
+				}
+				job.promise.complete(result);
+			}
+		};
+		synchronized(this) {
+			submitted++;
+		}
+		try {
+			executor.execute(task);
+		}
+		catch(RejectedExecutionException e) {
+			synchronized(this) {
+				submitted--;
+				rejected++;
+			}
+			job.promise.fail("Verification queue full");
+			return job.promise;
+		}
+		int depth = executor.getQueue().size();
+		synchronized(this) {
+			maxDepth = Math.max(maxDepth, depth);
+		}
+		return job.promise;
+	}
+
+	/* Waits until every submitted verification is done, returns false on timeout */
+	public synchronized boolean awaitIdle(long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (completed != submitted) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+
+	public synchronized int getVerified() {
+		return verified;
+	}
+
+	public synchronized int getFailed() {
+		return failed;
+	}
+
+	public synchronized int getUnchecked() {
+		return unchecked;
+	}
+
+	public synchronized int getRejected() {
+		return rejected;
+	}
+
+	public LatencyStats getQueueLatency() {
+		return queueLatency;
+	}
+
+	public LatencyStats getVerifyLatency() {
+		return verifyLatency;
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	public synchronized String toString() {
+		return "submitted " + submitted + ", verified " + verified + ", failed " + failed + ", not checked " + unchecked + ", rejected " + rejected + ", depth " +
+			executor.getQueue().size() + " max " + maxDepth + ", queued " + queueLatency + ", verification " + verifyLatency;
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.fuzz;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+import com.ledger.u2fbletest.apdus.Authenticate;
+import com.ledger.u2fbletest.apdus.AuthenticateResponse;
+import com.ledger.u2fbletest.apdus.AuthenticateResponseView;
+import com.ledger.u2fbletest.apdus.Register;
+import com.ledger.u2fbletest.apdus.RegisterResponse;
+import com.ledger.u2fbletest.simulator.U2FSimulator;
+
+/*
+ * Runs AuthenticateResponse.parse and AuthenticateResponseView side by side, both must accept the same
+ * inputs and decode the same fields.
+ */
+public class AuthenticateResponseTarget implements FuzzTarget {
+
+	private AuthenticateResponseView view = new AuthenticateResponseView();
+
+	@Override
+	public String getName() {
+		return "authenticate";
+	}
+
+	@Override
+	public Vector<byte[]> getSeeds() {
+		Vector<byte[]> seeds = new Vector<byte[]>();
+		U2FSimulator simulator = new U2FSimulator();
+		byte[] applicationParameter = new byte[32];
+		RegisterResponse registerResponse = RegisterResponse.parse(simulator.process(new Register(new byte[32], applicationParameter).serialize()));
+		for (int i=0; i<3; i++) {
+			byte[] response = simulator.process(new Authenticate(new byte[32], applicationParameter, registerResponse.getKeyHandle()).serialize());
+			seeds.add(Arrays.copyOf(response, response.length - 2));
+			seeds.add(response);
+		}
+		return seeds;
+	}
+
+	@Override
+	public int[] getFields(byte[] input) {
+		if (input.length < 7) {
+			return new int[] { 0 };
+		}
+		return new int[] { 0, 5, 6 };
+	}
+
+	@Override
+	public int execute(byte[] input) {
+		AuthenticateResponse response = null;
+		RuntimeException parseError = null;
+		RuntimeException viewError = null;
+		try {
+			response = AuthenticateResponse.parse(input);
+		}
+		catch(RuntimeException e) {
+			if (e.getClass() != RuntimeException.class) {
+				throw e;
+			}
+			parseError = e;
+		}
+		try {
+			view.wrap(input);
+		}
+		catch(RuntimeException e) {
+			if (e.getClass() != RuntimeException.class) {
+				throw e;
+			}
+			viewError = e;
+		}
+		if ((parseError == null) != (viewError == null)) {
+			throw new IllegalStateException("Parser and view disagree : " + (parseError != null ? parseError.getMessage() : viewError.getMessage()));
+		}
+		if (parseError != null) {
+			throw parseError;
+		}
+		if (!Arrays.equals(response.serialize(), view.toAuthenticateResponse().serialize())) {
+			throw new IllegalStateException("Parser and view decoded different fields");
+		}
+		return (FuzzEngine.bucket(view.getSignatureLength()) << 8) | (view.getEnd() < input.length ? 1 : 0);
+	}
+
+}
@@ -0,0 +1,329 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.fuzz;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Vector;
+
+import com.ledger.u2fbletest.Logger;
+import com.ledger.u2fbletest.utils.Dump;
+
+/*
+ * In process mutational fuzzer. Inputs reaching a new outcome (accepted shape or rejection reason)
+ * are added to the corpus, which is persisted in a directory per target so that later runs resume
+ * from it. Crashing inputs are minimized and written next to the corpus.
+ */
+public class FuzzEngine {
+
+	public static final int REPORT_INTERVAL = 10000;
+	public static final int MAX_MINIMIZE_ATTEMPTS = 100000;
+
+	public static class Crash {
+
+		private String key;
+		private String message;
+		private byte[] input;
+
+		public Crash(String key, String message, byte[] input) {
+			this.key = key;
+			this.message = message;
+			this.input = input;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		public byte[] getInput() {
+			return input;
+		}
+
+		public String toString() {
+			return key + " : " + message + " on " + Dump.dump(input);
+		}
+	}
+
+	private FuzzTarget target;
+	private File corpusDirectory;
+	private File crashDirectory;
+	private Logger logger;
+	private Random random;
+	private Mutator mutator;
+	private Vector<byte[]> corpus;
+	private HashSet<Integer> signatures;
+	private HashSet<String> crashKeys;
+	private Vector<Crash> crashes;
+	private long executions;
+	private long rejected;
+	private volatile boolean stopped;
+
+	public FuzzEngine(FuzzTarget target, File directory, long seed, Logger logger) {
+		this.target = target;
+		this.logger = logger;
+		if (directory != null) {
+			corpusDirectory = new File(directory, target.getName());
+			crashDirectory = new File(directory, target.getName() + "-crashes");
+		}
+		random = new Random(seed);
+		mutator = new Mutator(random);
+		corpus = new Vector<byte[]>();
+		signatures = new HashSet<Integer>();
+		crashKeys = new HashSet<String>();
+		crashes = new Vector<Crash>();
+	}
+
+	public static int bucket(int value) {
+		return (value <= 0 ? value & 0xff : 32 - Integer.numberOfLeadingZeros(value));
+	}
+
+	/* Crashes are told apart by exception class and first frame outside of the JDK */
+	public static String getCrashKey(Throwable t) {
+		StackTraceElement[] stack = t.getStackTrace();
+		for (StackTraceElement element : stack) {
+			if (!element.getClassName().startsWith("java.")) {
+				return t.getClass().getName() + " at " + element;
+			}
+		}
+		return t.getClass().getName() + (stack.length != 0 ? " at " + stack[0] : "");
+	}
+
+	private static String hash(byte[] data) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : data) {
+			hash ^= (b & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		return Long.toHexString(hash);
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] data = new byte[(int)file.length()];
+		FileInputStream input = new FileInputStream(file);
+		try {
+			int offset = 0;
+			while (offset < data.length) {
+				int read = input.read(data, offset, data.length - offset);
+				if (read < 0) {
+					throw new IOException("Truncated " + file);
+				}
+				offset += read;
+			}
+		}
+		finally {
+			input.close();
+		}
+		return data;
+	}
+
+	private void writeFile(File directory, String name, byte[] data) {
+		if (directory == null) {
+			return;
+		}
+		try {
+			directory.mkdirs();
+			FileOutputStream output = new FileOutputStream(new File(directory, name));
+			try {
+				output.write(data);
+			}
+			finally {
+				output.close();
+			}
+		}
+		catch(IOException e) {
+			logger.error("Cannot write " + name + " : " + e.getMessage());
+		}
+	}
+
+	public void stop() {
+		stopped = true;
+	}
+
+	public Vector<byte[]> getCorpus() {
+		return corpus;
+	}
+
+	public Vector<Crash> getCrashes() {
+		return crashes;
+	}
+
+	public long getExecutions() {
+		return executions;
+	}
+
+	public long getRejected() {
+		return rejected;
+	}
+
+	/* Returns the crash raised by the input or null, the outcome signature is stored in signature[0] */
+	private Throwable execute(byte[] input, int[] signature) {
+		executions++;
+		try {
+			signature[0] = target.execute(input);
+		}
+		catch(Throwable t) {
+			if (t.getClass() != RuntimeException.class) {
+				return t;
+			}
+			rejected++;
+			signature[0] = 0x40000000 ^ String.valueOf(t.getMessage()).hashCode();
+		}
+		return null;
+	}
+
+	private void addToCorpus(byte[] input, boolean persist) {
+		corpus.add(input);
+		if (persist) {
+			writeFile(corpusDirectory, hash(input), input);
+		}
+	}
+
+	private void load() {
+		int[] signature = new int[1];
+		Vector<byte[]> initial = new Vector<byte[]>(target.getSeeds());
+		int seeds = initial.size();
+		File[] files = (corpusDirectory != null ? corpusDirectory.listFiles() : null);
+		if (files != null) {
+			for (File file : files) {
+				try {
+					initial.add(readFile(file));
+				}
+				catch(IOException e) {
+					logger.error("Cannot read " + file + " : " + e.getMessage());
+				}
+			}
+		}
+		for (int i=0; i<initial.size(); i++) {
+			byte[] input = initial.get(i);
+			Throwable crash = execute(input, signature);
+			if (crash != null) {
+				recordCrash(input, crash);
+			}
+			else
+			if (signatures.add(signature[0]) || (i >= seeds)) {
+				addToCorpus(input, false);
+			}
+		}
+		if (corpus.isEmpty()) {
+			corpus.add(new byte[0]);
+		}
+		logger.info(target.getName() + " : " + corpus.size() + " corpus entries, " + (initial.size() - seeds) + " loaded");
+	}
+
+	private boolean reproduces(byte[] input, String key) {
+		try {
+			target.execute(input);
+		}
+		catch(Throwable t) {
+			return (t.getClass() != RuntimeException.class) && getCrashKey(t).equals(key);
+		}
+		return false;
+	}
+
+	public byte[] minimize(byte[] input, String key) {
+		byte[] best = input;
+		int attempts = 0;
+		for (int chunk = Math.max(1, best.length / 2); chunk >= 1; chunk /= 2) {
+			boolean progress = true;
+			while (progress && (attempts < MAX_MINIMIZE_ATTEMPTS)) {
+				progress = false;
+				for (int start = 0; (start + chunk <= best.length) && (attempts < MAX_MINIMIZE_ATTEMPTS); start += chunk) {
+					byte[] candidate = new byte[best.length - chunk];
+					System.arraycopy(best, 0, candidate, 0, start);
+					System.arraycopy(best, start + chunk, candidate, start, best.length - start - chunk);
+					attempts++;
+					if (reproduces(candidate, key)) {
+						best = candidate;
+						progress = true;
+						break;
+					}
+				}
+			}
+		}
+		for (int i=0; (i<best.length) && (attempts < MAX_MINIMIZE_ATTEMPTS); i++) {
+			if (best[i] != 0) {
+				byte[] candidate = best.clone();
+				candidate[i] = 0;
+				attempts++;
+				if (reproduces(candidate, key)) {
+					best = candidate;
+				}
+			}
+		}
+		return best;
+	}
+
+	private void recordCrash(byte[] input, Throwable crash) {
+		String key = getCrashKey(crash);
+		if (!crashKeys.add(key)) {
+			return;
+		}
+		byte[] minimized = minimize(input, key);
+		Crash result = new Crash(key, crash.getMessage(), minimized);
+		crashes.add(result);
+		writeFile(crashDirectory, "crash-" + hash(minimized), minimized);
+		logger.error(target.getName() + " crash " + result);
+	}
+
+	public void run(long durationMs, long maxExecutions) {
+		load();
+		int[] signature = new int[1];
+		long start = System.currentTimeMillis();
+		long end = (durationMs > 0 ? start + durationMs : Long.MAX_VALUE);
+		long nextReport = start + REPORT_INTERVAL;
+		long limit = (maxExecutions > 0 ? executions + maxExecutions : Long.MAX_VALUE);
+		long startExecutions = executions;
+		while (!stopped && (executions < limit)) {
+			/* checking the clock every 1024 runs keeps it out of the profile */
+			if ((executions & 0x3ff) == 0) {
+				long now = System.currentTimeMillis();
+				if (now >= end) {
+					break;
+				}
+				if (now >= nextReport) {
+					logger.info(target.getName() + " : " + executions + " runs, " + ((executions - startExecutions) * 1000 / (now - start)) + "/s, corpus " +
+						corpus.size() + ", crashes " + crashes.size());
+					nextReport = now + REPORT_INTERVAL;
+				}
+			}
+			byte[] parent = corpus.get(random.nextInt(corpus.size()));
+			byte[] input = mutator.mutate(parent, target.getFields(parent), corpus);
+			Throwable crash = execute(input, signature);
+			if (crash != null) {
+				recordCrash(input, crash);
+			}
+			else
+			if (signatures.add(signature[0])) {
+				addToCorpus(input, true);
+			}
+		}
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		logger.info(target.getName() + " : " + (executions - startExecutions) + " runs in " + elapsed + " ms, " + ((executions - startExecutions) * 1000 / elapsed) + "/s, " +
+			rejected + " rejected, corpus " + corpus.size() + ", crashes " + crashes.size());
+	}
+
+}
@@ -0,0 +1,37 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.fuzz;
+
+import java.util.Vector;
+
+/*
+ * Parser entry point exercised by the FuzzEngine. Inputs rejected with a plain RuntimeException are
+ * expected, any other Throwable escaping execute is reported as a crash.
+ */
+public interface FuzzTarget {
+
+	public String getName();
+	/* Structurally valid inputs used to start the corpus */
+	public Vector<byte[]> getSeeds();
+	/* Offsets of the length and tag bytes of the input, as far as they can be located */
+	public int[] getFields(byte[] input);
+	/* Returns a signature of the accepted input shape, used to decide whether the input is kept in the corpus */
+	public int execute(byte[] input);
+
+}
@@ -0,0 +1,115 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.fuzz;
+
+import java.util.Random;
+import java.util.Vector;
+
+import com.ledger.u2fbletest.utils.BLETransportHelper;
+
+/*
+ * Feeds frame sequences to BLETransportHelper.join. The input is a list of frames, each one prefixed
+ * by its length on one byte. A completed message must have the length announced in the first frame.
+ */
+public class JoinTarget implements FuzzTarget {
+
+	private Vector<byte[]> frames = new Vector<byte[]>();
+
+	@Override
+	public String getName() {
+		return "join";
+	}
+
+	public static byte[] encode(Vector<byte[]> frames) {
+		int length = 0;
+		for (byte[] frame : frames) {
+			length += 1 + frame.length;
+		}
+		byte[] result = new byte[length];
+		int offset = 0;
+		for (byte[] frame : frames) {
+			result[offset++] = (byte)frame.length;
+			System.arraycopy(frame, 0, result, offset, frame.length);
+			offset += frame.length;
+		}
+		return result;
+	}
+
+	@Override
+	public Vector<byte[]> getSeeds() {
+		Vector<byte[]> seeds = new Vector<byte[]>();
+		Random random = new Random(0);
+		int[] sizes = { 0, 1, 17, 18, 100, 2000 };
+		int[] chunkSizes = { 20, 155 };
+		for (int size : sizes) {
+			for (int chunkSize : chunkSizes) {
+				byte[] data = new byte[size];
+				random.nextBytes(data);
+				seeds.add(encode(BLETransportHelper.split(BLETransportHelper.COMMAND_MSG, data, chunkSize)));
+			}
+		}
+		return seeds;
+	}
+
+	@Override
+	public int[] getFields(byte[] input) {
+		Vector<Integer> fields = new Vector<Integer>();
+		int offset = 0;
+		boolean first = true;
+		while (offset < input.length) {
+			fields.add(offset);
+			int length = (input[offset] & 0xff);
+			for (int i=1; (i<=(first ? 3 : 1)) && (offset + i < input.length); i++) {
+				fields.add(offset + i);
+			}
+			first = false;
+			offset += 1 + length;
+		}
+		int[] result = new int[fields.size()];
+		for (int i=0; i<result.length; i++) {
+			result[i] = fields.get(i);
+		}
+		return result;
+	}
+
+	@Override
+	public int execute(byte[] input) {
+		frames.removeAllElements();
+		int offset = 0;
+		while (offset < input.length) {
+			int length = Math.min(input[offset] & 0xff, input.length - offset - 1);
+			byte[] frame = new byte[length];
+			System.arraycopy(input, offset + 1, frame, 0, length);
+			frames.add(frame);
+			offset += 1 + length;
+		}
+		BLETransportHelper.getChunkType(frames.isEmpty() ? new byte[0] : frames.get(0));
+		byte[] result = BLETransportHelper.join(BLETransportHelper.COMMAND_MSG, frames);
+		if (result == null) {
+			return (1 << 16) | FuzzEngine.bucket(frames.size());
+		}
+		byte[] first = frames.get(0);
+		int expected = ((first[1] & 0xff) << 8) | (first[2] & 0xff);
+		if (result.length != expected) {
+			throw new IllegalStateException("Joined " + result.length + " bytes, " + expected + " announced");
+		}
+		return (2 << 16) | (FuzzEngine.bucket(frames.size()) << 8) | FuzzEngine.bucket(result.length);
+	}
+
+}
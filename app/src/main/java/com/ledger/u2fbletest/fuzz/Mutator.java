@@ -0,0 +1,141 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.fuzz;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Vector;
+
+/*
+ * Byte level mutations, biased towards the length and tag fields reported by the target so that most
+ * mutants keep a plausible structure and reach the deeper checks of the parsers.
+ */
+public class Mutator {
+
+	public static final int MAX_LENGTH = 4096;
+
+	private static final int[] INTERESTING = { 0x00, 0x01, 0x02, 0x05, 0x30, 0x7f, 0x80, 0x81, 0x82, 0x83, 0xbf, 0xfe, 0xff };
+
+	private Random random;
+
+	public Mutator(Random random) {
+		this.random = random;
+	}
+
+	public byte[] mutate(byte[] input, int[] fields, Vector<byte[]> corpus) {
+		byte[] result = input;
+		int rounds = 1 + random.nextInt(4);
+		for (int i=0; i<rounds; i++) {
+			result = mutateOnce(result, (i == 0 ? fields : null), corpus);
+		}
+		return result;
+	}
+
+	private byte[] mutateOnce(byte[] input, int[] fields, Vector<byte[]> corpus) {
+		int length = input.length;
+		if (length == 0) {
+			byte[] result = new byte[1 + random.nextInt(8)];
+			random.nextBytes(result);
+			return result;
+		}
+		boolean useFields = (fields != null) && (fields.length != 0);
+		switch(random.nextInt(useFields ? 10 : 7)) {
+			case 0: {
+				byte[] result = input.clone();
+				int position = random.nextInt(length);
+				result[position] ^= (byte)(1 << random.nextInt(8));
+				return result;
+			}
+			case 1: {
+				byte[] result = input.clone();
+				result[random.nextInt(length)] = (byte)random.nextInt(256);
+				return result;
+			}
+			case 2: {
+				byte[] result = input.clone();
+				result[random.nextInt(length)] = (byte)INTERESTING[random.nextInt(INTERESTING.length)];
+				return result;
+			}
+			case 3: {
+				return Arrays.copyOf(input, random.nextInt(length));
+			}
+			case 4: {
+				int start = random.nextInt(length);
+				int count = 1 + random.nextInt(Math.min(length - start, 32));
+				byte[] result = new byte[length - count];
+				System.arraycopy(input, 0, result, 0, start);
+				System.arraycopy(input, start + count, result, start, length - start - count);
+				return result;
+			}
+			case 5: {
+				int count = 1 + random.nextInt(32);
+				if (length + count > MAX_LENGTH) {
+					return Arrays.copyOf(input, length / 2);
+				}
+				int position = random.nextInt(length + 1);
+				byte[] result = new byte[length + count];
+				System.arraycopy(input, 0, result, 0, position);
+				if (random.nextBoolean()) {
+					for (int i=0; i<count; i++) {
+						result[position + i] = (byte)random.nextInt(256);
+					}
+				}
+				else {
+					for (int i=0; i<count; i++) {
+						result[position + i] = input[(position + i) % length];
+					}
+				}
+				System.arraycopy(input, position, result, position + count, length - position);
+				return result;
+			}
+			case 6: {
+				byte[] other = corpus.get(random.nextInt(corpus.size()));
+				int split = random.nextInt(length + 1);
+				int otherSplit = random.nextInt(other.length + 1);
+				int resultLength = Math.min(MAX_LENGTH, split + other.length - otherSplit);
+				byte[] result = new byte[resultLength];
+				System.arraycopy(input, 0, result, 0, Math.min(split, resultLength));
+				if (resultLength > split) {
+					System.arraycopy(other, otherSplit, result, split, resultLength - split);
+				}
+				return result;
+			}
+			case 7: {
+				byte[] result = input.clone();
+				int field = fields[random.nextInt(fields.length)];
+				result[field] = (byte)INTERESTING[random.nextInt(INTERESTING.length)];
+				return result;
+			}
+			case 8: {
+				/* announce exactly what remains after the field, give or take one byte */
+				byte[] result = input.clone();
+				int field = fields[random.nextInt(fields.length)];
+				result[field] = (byte)(length - field - 1 + random.nextInt(3) - 1);
+				return result;
+			}
+			default: {
+				byte[] result = input.clone();
+				int field = fields[random.nextInt(fields.length)];
+				result[field] += (byte)(random.nextInt(17) - 8);
+				return result;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,124 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.fuzz;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+import com.ledger.u2fbletest.apdus.Register;
+import com.ledger.u2fbletest.apdus.RegisterResponse;
+import com.ledger.u2fbletest.apdus.RegisterResponseView;
+import com.ledger.u2fbletest.simulator.U2FSimulator;
+
+/*
+ * Runs RegisterResponse.parse and RegisterResponseView side by side, both must accept the same inputs
+ * and decode the same fields.
+ */
+public class RegisterResponseTarget implements FuzzTarget {
+
+	private RegisterResponseView view = new RegisterResponseView();
+
+	@Override
+	public String getName() {
+		return "register";
+	}
+
+	@Override
+	public Vector<byte[]> getSeeds() {
+		Vector<byte[]> seeds = new Vector<byte[]>();
+		int[] keyHandleLengths = { 1, 64, 255 };
+		for (int keyHandleLength : keyHandleLengths) {
+			byte[] response = new U2FSimulator(keyHandleLength).process(new Register(new byte[32], new byte[32]).serialize());
+			seeds.add(Arrays.copyOf(response, response.length - 2));
+			seeds.add(response);
+		}
+		return seeds;
+	}
+
+	@Override
+	public int[] getFields(byte[] input) {
+		int[] fields = new int[8];
+		int count = 0;
+		fields[count++] = 0;
+		int offset = 1 + RegisterResponseView.PUBLIC_KEY_LENGTH;
+		if (offset >= input.length) {
+			return Arrays.copyOf(fields, count);
+		}
+		fields[count++] = offset;
+		offset += 1 + (input[offset] & 0xff);
+		if (offset + 1 >= input.length) {
+			return Arrays.copyOf(fields, count);
+		}
+		fields[count++] = offset;
+		fields[count++] = offset + 1;
+		int headerLength = (input[offset + 1] == (byte)0x82 ? 4 : 3);
+		if (offset + headerLength > input.length) {
+			return Arrays.copyOf(fields, count);
+		}
+		fields[count++] = offset + 2;
+		int certificateLength = (input[offset + 2] & 0xff);
+		if (headerLength == 4) {
+			fields[count++] = offset + 3;
+			certificateLength = (certificateLength << 8) | (input[offset + 3] & 0xff);
+		}
+		offset += headerLength + certificateLength;
+		if (offset + 1 < input.length) {
+			fields[count++] = offset;
+			fields[count++] = offset + 1;
+		}
+		return Arrays.copyOf(fields, count);
+	}
+
+	@Override
+	public int execute(byte[] input) {
+		RegisterResponse response = null;
+		RuntimeException parseError = null;
+		RuntimeException viewError = null;
+		try {
+			response = RegisterResponse.parse(input);
+		}
+		catch(RuntimeException e) {
+			if (e.getClass() != RuntimeException.class) {
+				throw e;
+			}
+			parseError = e;
+		}
+		try {
+			view.wrap(input);
+		}
+		catch(RuntimeException e) {
+			if (e.getClass() != RuntimeException.class) {
+				throw e;
+			}
+			viewError = e;
+		}
+		if ((parseError == null) != (viewError == null)) {
+			throw new IllegalStateException("Parser and view disagree : " + (parseError != null ? parseError.getMessage() : viewError.getMessage()));
+		}
+		if (parseError != null) {
+			throw parseError;
+		}
+		if (!Arrays.equals(response.serialize(), view.toRegisterResponse().serialize())) {
+			throw new IllegalStateException("Parser and view decoded different fields");
+		}
+		return (FuzzEngine.bucket(view.getKeyHandleLength()) << 24) | (FuzzEngine.bucket(view.getCertificateLength()) << 16) |
+			(FuzzEngine.bucket(view.getSignatureLength()) << 8) | (view.getEnd() < input.length ? 1 : 0);
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.registry;
+
+import com.ledger.u2fbletest.apdus.RegisterResponse;
+import com.ledger.u2fbletest.utils.Dump;
+
+public class Credential {
+
+	private int offset;
+	private byte[] keyHandle;
+	private byte[] publicKey;
+	private byte[] attestationHash;
+	private int counter;
+	private boolean counterKnown;
+	private boolean counterRegression;
+
+	public Credential(int offset, byte[] keyHandle, byte[] publicKey, byte[] attestationHash, int counter, boolean counterKnown, boolean counterRegression) {
+		this.offset = offset;
+		this.keyHandle = keyHandle;
+		this.publicKey = publicKey;
+		this.attestationHash = attestationHash;
+		this.counter = counter;
+		this.counterKnown = counterKnown;
+		this.counterRegression = counterRegression;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public byte[] getKeyHandle() {
+		return keyHandle;
+	}
+
+	public byte[] getPublicKey() {
+		return publicKey;
+	}
+
+	/* SHA-256 of the attestation certificate returned at registration time */
+	public byte[] getAttestationHash() {
+		return attestationHash;
+	}
+
+	public int getCounter() {
+		return counter;
+	}
+
+	public boolean isCounterKnown() {
+		return counterKnown;
+	}
+
+	public boolean hasCounterRegression() {
+		return counterRegression;
+	}
+
+	/* Register response usable for authentication signature checks - certificate and signature are not kept */
+	public RegisterResponse toRegisterResponse() {
+		return new RegisterResponse(publicKey, keyHandle, null, null);
+	}
+
+	public String toString() {
+		StringBuffer response = new StringBuffer();
+		response.append("Credential");
+		response.append("\n\tKey handle : ").append(Dump.dump(keyHandle));
+		response.append("\n\tPublic key : ").append(Dump.dump(publicKey));
+		response.append("\n\tAttestation hash : ").append(Dump.dump(attestationHash));
+		response.append("\n\tCounter : ").append(counterKnown ? String.valueOf(counter & 0xffffffffL) : "unknown");
+		response.append("\n\tCounter regression : ").append(counterRegression);
+		return response.toString();
+	}
+
+}
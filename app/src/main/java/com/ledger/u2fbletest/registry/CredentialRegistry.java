@@ -0,0 +1,439 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.registry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.spongycastle.crypto.digests.SHA256Digest;
+
+/*
+ * Persistent key handle -> credential registry.
+ *
+ * Records are appended to a memory mapped data file, counters are updated in place. Lookups go through
+ * a memory mapped open addressing index (linear probing) which is rebuilt from the data file if it is
+ * missing or out of date.
+ *
+ * Data file : header (magic, version, count, end, last record) followed by records
+ * 		flags (1) | key handle length (1) | key handle | public key (65) | attestation hash (32) | counter (4)
+ * Index file : header (magic, capacity, size, data end) followed by capacity slots
+ * 		hash (4) | record offset (4), 0 for an empty slot
+ */
+public class CredentialRegistry {
+
+	public static enum CounterStatus {
+		UNKNOWN_KEY_HANDLE,
+		OK,
+		REGRESSION
+	}
+
+	public static final String DATA_FILE = "credentials.dat";
+	public static final String INDEX_FILE = "credentials.idx";
+
+	private static final int DATA_MAGIC = 0x55324352;
+	private static final int INDEX_MAGIC = 0x55324349;
+	private static final int VERSION = 1;
+	private static final int DATA_HEADER_LENGTH = 32;
+	private static final int INDEX_HEADER_LENGTH = 16;
+	private static final int INITIAL_DATA_SIZE = 64 * 1024;
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int MAX_LOAD_PERCENT = 60;
+
+	private static final int PUBLIC_KEY_LENGTH = 65;
+	private static final int ATTESTATION_HASH_LENGTH = 32;
+	private static final int FLAG_COUNTER_KNOWN = 0x01;
+	private static final int FLAG_COUNTER_REGRESSION = 0x02;
+
+	private RandomAccessFile dataFile;
+	private RandomAccessFile indexFile;
+	private MappedByteBuffer data;
+	private MappedByteBuffer index;
+	private int count;
+	private int end;
+	private int last;
+	private int capacity;
+	private int size;
+
+	private CredentialRegistry(File directory) throws IOException {
+		dataFile = new RandomAccessFile(new File(directory, DATA_FILE), "rw");
+		indexFile = new RandomAccessFile(new File(directory, INDEX_FILE), "rw");
+		if (dataFile.length() < DATA_HEADER_LENGTH) {
+			dataFile.setLength(INITIAL_DATA_SIZE);
+			data = dataFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_DATA_SIZE);
+			data.putInt(0, DATA_MAGIC);
+			data.putInt(4, VERSION);
+			end = DATA_HEADER_LENGTH;
+			writeDataHeader();
+		}
+		else {
+			if (dataFile.length() > Integer.MAX_VALUE) {
+				throw new IOException("Invalid credential registry size");
+			}
+			data = dataFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, dataFile.length());
+			if ((data.getInt(0) != DATA_MAGIC) || (data.getInt(4) != VERSION)) {
+				throw new IOException("Invalid credential registry");
+			}
+			count = data.getInt(8);
+			end = data.getInt(12);
+			last = data.getInt(16);
+			if ((end < DATA_HEADER_LENGTH) || (end > data.capacity())) {
+				throw new IOException("Invalid credential registry end");
+			}
+		}
+		if (!openIndex()) {
+			rebuildIndex(getCapacityFor(count));
+		}
+	}
+
+	public static CredentialRegistry open(File directory) throws IOException {
+		return new CredentialRegistry(directory);
+	}
+
+	private boolean openIndex() throws IOException {
+		long length = indexFile.length();
+		if (length < INDEX_HEADER_LENGTH) {
+			return false;
+		}
+		MappedByteBuffer header = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_LENGTH);
+		int indexCapacity = header.getInt(4);
+		if ((header.getInt(0) != INDEX_MAGIC) || (header.getInt(12) != end) || (header.getInt(8) != count) ||
+			(indexCapacity < INITIAL_CAPACITY) || ((indexCapacity & (indexCapacity - 1)) != 0) ||
+			(length != INDEX_HEADER_LENGTH + (long)indexCapacity * 8)) {
+			return false;
+		}
+		index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+		capacity = indexCapacity;
+		size = count;
+		return true;
+	}
+
+	private static int getCapacityFor(int entries) {
+		int result = INITIAL_CAPACITY;
+		while ((long)entries * 100 >= (long)result * MAX_LOAD_PERCENT) {
+			result <<= 1;
+			if (result > (Integer.MAX_VALUE - INDEX_HEADER_LENGTH) / 8) {
+				throw new RuntimeException("Credential registry index full");
+			}
+		}
+		return result;
+	}
+
+	private void rebuildIndex(int newCapacity) throws IOException {
+		long length = INDEX_HEADER_LENGTH + (long)newCapacity * 8;
+		index = null;
+		indexFile.setLength(0);
+		indexFile.setLength(length);
+		index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+		capacity = newCapacity;
+		size = 0;
+		int offset = DATA_HEADER_LENGTH;
+		while (offset < end) {
+			int keyHandleLength = data.get(offset + 1) & 0xff;
+			int slot = findSlot(offset + 2, keyHandleLength, hash(data, offset + 2, keyHandleLength));
+			if (slot < 0) {
+				putSlot(-(slot + 1), hash(data, offset + 2, keyHandleLength), offset);
+			}
+			offset += getRecordLength(keyHandleLength);
+		}
+		index.putInt(0, INDEX_MAGIC);
+		index.putInt(4, capacity);
+		writeIndexHeader();
+	}
+
+	private void writeDataHeader() {
+		data.putInt(8, count);
+		data.putInt(12, end);
+		data.putInt(16, last);
+	}
+
+	private void writeIndexHeader() {
+		index.putInt(8, size);
+		index.putInt(12, end);
+	}
+
+	private static int getRecordLength(int keyHandleLength) {
+		return 2 + keyHandleLength + PUBLIC_KEY_LENGTH + ATTESTATION_HASH_LENGTH + 4;
+	}
+
+	private static int hash(byte[] buffer, int offset, int length) {
+		int h = 0x811c9dc5;
+		for (int i=0; i<length; i++) {
+			h ^= (buffer[offset + i] & 0xff);
+			h *= 0x01000193;
+		}
+		return mix(h);
+	}
+
+	private static int hash(MappedByteBuffer buffer, int offset, int length) {
+		int h = 0x811c9dc5;
+		for (int i=0; i<length; i++) {
+			h ^= (buffer.get(offset + i) & 0xff);
+			h *= 0x01000193;
+		}
+		return mix(h);
+	}
+
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private long getSlot(int slot) {
+		return index.getLong(INDEX_HEADER_LENGTH + slot * 8);
+	}
+
+	private void putSlot(int slot, int hash, int offset) {
+		index.putLong(INDEX_HEADER_LENGTH + slot * 8, ((long)hash << 32) | (offset & 0xffffffffL));
+		size++;
+	}
+
+	/* Returns the slot holding the key handle stored at keyHandleOffset in the data file, or -(free slot + 1) */
+	private int findSlot(int keyHandleOffset, int keyHandleLength, int hash) {
+		int mask = capacity - 1;
+		int slot = hash & mask;
+		for (;;) {
+			long entry = getSlot(slot);
+			if (entry == 0) {
+				return -(slot + 1);
+			}
+			if (((int)(entry >>> 32) == hash) && dataEquals((int)entry, keyHandleOffset, keyHandleLength)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private boolean dataEquals(int offset, int keyHandleOffset, int keyHandleLength) {
+		if ((data.get(offset + 1) & 0xff) != keyHandleLength) {
+			return false;
+		}
+		for (int i=0; i<keyHandleLength; i++) {
+			if (data.get(offset + 2 + i) != data.get(keyHandleOffset + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int findSlot(byte[] keyHandle, int hash) {
+		int mask = capacity - 1;
+		int slot = hash & mask;
+		for (;;) {
+			long entry = getSlot(slot);
+			if (entry == 0) {
+				return -(slot + 1);
+			}
+			if (((int)(entry >>> 32) == hash) && keyHandleEquals((int)entry, keyHandle)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private boolean keyHandleEquals(int offset, byte[] keyHandle) {
+		if ((data.get(offset + 1) & 0xff) != keyHandle.length) {
+			return false;
+		}
+		for (int i=0; i<keyHandle.length; i++) {
+			if (data.get(offset + 2 + i) != keyHandle[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int findOffset(byte[] keyHandle) {
+		int slot = findSlot(keyHandle, hash(keyHandle, 0, keyHandle.length));
+		if (slot < 0) {
+			return -1;
+		}
+		return (int)getSlot(slot);
+	}
+
+	private void ensureDataCapacity(long required) throws IOException {
+		if (required <= data.capacity()) {
+			return;
+		}
+		long newSize = data.capacity();
+		while (newSize < required) {
+			newSize *= 2;
+		}
+		if (newSize > Integer.MAX_VALUE) {
+			if (required > Integer.MAX_VALUE) {
+				throw new RuntimeException("Credential registry full");
+			}
+			newSize = Integer.MAX_VALUE;
+		}
+		data.force();
+		dataFile.setLength(newSize);
+		data = dataFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+	}
+
+	private static byte[] getAttestationHash(byte[] certificate) {
+		byte[] result = new byte[ATTESTATION_HASH_LENGTH];
+		if (certificate != null) {
+			SHA256Digest sha256 = new SHA256Digest();
+			sha256.update(certificate, 0, certificate.length);
+			sha256.doFinal(result, 0);
+		}
+		return result;
+	}
+
+	private void writeCredential(int offset, byte[] publicKey, byte[] attestationHash) {
+		int keyHandleLength = data.get(offset + 1) & 0xff;
+		int position = offset + 2 + keyHandleLength;
+		for (int i=0; i<PUBLIC_KEY_LENGTH; i++) {
+			data.put(position++, publicKey[i]);
+		}
+		for (int i=0; i<ATTESTATION_HASH_LENGTH; i++) {
+			data.put(position++, attestationHash[i]);
+		}
+		data.putInt(position, 0);
+		data.put(offset, (byte)0);
+	}
+
+	public synchronized Credential add(byte[] keyHandle, byte[] publicKey, byte[] certificate) throws IOException {
+		if ((keyHandle.length == 0) || (keyHandle.length > 255)) {
+			throw new RuntimeException("Invalid key handle");
+		}
+		if (publicKey.length != PUBLIC_KEY_LENGTH) {
+			throw new RuntimeException("Invalid public key");
+		}
+		byte[] attestationHash = getAttestationHash(certificate);
+		int hash = hash(keyHandle, 0, keyHandle.length);
+		int slot = findSlot(keyHandle, hash);
+		int offset;
+		if (slot >= 0) {
+			// Same key handle registered again, reset the stored credential
+			offset = (int)getSlot(slot);
+			writeCredential(offset, publicKey, attestationHash);
+		}
+		else {
+			offset = end;
+			ensureDataCapacity((long)offset + getRecordLength(keyHandle.length));
+			data.put(offset + 1, (byte)keyHandle.length);
+			for (int i=0; i<keyHandle.length; i++) {
+				data.put(offset + 2 + i, keyHandle[i]);
+			}
+			writeCredential(offset, publicKey, attestationHash);
+			end += getRecordLength(keyHandle.length);
+			count++;
+			last = offset;
+			writeDataHeader();
+			if ((long)(size + 1) * 100 >= (long)capacity * MAX_LOAD_PERCENT) {
+				rebuildIndex(getCapacityFor(count));
+			}
+			else {
+				putSlot(-(slot + 1), hash, offset);
+				writeIndexHeader();
+			}
+		}
+		return read(offset);
+	}
+
+	private Credential read(int offset) {
+		int flags = data.get(offset);
+		int keyHandleLength = data.get(offset + 1) & 0xff;
+		byte[] keyHandle = new byte[keyHandleLength];
+		byte[] publicKey = new byte[PUBLIC_KEY_LENGTH];
+		byte[] attestationHash = new byte[ATTESTATION_HASH_LENGTH];
+		int position = offset + 2;
+		for (int i=0; i<keyHandleLength; i++) {
+			keyHandle[i] = data.get(position++);
+		}
+		for (int i=0; i<PUBLIC_KEY_LENGTH; i++) {
+			publicKey[i] = data.get(position++);
+		}
+		for (int i=0; i<ATTESTATION_HASH_LENGTH; i++) {
+			attestationHash[i] = data.get(position++);
+		}
+		int counter = data.getInt(position);
+		return new Credential(offset, keyHandle, publicKey, attestationHash, counter, (flags & FLAG_COUNTER_KNOWN) != 0, (flags & FLAG_COUNTER_REGRESSION) != 0);
+	}
+
+	public synchronized Credential find(byte[] keyHandle) {
+		int offset = findOffset(keyHandle);
+		if (offset < 0) {
+			return null;
+		}
+		return read(offset);
+	}
+
+	/* Record the counter reported by an authentication - U2F counters must strictly increase */
+	public synchronized CounterStatus checkCounter(byte[] keyHandle, int counter) {
+		int offset = findOffset(keyHandle);
+		if (offset < 0) {
+			return CounterStatus.UNKNOWN_KEY_HANDLE;
+		}
+		int flags = data.get(offset);
+		int counterOffset = offset + getRecordLength(data.get(offset + 1) & 0xff) - 4;
+		if (((flags & FLAG_COUNTER_KNOWN) != 0) && ((counter & 0xffffffffL) <= (data.getInt(counterOffset) & 0xffffffffL))) {
+			data.put(offset, (byte)(flags | FLAG_COUNTER_REGRESSION));
+			return CounterStatus.REGRESSION;
+		}
+		data.putInt(counterOffset, counter);
+		data.put(offset, (byte)(flags | FLAG_COUNTER_KNOWN));
+		return CounterStatus.OK;
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	public synchronized Credential getLast() {
+		if (count == 0) {
+			return null;
+		}
+		return read(last);
+	}
+
+	public synchronized Credential first() {
+		if (count == 0) {
+			return null;
+		}
+		return read(DATA_HEADER_LENGTH);
+	}
+
+	public synchronized Credential next(Credential credential) {
+		int offset = credential.getOffset() + getRecordLength(credential.getKeyHandle().length);
+		if (offset >= end) {
+			return null;
+		}
+		return read(offset);
+	}
+
+	public synchronized void flush() {
+		data.force();
+		index.force();
+	}
+
+	public synchronized void close() throws IOException {
+		flush();
+		dataFile.close();
+		indexFile.close();
+	}
+
+}
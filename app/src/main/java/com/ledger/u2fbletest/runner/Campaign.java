@@ -0,0 +1,197 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.runner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Vector;
+
+/*
+ * Test campaign description, parsed from a line based file :
+ *
+ * 	# comment
+ * 	name <campaign name>
+ * 	iterations <count>
+ * 	concurrency <number of devices driven in parallel>
+ * 	device <address | gatt:<address> | sim | sim:<id> | selected>
+ * 	output <result file, relative to the campaign file>
+ * 	step register [challenge=..] [application=..] [expect=..]
+ * 	step authenticate [challenge=..] [application=..] [keyhandle=last|invalid|<hex>] [mode=enforce|check] [expect=..]
+ * 	step raw apdu=<hex> [expect=..]
+ * 	step sleep ms=<delay>
+ *
+ * challenge and application take random or 32 bytes of hex, expect takes a status word in hex.
+ * Several payload variants can be separated with |, iteration n uses variant n modulo the number of variants.
+ */
+public class Campaign {
+
+	public static final int DEFAULT_ITERATIONS = 1;
+	public static final int DEFAULT_CONCURRENCY = 1;
+
+	private String name;
+	private int iterations;
+	private int concurrency;
+	private Vector<String> devices;
+	private Vector<CampaignStep> steps;
+	private String output;
+
+	public Campaign() {
+		name = "campaign";
+		iterations = DEFAULT_ITERATIONS;
+		concurrency = DEFAULT_CONCURRENCY;
+		devices = new Vector<String>();
+		steps = new Vector<CampaignStep>();
+	}
+
+	public static Campaign parse(File file) throws IOException {
+		FileReader reader = new FileReader(file);
+		try {
+			return parse(reader);
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	public static Campaign parse(Reader source) throws IOException {
+		Campaign campaign = new Campaign();
+		BufferedReader reader = new BufferedReader(source);
+		String line;
+		int lineNumber = 0;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			int comment = line.indexOf('#');
+			if (comment >= 0) {
+				line = line.substring(0, comment);
+			}
+			line = line.trim();
+			if (line.length() == 0) {
+				continue;
+			}
+			String[] tokens = line.split("\\s+");
+			try {
+				campaign.parseLine(tokens);
+			}
+			catch(RuntimeException e) {
+				throw new RuntimeException("Line " + lineNumber + " : " + e.getMessage());
+			}
+		}
+		if (campaign.devices.size() == 0) {
+			throw new RuntimeException("No device defined");
+		}
+		if (campaign.steps.size() == 0) {
+			throw new RuntimeException("No step defined");
+		}
+		return campaign;
+	}
+
+	private static int parsePositive(String[] tokens) {
+		if (tokens.length != 2) {
+			throw new RuntimeException("Expected a single value for " + tokens[0]);
+		}
+		int value;
+		try {
+			value = Integer.parseInt(tokens[1]);
+		}
+		catch(NumberFormatException e) {
+			throw new RuntimeException("Invalid number " + tokens[1]);
+		}
+		if (value <= 0) {
+			throw new RuntimeException("Invalid " + tokens[0] + " " + value);
+		}
+		return value;
+	}
+
+	private void parseLine(String[] tokens) {
+		String keyword = tokens[0];
+		if (keyword.equals("name")) {
+			if (tokens.length < 2) {
+				throw new RuntimeException("Missing name");
+			}
+			StringBuffer value = new StringBuffer(tokens[1]);
+			for (int i=2; i<tokens.length; i++) {
+				value.append(' ').append(tokens[i]);
+			}
+			name = value.toString();
+		}
+		else
+		if (keyword.equals("iterations")) {
+			iterations = parsePositive(tokens);
+		}
+		else
+		if (keyword.equals("concurrency")) {
+			concurrency = parsePositive(tokens);
+		}
+		else
+		if (keyword.equals("device")) {
+			for (int i=1; i<tokens.length; i++) {
+				devices.add(tokens[i]);
+			}
+			if (tokens.length < 2) {
+				throw new RuntimeException("Missing device");
+			}
+		}
+		else
+		if (keyword.equals("output")) {
+			if (tokens.length != 2) {
+				throw new RuntimeException("Expected a single output file");
+			}
+			output = tokens[1];
+		}
+		else
+		if (keyword.equals("step")) {
+			steps.add(CampaignStep.parse(steps.size(), tokens));
+		}
+		else {
+			throw new RuntimeException("Unknown keyword " + keyword);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getIterations() {
+		return iterations;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	public Vector<String> getDevices() {
+		return devices;
+	}
+
+	public Vector<CampaignStep> getSteps() {
+		return steps;
+	}
+
+	public String getOutput() {
+		return output;
+	}
+
+	public String toString() {
+		return "Campaign " + name + " : " + steps.size() + " steps, " + iterations + " iterations, " + devices.size() + " devices, concurrency " + concurrency;
+	}
+
+}
@@ -0,0 +1,444 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.runner;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.ledger.u2fbletest.Logger;
+import com.ledger.u2fbletest.apdus.Authenticate;
+import com.ledger.u2fbletest.apdus.AuthenticateResponseView;
+import com.ledger.u2fbletest.apdus.Register;
+import com.ledger.u2fbletest.apdus.RegisterResponse;
+import com.ledger.u2fbletest.apdus.RegisterResponseView;
+import com.ledger.u2fbletest.apdus.StatusWord;
+import com.ledger.u2fbletest.crypto.U2FCrypto;
+import com.ledger.u2fbletest.utils.ChallengePool;
+import com.ledger.u2fbletest.utils.LatencyStats;
+
+/*
+ * Executes a Campaign. Devices are driven in parallel (up to the campaign concurrency), steps are strictly
+ * ordered on a given device. Each step result is written to the output as soon as it completes.
+ */
+public class CampaignEngine {
+
+	public static final String CSV_HEADER = "time_ms,device,iteration,step,type,variant,latency_ms,status,result,detail";
+
+	private static final String RESULT_PASS = "pass";
+	private static final String RESULT_FAIL = "fail";
+	private static final String RESULT_ERROR = "error";
+
+	public static class StepSummary {
+		private int passed;
+		private int failed;
+		private LatencyStats latency;
+
+		public StepSummary() {
+			latency = new LatencyStats();
+		}
+
+		public synchronized int getPassed() {
+			return passed;
+		}
+
+		public synchronized int getFailed() {
+			return failed;
+		}
+
+		public LatencyStats getLatency() {
+			return latency;
+		}
+	}
+
+	private static class StepResult {
+		private long latency = -1;
+		private int statusWord = -1;
+		private String result = RESULT_PASS;
+		private String detail;
+
+		private void fail(String detail) {
+			this.result = RESULT_FAIL;
+			this.detail = detail;
+		}
+	}
+
+	private static class DeviceContext {
+		private String device;
+		private ApduChannel channel;
+		private byte[] defaultApplicationParameter;
+		private byte[] registrationApplicationParameter;
+		private RegisterResponse registerResponse;
+		private long lastCounter = -1;
+		private Random random;
+		/* responses are checked in place, only the registration kept for the next steps is copied */
+		private RegisterResponseView registerView = new RegisterResponseView();
+		private AuthenticateResponseView authenticateView = new AuthenticateResponseView();
+	}
+
+	private Campaign campaign;
+	private ChannelFactory channelFactory;
+	private Writer output;
+	private Logger logger;
+	private StepSummary[] summaries;
+	private int opened;
+	private int openFailures;
+	private long startTime;
+	private volatile boolean stopped;
+	private ExecutorService executor;
+	private boolean seeded;
+	private long seed;
+
+	public CampaignEngine(Campaign campaign, ChannelFactory channelFactory, Writer output, Logger logger) {
+		this.campaign = campaign;
+		this.channelFactory = channelFactory;
+		this.output = output;
+		this.logger = logger;
+		summaries = new StepSummary[campaign.getSteps().size()];
+		for (int i=0; i<summaries.length; i++) {
+			summaries[i] = new StepSummary();
+		}
+	}
+
+	/* Draws challenges and application parameters from a generator per device seeded from the campaign seed
+	 * and the device position, instead of the challenge pool, so that a recorded campaign can be replayed */
+	public void setSeed(long seed) {
+		this.seed = seed;
+		seeded = true;
+	}
+
+	public void stop() {
+		stopped = true;
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	public StepSummary[] getSummaries() {
+		return summaries;
+	}
+
+	public synchronized int getOpenFailures() {
+		return openFailures;
+	}
+
+	/* True if a device could not be opened or a step did not pass */
+	public boolean hasFailures() {
+		if (getOpenFailures() != 0) {
+			return true;
+		}
+		for (StepSummary summary : summaries) {
+			if (summary.getFailed() != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void run() throws IOException, InterruptedException {
+		logger.debug("Starting " + campaign);
+		startTime = System.currentTimeMillis();
+		synchronized(output) {
+			output.write(CSV_HEADER);
+			output.write("\n");
+			output.flush();
+		}
+		Vector<String> devices = campaign.getDevices();
+		executor = Executors.newFixedThreadPool(Math.min(campaign.getConcurrency(), devices.size()));
+		for (int i=0; i<devices.size(); i++) {
+			final String device = devices.get(i);
+			final int position = i;
+			executor.execute(new Runnable() {
+				public void run() {
+					runDevice(device, position);
+				}
+			});
+		}
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+			}
+		}
+		catch(InterruptedException e) {
+			stop();
+			throw e;
+		}
+		logger.debug("Campaign " + campaign.getName() + " finished");
+	}
+
+	private void runDevice(String device, int position) {
+		DeviceContext context = new DeviceContext();
+		context.device = device;
+		if (seeded) {
+			context.random = new Random(seed + position);
+		}
+		context.defaultApplicationParameter = newRandom(context);
+		try {
+			context.channel = channelFactory.open(device);
+		}
+		catch(RuntimeException e) {
+			synchronized(this) {
+				openFailures++;
+			}
+			StepResult result = new StepResult();
+			result.result = RESULT_ERROR;
+			result.detail = "Failed to open device " + e.getMessage();
+			record(context, -1, null, result);
+			return;
+		}
+		synchronized(this) {
+			opened++;
+		}
+		try {
+			Vector<CampaignStep> steps = campaign.getSteps();
+			for (int i=0; (i<campaign.getIterations()) && !stopped; i++) {
+				for (int j=0; (j<steps.size()) && !stopped; j++) {
+					CampaignStep step = steps.get(j);
+					StepResult result;
+					try {
+						result = execute(context, step, i);
+					}
+					catch(RuntimeException e) {
+						result = new StepResult();
+						result.result = RESULT_ERROR;
+						result.detail = e.getMessage();
+					}
+					record(context, i, step, result);
+				}
+			}
+		}
+		finally {
+			try {
+				channelFactory.release(context.channel);
+			}
+			catch(RuntimeException e) {
+				logger.error("Failed to release " + device + " : " + e.getMessage());
+			}
+		}
+	}
+
+	private static byte[] newRandom(DeviceContext context) {
+		if (context.random == null) {
+			return ChallengePool.getInstance().next();
+		}
+		byte[] result = new byte[ChallengePool.CHALLENGE_LENGTH];
+		context.random.nextBytes(result);
+		return result;
+	}
+
+	private static byte[] resolve(DeviceContext context, String value, byte[] defaultValue) {
+		if (value == null) {
+			return defaultValue;
+		}
+		if (value.equals(CampaignStep.RANDOM)) {
+			return newRandom(context);
+		}
+		return CampaignStep.parseHex(value);
+	}
+
+	private static int getExpected(CampaignStep step, int iteration, int defaultValue) {
+		String value = step.getParameter("expect", iteration, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		return Integer.parseInt(value, 16);
+	}
+
+	private static byte[] exchange(DeviceContext context, StepResult result, byte[] apdu) {
+		long start = System.nanoTime();
+		byte[] response = context.channel.exchangeApdu(apdu);
+		result.latency = System.nanoTime() - start;
+		result.statusWord = StatusWord.getStatusWord(response);
+		return response;
+	}
+
+	private static boolean checkStatusWord(StepResult result, int expected) {
+		if ((expected >= 0) && (result.statusWord != expected)) {
+			result.fail("Expected " + StatusWord.toString(expected));
+			return false;
+		}
+		return true;
+	}
+
+	private StepResult execute(DeviceContext context, CampaignStep step, int iteration) {
+		StepResult result = new StepResult();
+		switch(step.getType()) {
+			case REGISTER: {
+				byte[] challenge = resolve(context, step.getParameter("challenge", iteration, CampaignStep.RANDOM), null);
+				byte[] applicationParameter = resolve(context, step.getParameter("application", iteration, null), context.defaultApplicationParameter);
+				Register register = new Register(challenge, applicationParameter);
+				byte[] response = exchange(context, result, register.serialize());
+				if (!checkStatusWord(result, getExpected(step, iteration, StatusWord.SW_NO_ERROR)) || (result.statusWord != StatusWord.SW_NO_ERROR)) {
+					break;
+				}
+				RegisterResponseView registerView = context.registerView.wrap(response);
+				try {
+					byte[] attestationKey = U2FCrypto.getAttestationPublicKey(response, registerView.getCertificateOffset(), registerView.getCertificateLength());
+					if ((attestationKey != null) && !U2FCrypto.checkRegisterSignature(register, registerView, attestationKey)) {
+						result.fail("Invalid registration signature");
+						break;
+					}
+				}
+				catch(Exception e) {
+					result.fail("Invalid attestation certificate");
+					break;
+				}
+				context.registerResponse = registerView.toRegisterResponse();
+				context.registrationApplicationParameter = applicationParameter;
+				context.lastCounter = -1;
+				break;
+			}
+			case AUTHENTICATE: {
+				String keyHandleMode = step.getParameter("keyhandle", iteration, CampaignStep.KEY_HANDLE_LAST);
+				boolean checkOnly = step.getParameter("mode", iteration, CampaignStep.MODE_ENFORCE).equals(CampaignStep.MODE_CHECK);
+				boolean registeredKeyHandle = keyHandleMode.equals(CampaignStep.KEY_HANDLE_LAST);
+				byte[] keyHandle;
+				if (registeredKeyHandle || keyHandleMode.equals(CampaignStep.KEY_HANDLE_INVALID)) {
+					if (context.registerResponse == null) {
+						result.fail("No registration available");
+						break;
+					}
+					keyHandle = context.registerResponse.getKeyHandle();
+					if (!registeredKeyHandle) {
+						keyHandle = keyHandle.clone();
+						keyHandle[0] ^= (byte)0xff;
+						keyHandle[keyHandle.length - 1] ^= (byte)0xff;
+					}
+				}
+				else {
+					keyHandle = CampaignStep.parseHex(keyHandleMode);
+				}
+				byte[] defaultApplicationParameter = (context.registrationApplicationParameter != null ? context.registrationApplicationParameter : context.defaultApplicationParameter);
+				byte[] challenge = resolve(context, step.getParameter("challenge", iteration, CampaignStep.RANDOM), null);
+				byte[] applicationParameter = resolve(context, step.getParameter("application", iteration, null), defaultApplicationParameter);
+				boolean validRequest = registeredKeyHandle && Arrays.equals(applicationParameter, defaultApplicationParameter);
+				int expected = (!validRequest ? StatusWord.SW_WRONG_DATA : checkOnly ? StatusWord.SW_CONDITIONS_NOT_SATISFIED : StatusWord.SW_NO_ERROR);
+				Authenticate authenticate = new Authenticate(challenge, applicationParameter, keyHandle, checkOnly);
+				byte[] response = exchange(context, result, authenticate.serialize());
+				if (!checkStatusWord(result, getExpected(step, iteration, expected)) || (result.statusWord != StatusWord.SW_NO_ERROR) || !validRequest) {
+					break;
+				}
+				AuthenticateResponseView authenticateResponse = context.authenticateView.wrap(response);
+				if (!U2FCrypto.checkAuthenticateSignature(authenticate, authenticateResponse, context.registerResponse)) {
+					result.fail("Invalid authentication signature");
+					break;
+				}
+				long counter = authenticateResponse.getCounter() & 0xffffffffL;
+				if (counter <= context.lastCounter) {
+					result.fail("Counter regression " + counter + " after " + context.lastCounter);
+					break;
+				}
+				context.lastCounter = counter;
+				break;
+			}
+			case RAW: {
+				byte[] apdu = CampaignStep.parseHex(step.getParameter("apdu", iteration, null));
+				exchange(context, result, apdu);
+				checkStatusWord(result, getExpected(step, iteration, -1));
+				break;
+			}
+			case SLEEP: {
+				long start = System.nanoTime();
+				try {
+					Thread.sleep(Integer.parseInt(step.getParameter("ms", iteration, "0")));
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					stopped = true;
+					result.result = RESULT_ERROR;
+					result.detail = "Interrupted";
+				}
+				result.latency = System.nanoTime() - start;
+				break;
+			}
+		}
+		return result;
+	}
+
+	private void record(DeviceContext context, int iteration, CampaignStep step, StepResult result) {
+		if (step != null) {
+			StepSummary summary = summaries[step.getIndex()];
+			synchronized(summary) {
+				if (result.result.equals(RESULT_PASS)) {
+					summary.passed++;
+				}
+				else {
+					summary.failed++;
+				}
+			}
+			if (result.latency >= 0) {
+				summary.latency.add(result.latency);
+			}
+		}
+		StringBuffer line = new StringBuffer();
+		line.append(System.currentTimeMillis() - startTime).append(',');
+		line.append(context.device).append(',');
+		line.append(iteration).append(',');
+		line.append(step != null ? step.getIndex() : -1).append(',');
+		line.append(step != null ? step.getType().name().toLowerCase(Locale.US) : "").append(',');
+		line.append(step != null ? iteration % step.getVariantCount() : 0).append(',');
+		line.append(result.latency >= 0 ? LatencyStats.toMs(result.latency) : "").append(',');
+		line.append(result.statusWord >= 0 ? StatusWord.toString(result.statusWord) : "").append(',');
+		line.append(result.result).append(',');
+		line.append(result.detail != null ? "\"" + result.detail.replace("\"", "\"\"") + "\"" : "").append('\n');
+		try {
+			synchronized(output) {
+				output.write(line.toString());
+				output.flush();
+			}
+		}
+		catch(IOException e) {
+			logger.error("Failed to write campaign result " + e.getMessage());
+			stop();
+		}
+		if (!result.result.equals(RESULT_PASS)) {
+			logger.debug(context.device + " " + (step != null ? step.toString() : "") + " " + result.result + " : " + result.detail);
+		}
+	}
+
+	public String getSummary() {
+		StringBuffer response = new StringBuffer();
+		response.append("step,type,passed,failed,mean_ms,p50_ms,p95_ms,max_ms\n");
+		Vector<CampaignStep> steps = campaign.getSteps();
+		for (int i=0; i<summaries.length; i++) {
+			StepSummary summary = summaries[i];
+			LatencyStats latency = summary.getLatency();
+			response.append(i).append(',');
+			response.append(steps.get(i).getType().name().toLowerCase(Locale.US)).append(',');
+			response.append(summary.getPassed()).append(',');
+			response.append(summary.getFailed()).append(',');
+			response.append(LatencyStats.toMs(latency.getMean())).append(',');
+			response.append(LatencyStats.toMs(latency.getPercentile(50))).append(',');
+			response.append(LatencyStats.toMs(latency.getPercentile(95))).append(',');
+			response.append(LatencyStats.toMs(latency.getMax())).append('\n');
+		}
+		/* devices opened and failed to open, as in the step -1 rows of the results */
+		synchronized(this) {
+			response.append("-1,open,").append(opened).append(',').append(openFailures).append(",,,,\n");
+		}
+		return response.toString();
+	}
+
+}
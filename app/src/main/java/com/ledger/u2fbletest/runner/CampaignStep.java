@@ -0,0 +1,184 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.runner;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+import com.ledger.u2fbletest.utils.Dump;
+
+public class CampaignStep {
+
+	public static enum StepType {
+		REGISTER,
+		AUTHENTICATE,
+		RAW,
+		SLEEP
+	}
+
+	public static final String RANDOM = "random";
+	public static final String KEY_HANDLE_LAST = "last";
+	public static final String KEY_HANDLE_INVALID = "invalid";
+	public static final String MODE_ENFORCE = "enforce";
+	public static final String MODE_CHECK = "check";
+
+	private int index;
+	private StepType type;
+	private HashMap<String, String[]> parameters;
+	private int variantCount;
+
+	private CampaignStep(int index, StepType type) {
+		this.index = index;
+		this.type = type;
+		parameters = new HashMap<String, String[]>();
+		variantCount = 1;
+	}
+
+	private static void checkParameter(StepType type, String key, String value) {
+		boolean allowed;
+		switch(type) {
+			case REGISTER:
+				allowed = key.equals("challenge") || key.equals("application") || key.equals("expect");
+				break;
+			case AUTHENTICATE:
+				allowed = key.equals("challenge") || key.equals("application") || key.equals("keyhandle") || key.equals("mode") || key.equals("expect");
+				break;
+			case RAW:
+				allowed = key.equals("apdu") || key.equals("expect");
+				break;
+			default:
+				allowed = key.equals("ms");
+				break;
+		}
+		if (!allowed) {
+			throw new RuntimeException("Unsupported parameter " + key + " for " + type.name().toLowerCase(Locale.US));
+		}
+		if (key.equals("challenge") || key.equals("application")) {
+			if (!value.equals(RANDOM) && (parseHex(value).length != 32)) {
+				throw new RuntimeException("Invalid " + key + " " + value);
+			}
+		}
+		else
+		if (key.equals("keyhandle")) {
+			if (!value.equals(KEY_HANDLE_LAST) && !value.equals(KEY_HANDLE_INVALID)) {
+				int length = parseHex(value).length;
+				if ((length == 0) || (length > 255)) {
+					throw new RuntimeException("Invalid key handle " + value);
+				}
+			}
+		}
+		else
+		if (key.equals("mode")) {
+			if (!value.equals(MODE_ENFORCE) && !value.equals(MODE_CHECK)) {
+				throw new RuntimeException("Invalid mode " + value);
+			}
+		}
+		else
+		if (key.equals("expect")) {
+			if (parseHex(value).length != 2) {
+				throw new RuntimeException("Invalid status word " + value);
+			}
+		}
+		else
+		if (key.equals("apdu")) {
+			if (parseHex(value).length < 4) {
+				throw new RuntimeException("Invalid APDU " + value);
+			}
+		}
+		else
+		if (key.equals("ms")) {
+			try {
+				if (Integer.parseInt(value) < 0) {
+					throw new RuntimeException("Invalid delay " + value);
+				}
+			}
+			catch(NumberFormatException e) {
+				throw new RuntimeException("Invalid delay " + value);
+			}
+		}
+	}
+
+	public static byte[] parseHex(String value) {
+		byte[] result = Dump.hexToBin(value);
+		if ((result == null) || (result.length * 2 != value.length())) {
+			throw new RuntimeException("Invalid hex value " + value);
+		}
+		return result;
+	}
+
+	public static CampaignStep parse(int index, String[] tokens) {
+		if (tokens.length < 2) {
+			throw new RuntimeException("Missing step type");
+		}
+		StepType type;
+		try {
+			type = StepType.valueOf(tokens[1].toUpperCase(Locale.US));
+		}
+		catch(IllegalArgumentException e) {
+			throw new RuntimeException("Unknown step type " + tokens[1]);
+		}
+		CampaignStep step = new CampaignStep(index, type);
+		for (int i=2; i<tokens.length; i++) {
+			int separator = tokens[i].indexOf('=');
+			if (separator <= 0) {
+				throw new RuntimeException("Invalid parameter " + tokens[i]);
+			}
+			String key = tokens[i].substring(0, separator);
+			String[] variants = tokens[i].substring(separator + 1).split("\\|");
+			for (String variant : variants) {
+				checkParameter(type, key, variant);
+			}
+			step.parameters.put(key, variants);
+			step.variantCount = Math.max(step.variantCount, variants.length);
+		}
+		if ((type == StepType.RAW) && !step.parameters.containsKey("apdu")) {
+			throw new RuntimeException("Missing apdu for raw step");
+		}
+		if ((type == StepType.SLEEP) && !step.parameters.containsKey("ms")) {
+			throw new RuntimeException("Missing ms for sleep step");
+		}
+		return step;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public StepType getType() {
+		return type;
+	}
+
+	public int getVariantCount() {
+		return variantCount;
+	}
+
+	/* Returns the value used for the given iteration, or defaultValue if the parameter is not set */
+	public String getParameter(String key, int iteration, String defaultValue) {
+		String[] variants = parameters.get(key);
+		if (variants == null) {
+			return defaultValue;
+		}
+		return variants[iteration % variants.length];
+	}
+
+	public String toString() {
+		return "#" + index + " " + type.name().toLowerCase(Locale.US);
+	}
+
+}
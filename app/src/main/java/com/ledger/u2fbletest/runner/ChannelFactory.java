@@ -0,0 +1,31 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.runner;
+
+/*
+ * Resolves a campaign device specification to an ApduChannel. Each opened channel is released once the steps
+ * of its device are done, so that the factory can close the connection it created.
+ */
+public interface ChannelFactory {
+
+	public ApduChannel open(String device);
+
+	public void release(ApduChannel channel);
+
+}
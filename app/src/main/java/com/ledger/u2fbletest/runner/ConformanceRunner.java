@@ -0,0 +1,269 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.runner;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.Vector;
+
+import com.ledger.u2fbletest.Logger;
+import com.ledger.u2fbletest.apdus.Authenticate;
+import com.ledger.u2fbletest.apdus.AuthenticateResponseView;
+import com.ledger.u2fbletest.apdus.Register;
+import com.ledger.u2fbletest.apdus.RegisterResponse;
+import com.ledger.u2fbletest.apdus.RegisterResponseView;
+import com.ledger.u2fbletest.apdus.StatusWord;
+import com.ledger.u2fbletest.crypto.U2FCrypto;
+import com.ledger.u2fbletest.utils.ChallengePool;
+import com.ledger.u2fbletest.utils.LatencyStats;
+
+/*
+ * Runs the register / authenticate / check only / invalid application parameter / invalid key handle
+ * matrix against an ApduChannel and collects per case results.
+ */
+public class ConformanceRunner {
+
+	public static enum TestCase {
+		REGISTER,
+		AUTHENTICATE,
+		CHECK_ONLY,
+		INVALID_APPLICATION_PARAMETER,
+		INVALID_KEY_HANDLE
+	}
+
+	public static class CaseResult {
+		private TestCase testCase;
+		private int passed;
+		private int failed;
+		private String lastFailure;
+		private LatencyStats latency;
+
+		public CaseResult(TestCase testCase) {
+			this.testCase = testCase;
+			latency = new LatencyStats();
+		}
+
+		public TestCase getTestCase() {
+			return testCase;
+		}
+
+		public int getPassed() {
+			return passed;
+		}
+
+		public int getFailed() {
+			return failed;
+		}
+
+		public String getLastFailure() {
+			return lastFailure;
+		}
+
+		public LatencyStats getLatency() {
+			return latency;
+		}
+	}
+
+	public static final String CSV_HEADER = "case,runs,passed,failed,min_ms,mean_ms,p50_ms,p95_ms,p99_ms,max_ms,last_failure";
+
+	private ApduChannel channel;
+	private Logger logger;
+	private byte[] applicationParameter;
+	private RegisterResponse registerResponse;
+	/* responses are checked in place, only the registration kept for the next cases is copied */
+	private RegisterResponseView registerView;
+	private AuthenticateResponseView authenticateView;
+	private long lastCounter;
+	private Random random;
+	private volatile boolean stopped;
+
+	public ConformanceRunner(ApduChannel channel, Logger logger) {
+		this.channel = channel;
+		this.logger = logger;
+		registerView = new RegisterResponseView();
+		authenticateView = new AuthenticateResponseView();
+		lastCounter = -1;
+	}
+
+	/* Seeded generator, so that a recorded session sends the same challenges and application parameter when replayed */
+	public void setRandom(Random random) {
+		this.random = random;
+	}
+
+	public void stop() {
+		stopped = true;
+	}
+
+	public Vector<CaseResult> run(int repetitions) {
+		TestCase[] testCases = TestCase.values();
+		Vector<CaseResult> results = new Vector<CaseResult>();
+		for (TestCase testCase : testCases) {
+			results.add(new CaseResult(testCase));
+		}
+		if (applicationParameter == null) {
+			applicationParameter = newChallenge();
+		}
+		for (int i=0; (i<repetitions) && !stopped; i++) {
+			for (int j=0; (j<testCases.length) && !stopped; j++) {
+				runCase(results.get(j));
+			}
+		}
+		return results;
+	}
+
+	private byte[] newChallenge() {
+		if (random == null) {
+			return ChallengePool.getInstance().next();
+		}
+		byte[] result = new byte[ChallengePool.CHALLENGE_LENGTH];
+		random.nextBytes(result);
+		return result;
+	}
+
+	private void runCase(CaseResult result) {
+		String failure;
+		if ((result.testCase != TestCase.REGISTER) && (registerResponse == null)) {
+			failure = "No registration available";
+		}
+		else {
+			try {
+				failure = execute(result);
+			}
+			catch(RuntimeException e) {
+				failure = "Exception " + e.getMessage();
+			}
+		}
+		if (failure == null) {
+			result.passed++;
+		}
+		else {
+			result.failed++;
+			result.lastFailure = failure;
+			logger.debug(result.testCase + " failed : " + failure);
+		}
+	}
+
+	private byte[] timedExchange(CaseResult result, byte[] apdu) {
+		long start = System.nanoTime();
+		byte[] response = channel.exchangeApdu(apdu);
+		result.latency.add(System.nanoTime() - start);
+		return response;
+	}
+
+	private static String checkStatusWord(byte[] response, int expected) {
+		int statusWord = StatusWord.getStatusWord(response);
+		if (statusWord != expected) {
+			return "Unexpected status " + StatusWord.toString(statusWord) + " expected " + StatusWord.toString(expected);
+		}
+		return null;
+	}
+
+	private String execute(CaseResult result) {
+		switch(result.testCase) {
+			case REGISTER: {
+				Register register = new Register(newChallenge(), applicationParameter);
+				byte[] response = timedExchange(result, register.serialize());
+				String failure = checkStatusWord(response, StatusWord.SW_NO_ERROR);
+				if (failure != null) {
+					return failure;
+				}
+				RegisterResponseView parsed = registerView.wrap(response);
+				try {
+					byte[] attestationKey = U2FCrypto.getAttestationPublicKey(response, parsed.getCertificateOffset(), parsed.getCertificateLength());
+					if ((attestationKey != null) && !U2FCrypto.checkRegisterSignature(register, parsed, attestationKey)) {
+						return "Invalid registration signature";
+					}
+				}
+				catch(Exception e) {
+					return "Invalid attestation certificate " + e.getMessage();
+				}
+				registerResponse = parsed.toRegisterResponse();
+				lastCounter = -1;
+				return null;
+			}
+			case AUTHENTICATE: {
+				Authenticate authenticate = new Authenticate(newChallenge(), applicationParameter, registerResponse.getKeyHandle(), false);
+				byte[] response = timedExchange(result, authenticate.serialize());
+				String failure = checkStatusWord(response, StatusWord.SW_NO_ERROR);
+				if (failure != null) {
+					return failure;
+				}
+				AuthenticateResponseView parsed = authenticateView.wrap(response);
+				if ((parsed.getUserPresenceFlag() & 0x01) == 0) {
+					return "User presence not asserted";
+				}
+				if (!U2FCrypto.checkAuthenticateSignature(authenticate, parsed, registerResponse)) {
+					return "Invalid authentication signature";
+				}
+				long counter = parsed.getCounter() & 0xffffffffL;
+				if (counter <= lastCounter) {
+					return "Counter regression " + counter + " after " + lastCounter;
+				}
+				lastCounter = counter;
+				return null;
+			}
+			case CHECK_ONLY: {
+				Authenticate authenticate = new Authenticate(newChallenge(), applicationParameter, registerResponse.getKeyHandle(), true);
+				return checkStatusWord(timedExchange(result, authenticate.serialize()), StatusWord.SW_CONDITIONS_NOT_SATISFIED);
+			}
+			case INVALID_APPLICATION_PARAMETER: {
+				byte[] invalidApplicationParameter = applicationParameter.clone();
+				invalidApplicationParameter[0] ^= (byte)0xff;
+				Authenticate authenticate = new Authenticate(newChallenge(), invalidApplicationParameter, registerResponse.getKeyHandle(), false);
+				return checkStatusWord(timedExchange(result, authenticate.serialize()), StatusWord.SW_WRONG_DATA);
+			}
+			case INVALID_KEY_HANDLE: {
+				byte[] invalidKeyHandle = registerResponse.getKeyHandle().clone();
+				invalidKeyHandle[0] ^= (byte)0xff;
+				invalidKeyHandle[invalidKeyHandle.length - 1] ^= (byte)0xff;
+				Authenticate authenticate = new Authenticate(newChallenge(), applicationParameter, invalidKeyHandle, false);
+				return checkStatusWord(timedExchange(result, authenticate.serialize()), StatusWord.SW_WRONG_DATA);
+			}
+		}
+		throw new RuntimeException("Unsupported test case");
+	}
+
+	private static String escape(String value) {
+		if (value == null) {
+			return "";
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	public static String toCsv(Vector<CaseResult> results) {
+		StringBuffer response = new StringBuffer();
+		response.append(CSV_HEADER).append("\n");
+		for (CaseResult result : results) {
+			LatencyStats latency = result.latency;
+			response.append(result.testCase.name().toLowerCase(Locale.US)).append(',');
+			response.append(result.passed + result.failed).append(',');
+			response.append(result.passed).append(',');
+			response.append(result.failed).append(',');
+			response.append(LatencyStats.toMs(latency.getMin())).append(',');
+			response.append(LatencyStats.toMs(latency.getMean())).append(',');
+			response.append(LatencyStats.toMs(latency.getPercentile(50))).append(',');
+			response.append(LatencyStats.toMs(latency.getPercentile(95))).append(',');
+			response.append(LatencyStats.toMs(latency.getPercentile(99))).append(',');
+			response.append(LatencyStats.toMs(latency.getMax())).append(',');
+			response.append(escape(result.lastFailure)).append("\n");
+		}
+		return response.toString();
+	}
+
+}
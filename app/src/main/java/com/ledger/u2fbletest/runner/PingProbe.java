@@ -0,0 +1,176 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.runner;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ledger.u2fbletest.Logger;
+import com.ledger.u2fbletest.utils.Histogram;
+import com.ledger.u2fbletest.utils.LatencyStats;
+
+/*
+ * Measures the transport round trip with PING frames sent on a fixed schedule. Each payload starts with its
+ * sequence number so that echoes can be matched, the rest is random. U2F processing is not involved, the
+ * latency only covers framing, the link and the authenticator transport layer.
+ */
+public class PingProbe {
+
+	public static final int DEFAULT_SIZE = 64;
+	public static final long DEFAULT_INTERVAL = 100;
+	private static final int SEQUENCE_LENGTH = 4;
+	/* consecutive failures after which the channel is considered gone */
+	public static final int MAX_CONSECUTIVE_FAILURES = 5;
+
+	private PingChannel channel;
+	private Logger logger;
+	private int size;
+	private long interval;
+	private Random random;
+	private volatile boolean stopped;
+
+	private long sent;
+	private long matched;
+	private long mismatched;
+	private long failed;
+	private LatencyStats latency;
+	private Histogram histogram;
+
+	public PingProbe(PingChannel channel, Logger logger) {
+		this.channel = channel;
+		this.logger = logger;
+		size = DEFAULT_SIZE;
+		interval = DEFAULT_INTERVAL;
+		random = new Random();
+		latency = new LatencyStats();
+		histogram = new Histogram();
+	}
+
+	public void setSize(int size) {
+		if ((size < SEQUENCE_LENGTH) || (size > 0xffff)) {
+			throw new RuntimeException("Invalid ping size " + size);
+		}
+		this.size = size;
+	}
+
+	/* time between the start of two probes in milliseconds, 0 sends them back to back */
+	public void setInterval(long interval) {
+		this.interval = interval;
+	}
+
+	/* Seeded generator, so that a recorded session sends the same payloads when replayed */
+	public void setRandom(Random random) {
+		this.random = random;
+	}
+
+	public void stop() {
+		stopped = true;
+	}
+
+	private byte[] newPayload(long sequence) {
+		byte[] payload = new byte[size];
+		random.nextBytes(payload);
+		for (int i=0; i<SEQUENCE_LENGTH; i++) {
+			payload[i] = (byte)(sequence >> (8 * (SEQUENCE_LENGTH - 1 - i)));
+		}
+		return payload;
+	}
+
+	/* Runs count probes, or until stopped if count is 0. Gives up after MAX_CONSECUTIVE_FAILURES failures in a row */
+	public void run(long count) throws InterruptedException {
+		stopped = false;
+		int consecutiveFailures = 0;
+		long next = System.currentTimeMillis();
+		for (long i=0; ((count == 0) || (i < count)) && !stopped; i++) {
+			long wait = next - System.currentTimeMillis();
+			if (wait > 0) {
+				Thread.sleep(wait);
+			}
+			next += interval;
+			byte[] payload = newPayload(i);
+			long start = System.nanoTime();
+			byte[] echo;
+			synchronized(this) {
+				sent++;
+			}
+			try {
+				echo = channel.ping(payload);
+			}
+			catch(RuntimeException e) {
+				synchronized(this) {
+					failed++;
+				}
+				logger.error("Ping " + i + " failed : " + e.getMessage());
+				consecutiveFailures++;
+				if (consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+					logger.error("Giving up after " + consecutiveFailures + " consecutive failures");
+					return;
+				}
+				continue;
+			}
+			consecutiveFailures = 0;
+			long elapsed = System.nanoTime() - start;
+			if (!Arrays.equals(echo, payload)) {
+				synchronized(this) {
+					mismatched++;
+				}
+				logger.error("Ping " + i + " echo mismatch");
+				continue;
+			}
+			synchronized(this) {
+				matched++;
+			}
+			latency.add(elapsed);
+			histogram.add(elapsed);
+		}
+	}
+
+	public synchronized long getSent() {
+		return sent;
+	}
+
+	public synchronized long getMatched() {
+		return matched;
+	}
+
+	public synchronized long getMismatched() {
+		return mismatched;
+	}
+
+	public synchronized long getFailed() {
+		return failed;
+	}
+
+	public LatencyStats getLatency() {
+		return latency;
+	}
+
+	public Histogram getHistogram() {
+		return histogram;
+	}
+
+	public String getSummary() {
+		String counters;
+		synchronized(this) {
+			counters = "ping " + size + " bytes : sent " + sent + " matched " + matched + " mismatched " + mismatched + " failed " + failed;
+		}
+		return counters + "\nrtt " + latency + "\n" + histogram;
+	}
+
+}
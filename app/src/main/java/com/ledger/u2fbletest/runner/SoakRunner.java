@@ -0,0 +1,263 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.runner;
+
+import java.util.Locale;
+import java.util.Vector;
+
+import com.ledger.u2fbletest.Logger;
+
+/*
+ * Repeats a connect, exchange and disconnect cycle for a long time, sampling resource counters between cycles.
+ * A counter is flagged when the least squares slope of its samples against the cycle index, after a warm up
+ * quarter, is above its tolerance per 1000 cycles. Threads and heap are always sampled, the caller adds the
+ * transport specific ones such as open GATT clients or pending timer tasks.
+ */
+public class SoakRunner {
+
+	public static interface Cycle {
+		public void run(int index) throws Exception;
+	}
+
+	public static interface Counter {
+		public long sample();
+	}
+
+	public static final long DEFAULT_SAMPLE_INTERVAL = 60000;
+	/* a steady state needs a few samples after the warm up */
+	private static final int MIN_TREND_SAMPLES = 4;
+
+	public static class Trend {
+		private String name;
+		private long first;
+		private long last;
+		private long max;
+		private double slope;
+		private double tolerance;
+
+		public String getName() {
+			return name;
+		}
+
+		/* growth per 1000 cycles */
+		public double getSlope() {
+			return slope;
+		}
+
+		public boolean isGrowing() {
+			return (slope > tolerance) && (last > first);
+		}
+
+		public String toString() {
+			return String.format(Locale.US, "%s first %d last %d max %d slope %.1f/1000 cycles%s", name, first, last, max, slope, (isGrowing() ? " GROWING" : ""));
+		}
+	}
+
+	private static class Resource {
+		private String name;
+		private Counter counter;
+		private double tolerance;
+		private Vector<Long> values;
+
+		private Resource(String name, Counter counter, double tolerance) {
+			this.name = name;
+			this.counter = counter;
+			this.tolerance = tolerance;
+			values = new Vector<Long>();
+		}
+	}
+
+	private Cycle cycle;
+	private Logger logger;
+	private Vector<Resource> resources;
+	private Vector<Integer> sampleCycles;
+	private Vector<Long> sampleTimes;
+	private Vector<Integer> sampleFailures;
+	private long sampleInterval;
+	private long duration;
+	private int maxCycles;
+	private int cycles;
+	private int failed;
+	private volatile boolean stopped;
+
+	public SoakRunner(Cycle cycle, Logger logger) {
+		this.cycle = cycle;
+		this.logger = logger;
+		resources = new Vector<Resource>();
+		sampleCycles = new Vector<Integer>();
+		sampleTimes = new Vector<Long>();
+		sampleFailures = new Vector<Integer>();
+		sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+		addCounter("threads", new Counter() {
+			@Override
+			public long sample() {
+				return Thread.getAllStackTraces().size();
+			}
+		}, 1);
+		/* collected before sampling, a leak of 1 KB per cycle is still reported */
+		addCounter("heap", new Counter() {
+			@Override
+			public long sample() {
+				Runtime runtime = Runtime.getRuntime();
+				runtime.gc();
+				return runtime.totalMemory() - runtime.freeMemory();
+			}
+		}, 1024 * 1024);
+	}
+
+	/* Tolerance is the growth per 1000 cycles accepted before flagging the counter */
+	public void addCounter(String name, Counter counter, double tolerance) {
+		resources.add(new Resource(name, counter, tolerance));
+	}
+
+	public void setSampleInterval(long sampleInterval) {
+		this.sampleInterval = sampleInterval;
+	}
+
+	/* 0 runs until stopped or the cycle limit is reached */
+	public void setDuration(long duration) {
+		this.duration = duration;
+	}
+
+	public void setMaxCycles(int maxCycles) {
+		this.maxCycles = maxCycles;
+	}
+
+	public void stop() {
+		stopped = true;
+	}
+
+	public int getCycles() {
+		return cycles;
+	}
+
+	public int getFailed() {
+		return failed;
+	}
+
+	private void sample(long start) {
+		sampleCycles.add(cycles);
+		sampleTimes.add(System.currentTimeMillis() - start);
+		sampleFailures.add(failed);
+		StringBuffer line = new StringBuffer();
+		line.append("Soak cycle ").append(cycles).append(" failed ").append(failed);
+		for (Resource resource : resources) {
+			long value = resource.counter.sample();
+			resource.values.add(value);
+			line.append(' ').append(resource.name).append(' ').append(value);
+		}
+		logger.debug(line.toString());
+	}
+
+	/* Samples are taken between cycles, so that transient resources of a cycle are not counted */
+	public void run() {
+		stopped = false;
+		long start = System.currentTimeMillis();
+		long nextSample = start;
+		while (!stopped && ((maxCycles == 0) || (cycles < maxCycles)) && ((duration == 0) || (System.currentTimeMillis() - start < duration))) {
+			if (System.currentTimeMillis() >= nextSample) {
+				sample(start);
+				nextSample += sampleInterval;
+			}
+			try {
+				cycle.run(cycles);
+			}
+			catch(Exception e) {
+				failed++;
+				logger.error("Soak cycle " + cycles + " failed : " + e.getMessage());
+			}
+			cycles++;
+		}
+		sample(start);
+	}
+
+	public Vector<Trend> getTrends() {
+		Vector<Trend> trends = new Vector<Trend>();
+		int from = sampleCycles.size() / 4;
+		for (Resource resource : resources) {
+			Trend trend = new Trend();
+			trend.name = resource.name;
+			trend.tolerance = resource.tolerance;
+			if (resource.values.isEmpty()) {
+				trends.add(trend);
+				continue;
+			}
+			trend.first = resource.values.get(from);
+			trend.last = resource.values.lastElement();
+			int count = resource.values.size() - from;
+			double sumX = 0;
+			double sumY = 0;
+			for (int i=from; i<resource.values.size(); i++) {
+				trend.max = Math.max(trend.max, resource.values.get(i));
+				sumX += sampleCycles.get(i);
+				sumY += resource.values.get(i);
+			}
+			if (count >= MIN_TREND_SAMPLES) {
+				double meanX = sumX / count;
+				double meanY = sumY / count;
+				double covariance = 0;
+				double variance = 0;
+				for (int i=from; i<resource.values.size(); i++) {
+					double dx = sampleCycles.get(i) - meanX;
+					covariance += dx * (resource.values.get(i) - meanY);
+					variance += dx * dx;
+				}
+				trend.slope = (variance != 0 ? 1000 * covariance / variance : 0);
+			}
+			trends.add(trend);
+		}
+		return trends;
+	}
+
+	public boolean hasGrowth() {
+		for (Trend trend : getTrends()) {
+			if (trend.isGrowing()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public String getSummary() {
+		StringBuffer result = new StringBuffer();
+		result.append("soak ").append(cycles).append(" cycles, ").append(failed).append(" failed, ").append(sampleCycles.size()).append(" samples\n");
+		for (Trend trend : getTrends()) {
+			result.append(trend).append('\n');
+		}
+		return result.toString();
+	}
+
+	public String toCsv() {
+		StringBuffer result = new StringBuffer();
+		result.append("cycle,elapsed_ms,failed");
+		for (Resource resource : resources) {
+			result.append(',').append(resource.name);
+		}
+		result.append('\n');
+		for (int i=0; i<sampleCycles.size(); i++) {
+			result.append(sampleCycles.get(i)).append(',').append(sampleTimes.get(i)).append(',').append(sampleFailures.get(i));
+			for (Resource resource : resources) {
+				result.append(',').append(resource.values.get(i));
+			}
+			result.append('\n');
+		}
+		return result.toString();
+	}
+
+}
@@ -0,0 +1,268 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.runner;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Vector;
+
+import com.ledger.u2fbletest.Logger;
+import com.ledger.u2fbletest.utils.BLETransportHelper;
+
+/*
+ * Sweeps payload and fragment sizes over a channel and reports the effective throughput of each point. PING
+ * carries the payload both ways, MSG sends it uplink in an extended APDU with an unsupported instruction which
+ * the authenticator rejects with a status word once reassembled. Payloads go from one fragment to the 65535
+ * bytes limit of the frame length field, doubling at each step.
+ */
+public class ThroughputBenchmark {
+
+	public static enum Mode {
+		PING,
+		MSG
+	};
+
+	public static final int MAX_PAYLOAD = 0xffff;
+	/* CLA INS P1 P2 and the 3 bytes extended length */
+	private static final int APDU_HEADER_LENGTH = 7;
+	private static final int BENCHMARK_INS = 0xbe;
+	private static final int FIRST_HEADER_LENGTH = 3;
+	private static final int CONTINUATION_HEADER_LENGTH = 1;
+
+	public static class Point {
+		private int fragmentSize;
+		private int payloadSize;
+		private int exchanges;
+		private int failed;
+		private long elapsed;
+		private long bytesUp;
+		private long bytesDown;
+		private long fragments;
+		private int overheadBytes;
+		private double framingNanos;
+
+		public int getFragmentSize() {
+			return fragmentSize;
+		}
+
+		public int getPayloadSize() {
+			return payloadSize;
+		}
+
+		public int getFailed() {
+			return failed;
+		}
+
+		private double getSeconds() {
+			return elapsed / 1000000000.0;
+		}
+
+		public double getUplinkRate() {
+			return (elapsed != 0 ? bytesUp / getSeconds() : 0);
+		}
+
+		public double getDownlinkRate() {
+			return (elapsed != 0 ? bytesDown / getSeconds() : 0);
+		}
+
+		public double getFragmentRate() {
+			return (elapsed != 0 ? fragments / getSeconds() : 0);
+		}
+
+		/* framing bytes over payload bytes of a single exchange, in percent */
+		public double getOverhead() {
+			return 100.0 * overheadBytes / payloadSize;
+		}
+
+		public String toCsv(Mode mode) {
+			return String.format(Locale.US, "%s,%d,%d,%d,%d,%.3f,%.0f,%.0f,%.1f,%.2f,%.0f", mode.toString().toLowerCase(Locale.US), fragmentSize, payloadSize,
+				exchanges, failed, (exchanges != 0 ? elapsed / 1000000.0 / exchanges : 0), getUplinkRate(), getDownlinkRate(), getFragmentRate(), getOverhead(), framingNanos);
+		}
+	}
+
+	public static final String CSV_HEADER = "mode,fragment,payload,exchanges,failed,mean_ms,up_bytes_per_s,down_bytes_per_s,fragments_per_s,overhead_pct,split_join_ns_per_fragment";
+
+	private FramedChannel channel;
+	private Logger logger;
+	private Mode mode;
+	private int repetitions;
+	private int maxPayload;
+	private Random random;
+	private volatile boolean stopped;
+
+	public ThroughputBenchmark(FramedChannel channel, Logger logger) {
+		this.channel = channel;
+		this.logger = logger;
+		mode = Mode.PING;
+		repetitions = 10;
+		maxPayload = MAX_PAYLOAD;
+		random = new Random();
+	}
+
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+
+	public void setRepetitions(int repetitions) {
+		this.repetitions = repetitions;
+	}
+
+	public void setMaxPayload(int maxPayload) {
+		this.maxPayload = Math.min(maxPayload, MAX_PAYLOAD);
+	}
+
+	/* Seeded generator, so that a recorded session sends the same payloads when replayed */
+	public void setRandom(Random random) {
+		this.random = random;
+	}
+
+	public void stop() {
+		stopped = true;
+	}
+
+	/* Number of frames needed for a message of this length */
+	public static int getFragmentCount(int length, int fragmentSize) {
+		int first = fragmentSize - FIRST_HEADER_LENGTH;
+		if (length <= first) {
+			return 1;
+		}
+		int continuation = fragmentSize - CONTINUATION_HEADER_LENGTH;
+		return 1 + (length - first + continuation - 1) / continuation;
+	}
+
+	public static Vector<Integer> getPayloadSizes(int fragmentSize, int maxPayload) {
+		Vector<Integer> sizes = new Vector<Integer>();
+		int size = fragmentSize - FIRST_HEADER_LENGTH;
+		while (size < maxPayload) {
+			sizes.add(size);
+			size *= 2;
+		}
+		sizes.add(maxPayload);
+		return sizes;
+	}
+
+	/* Average split and join time per fragment of a message, measured off line */
+	private static double measureFraming(int command, byte[] message, int fragmentSize) {
+		int rounds = Math.max(1, 20000 / getFragmentCount(message.length, fragmentSize));
+		long start = System.nanoTime();
+		long fragments = 0;
+		for (int i=0; i<rounds; i++) {
+			Vector<byte[]> frames = BLETransportHelper.split(command, message, fragmentSize);
+			if (BLETransportHelper.join(command, frames) == null) {
+				throw new RuntimeException("Framing failed");
+			}
+			fragments += frames.size();
+		}
+		return (double)(System.nanoTime() - start) / fragments;
+	}
+
+	private byte[] buildMessage(int payloadSize) {
+		byte[] payload = new byte[payloadSize];
+		random.nextBytes(payload);
+		if (mode == Mode.PING) {
+			return payload;
+		}
+		int dataLength = payloadSize - APDU_HEADER_LENGTH;
+		payload[0] = 0x00;
+		payload[1] = (byte)BENCHMARK_INS;
+		payload[2] = 0x00;
+		payload[3] = 0x00;
+		payload[4] = 0x00;
+		payload[5] = (byte)(dataLength >> 8);
+		payload[6] = (byte)dataLength;
+		return payload;
+	}
+
+	public Point runPoint(int fragmentSize, int payloadSize) {
+		int command = (mode == Mode.PING ? BLETransportHelper.COMMAND_PING : BLETransportHelper.COMMAND_MSG);
+		Point point = new Point();
+		point.fragmentSize = fragmentSize;
+		point.payloadSize = payloadSize;
+		byte[] message = buildMessage(payloadSize);
+		int upFragments = getFragmentCount(message.length, fragmentSize);
+		point.overheadBytes = FIRST_HEADER_LENGTH + (upFragments - 1) * CONTINUATION_HEADER_LENGTH;
+		point.framingNanos = measureFraming(command, message, fragmentSize);
+		channel.setFragmentSize(fragmentSize);
+		long start = System.nanoTime();
+		for (int i=0; (i<repetitions) && !stopped; i++) {
+			byte[] response;
+			try {
+				response = (mode == Mode.PING ? channel.ping(message) : channel.exchangeApdu(message));
+			}
+			catch(RuntimeException e) {
+				point.failed++;
+				logger.error("Benchmark " + fragmentSize + "/" + payloadSize + " failed : " + e.getMessage());
+				continue;
+			}
+			if ((mode == Mode.PING) && !Arrays.equals(response, message)) {
+				point.failed++;
+				logger.error("Benchmark " + fragmentSize + "/" + payloadSize + " echo mismatch");
+				continue;
+			}
+			point.exchanges++;
+			point.bytesUp += message.length;
+			point.bytesDown += response.length;
+			/* downlink fragments follow the authenticator control point length */
+			point.fragments += upFragments + getFragmentCount(response.length, channel.getMaxFragmentSize());
+		}
+		point.elapsed = System.nanoTime() - start;
+		return point;
+	}
+
+	/* Runs each payload size for each fragment size, fragment sizes above the control point length are skipped */
+	public Vector<Point> run(int[] fragmentSizes) {
+		stopped = false;
+		Vector<Point> points = new Vector<Point>();
+		int maxFragmentSize = channel.getMaxFragmentSize();
+		try {
+			for (int fragmentSize : fragmentSizes) {
+				if ((fragmentSize > maxFragmentSize) || (fragmentSize <= FIRST_HEADER_LENGTH)) {
+					logger.debug("Skipping fragment size " + fragmentSize + ", control point length " + maxFragmentSize);
+					continue;
+				}
+				for (int payloadSize : getPayloadSizes(fragmentSize, (mode == Mode.MSG ? Math.min(maxPayload, MAX_PAYLOAD) : maxPayload))) {
+					if ((mode == Mode.MSG) && (payloadSize <= APDU_HEADER_LENGTH)) {
+						continue;
+					}
+					if (stopped) {
+						return points;
+					}
+					Point point = runPoint(fragmentSize, payloadSize);
+					logger.debug("Benchmark " + point.toCsv(mode));
+					points.add(point);
+				}
+			}
+		}
+		finally {
+			channel.setFragmentSize(0);
+		}
+		return points;
+	}
+
+	public String toCsv(Vector<Point> points) {
+		StringBuffer result = new StringBuffer();
+		result.append(CSV_HEADER).append('\n');
+		for (Point point : points) {
+			result.append(point.toCsv(mode)).append('\n');
+		}
+		return result.toString();
+	}
+
+}
@@ -0,0 +1,55 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.simulator;
+
+import com.ledger.u2fbletest.runner.ApduChannel;
+
+public class SimulatorChannel implements ApduChannel {
+
+	private U2FSimulator simulator;
+	private int processingDelayMs;
+
+	public SimulatorChannel(U2FSimulator simulator, int processingDelayMs) {
+		this.simulator = simulator;
+		this.processingDelayMs = processingDelayMs;
+	}
+
+	public SimulatorChannel(U2FSimulator simulator) {
+		this(simulator, 0);
+	}
+
+	public U2FSimulator getSimulator() {
+		return simulator;
+	}
+
+	@Override
+	public byte[] exchangeApdu(byte[] apdu) {
+		if (processingDelayMs > 0) {
+			try {
+				Thread.sleep(processingDelayMs);
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted");
+			}
+		}
+		return simulator.process(apdu);
+	}
+
+}
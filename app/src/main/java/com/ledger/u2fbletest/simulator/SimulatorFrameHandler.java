@@ -0,0 +1,95 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.simulator;
+
+import java.util.Vector;
+
+import com.ledger.u2fbletest.transport.FrameHandler;
+import com.ledger.u2fbletest.utils.BLETransportHelper;
+
+/*
+ * Reassembles request frames for a U2FSimulator, answers MSG with the APDU response and echoes PING.
+ */
+public class SimulatorFrameHandler implements FrameHandler {
+
+	public static final int DEFAULT_CONTROL_POINT_LENGTH = 20;
+
+	public static final int ERR_INVALID_CMD = 0x01;
+	public static final int ERR_INVALID_LEN = 0x03;
+	public static final int ERR_INVALID_SEQ = 0x04;
+
+	private U2FSimulator simulator;
+	private int controlPointLength;
+	private Vector<byte[]> frames;
+
+	public SimulatorFrameHandler(U2FSimulator simulator, int controlPointLength) {
+		this.simulator = simulator;
+		this.controlPointLength = controlPointLength;
+		frames = new Vector<byte[]>();
+	}
+
+	public SimulatorFrameHandler(U2FSimulator simulator) {
+		this(simulator, DEFAULT_CONTROL_POINT_LENGTH);
+	}
+
+	public U2FSimulator getSimulator() {
+		return simulator;
+	}
+
+	@Override
+	public int getControlPointLength() {
+		return controlPointLength;
+	}
+
+	private static Vector<byte[]> error(int code) {
+		Vector<byte[]> result = new Vector<byte[]>();
+		result.add(new byte[] { (byte)BLETransportHelper.COMMAND_ERROR, 0x00, 0x01, (byte)code });
+		return result;
+	}
+
+	@Override
+	public synchronized Vector<byte[]> handleFrame(byte[] frame) {
+		if (frame.length == 0) {
+			return error(ERR_INVALID_LEN);
+		}
+		frames.add(frame);
+		int command = frames.get(0)[0] & 0xff;
+		if ((command != BLETransportHelper.COMMAND_MSG) && (command != BLETransportHelper.COMMAND_PING)) {
+			frames.removeAllElements();
+			return error((command & 0x80) == 0 ? ERR_INVALID_SEQ : ERR_INVALID_CMD);
+		}
+		byte[] request;
+		try {
+			request = BLETransportHelper.join(command, frames);
+		}
+		catch(RuntimeException e) {
+			frames.removeAllElements();
+			return error(ERR_INVALID_SEQ);
+		}
+		if (request == null) {
+			return null;
+		}
+		frames.removeAllElements();
+		if (command == BLETransportHelper.COMMAND_PING) {
+			return BLETransportHelper.split(command, request, controlPointLength);
+		}
+		return BLETransportHelper.split(command, simulator.process(request), controlPointLength);
+	}
+
+}
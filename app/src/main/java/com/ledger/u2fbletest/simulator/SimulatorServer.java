@@ -0,0 +1,116 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.simulator;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Vector;
+
+import com.ledger.u2fbletest.Logger;
+import com.ledger.u2fbletest.transport.SocketTransport;
+
+/*
+ * Exposes a U2FSimulator over TCP using the SocketTransport framing. All connections share the same
+ * simulated authenticator, so credentials registered by one client can be used by another.
+ */
+public class SimulatorServer {
+
+	private U2FSimulator simulator;
+	private int controlPointLength;
+	private Logger logger;
+	private ServerSocket serverSocket;
+	private volatile boolean stopped;
+
+	public SimulatorServer(U2FSimulator simulator, int controlPointLength, Logger logger) {
+		this.simulator = simulator;
+		this.controlPointLength = controlPointLength;
+		this.logger = logger;
+	}
+
+	public int bind(int port) throws IOException {
+		serverSocket = new ServerSocket(port);
+		return serverSocket.getLocalPort();
+	}
+
+	public void stop() {
+		stopped = true;
+		try {
+			serverSocket.close();
+		}
+		catch(IOException e) {
+		}
+	}
+
+	public void run() {
+		while (!stopped) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			}
+			catch(IOException e) {
+				if (!stopped) {
+					logger.error("Accept failed " + e);
+				}
+				break;
+			}
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					serve(socket);
+				}
+			}, "SimulatorServer " + socket.getRemoteSocketAddress());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void serve(Socket socket) {
+		String peer = String.valueOf(socket.getRemoteSocketAddress());
+		logger.info("Client connected " + peer);
+		SimulatorFrameHandler handler = new SimulatorFrameHandler(simulator, controlPointLength);
+		try {
+			socket.setTcpNoDelay(true);
+			DataInputStream input = new DataInputStream(socket.getInputStream());
+			OutputStream output = socket.getOutputStream();
+			output.write(new byte[] { (byte)(controlPointLength >> 8), (byte)(controlPointLength & 0xff) });
+			output.flush();
+			for (;;) {
+				Vector<byte[]> response = handler.handleFrame(SocketTransport.readFrame(input));
+				if (response != null) {
+					for (byte[] frame : response) {
+						SocketTransport.writeFrame(output, frame);
+					}
+				}
+			}
+		}
+		catch(IOException e) {
+		}
+		finally {
+			try {
+				socket.close();
+			}
+			catch(IOException e) {
+			}
+		}
+		logger.info("Client disconnected " + peer);
+	}
+
+}
@@ -0,0 +1,247 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.spongycastle.asn1.ASN1EncodableVector;
+import org.spongycastle.asn1.ASN1Integer;
+import org.spongycastle.asn1.DERSequence;
+import org.spongycastle.crypto.AsymmetricCipherKeyPair;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.generators.ECKeyPairGenerator;
+import org.spongycastle.crypto.params.ECKeyGenerationParameters;
+import org.spongycastle.crypto.params.ECPrivateKeyParameters;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.crypto.signers.HMacDSAKCalculator;
+
+import com.ledger.u2fbletest.apdus.StatusWord;
+import com.ledger.u2fbletest.crypto.U2FCrypto;
+import com.ledger.u2fbletest.utils.Dump;
+
+/*
+ * Software U2F authenticator processing raw APDUs, used when no device is available.
+ * User presence is always asserted. The attestation key is a fixed test key and must not be trusted.
+ */
+public class U2FSimulator {
+
+	private static final String ATTESTATION_PRIVATE_KEY = "e07ab321849bc612bcd63fa9d58229b3f7c76ce9286f607f9563f5098fb0dc7d";
+	private static final String ATTESTATION_CERTIFICATE =
+		"308201af30820155a003020102021402a69f866fe18808571b9eb24f1f70769b4f3eab300a06082a8648ce3d040302302d31" +
+		"2b302906035504030c2255324620424c4520546573742053696d756c61746f72204174746573746174696f6e301e170d3236" +
+		"313031393033303534325a170d3436313031343033303534325a302d312b302906035504030c2255324620424c4520546573" +
+		"742053696d756c61746f72204174746573746174696f6e3059301306072a8648ce3d020106082a8648ce3d03010703420004" +
+		"eab323ab195e3534356130df1980e2c3e51902736a926706dd1afec8b63fcc792309d656bd07e537b7694cc32605fdfb17bb" +
+		"cd66435ac02895054e28964eed92a3533051301d0603551d0e04160414e9ba08870bb30175cc06ebdb391cfea5ed01b48030" +
+		"1f0603551d23041830168014e9ba08870bb30175cc06ebdb391cfea5ed01b480300f0603551d130101ff040530030101ff30" +
+		"0a06082a8648ce3d0403020348003045022100af370c667d70659da8c481102313498c4cf5dba0761fb96268a504580d0d12" +
+		"9402206637e92dd498fdb807a52ea281db60157abb787cc44e08ac2f6f19d96c23ecbb";
+
+	public static final int DEFAULT_KEY_HANDLE_LENGTH = 64;
+
+	private static final int INS_REGISTER = 0x01;
+	private static final int INS_AUTHENTICATE = 0x02;
+	private static final int INS_VERSION = 0x03;
+	private static final int P1_ENFORCE_USER_PRESENCE = 0x03;
+	private static final int P1_CHECK_ONLY = 0x07;
+	private static final int P1_DONT_ENFORCE_USER_PRESENCE = 0x08;
+
+	private static class Key {
+		private BigInteger privateKey;
+		private byte[] applicationParameter;
+	}
+
+	private HashMap<String, Key> keys;
+	private SecureRandom random;
+	private ECKeyPairGenerator keyPairGenerator;
+	private BigInteger attestationKey;
+	private byte[] attestationCertificate;
+	private int keyHandleLength;
+	private int counter;
+
+	public U2FSimulator(int keyHandleLength) {
+		if ((keyHandleLength < 1) || (keyHandleLength > 255)) {
+			throw new RuntimeException("Invalid key handle length");
+		}
+		this.keyHandleLength = keyHandleLength;
+		keys = new HashMap<String, Key>();
+		random = new SecureRandom();
+		keyPairGenerator = new ECKeyPairGenerator();
+		keyPairGenerator.init(new ECKeyGenerationParameters(U2FCrypto.CURVE, random));
+		attestationKey = new BigInteger(1, Dump.hexToBin(ATTESTATION_PRIVATE_KEY));
+		attestationCertificate = Dump.hexToBin(ATTESTATION_CERTIFICATE);
+	}
+
+	public U2FSimulator() {
+		this(DEFAULT_KEY_HANDLE_LENGTH);
+	}
+
+	public byte[] getAttestationCertificate() {
+		return attestationCertificate;
+	}
+
+	public synchronized int getCounter() {
+		return counter;
+	}
+
+	private static byte[] statusWord(int statusWord) {
+		return new byte[] { (byte)(statusWord >> 8), (byte)statusWord };
+	}
+
+	private static byte[] sign(BigInteger privateKey, byte[] hash) {
+		ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
+		signer.init(true, new ECPrivateKeyParameters(privateKey, U2FCrypto.CURVE));
+		BigInteger[] signature = signer.generateSignature(hash);
+		ASN1EncodableVector sequence = new ASN1EncodableVector();
+		sequence.add(new ASN1Integer(signature[0]));
+		sequence.add(new ASN1Integer(signature[1]));
+		try {
+			return new DERSequence(sequence).getEncoded();
+		}
+		catch(IOException e) {
+			throw new RuntimeException("Failed to encode signature");
+		}
+	}
+
+	public synchronized byte[] process(byte[] apdu) {
+		if (apdu.length < 4) {
+			return statusWord(StatusWord.SW_WRONG_LENGTH);
+		}
+		if (apdu[0] != 0x00) {
+			return statusWord(StatusWord.SW_CLA_NOT_SUPPORTED);
+		}
+		int dataLength = 0;
+		if (apdu.length > 4) {
+			if ((apdu.length < 7) || (apdu[4] != 0x00)) {
+				return statusWord(StatusWord.SW_WRONG_LENGTH);
+			}
+			if (apdu.length > 7) {
+				dataLength = ((apdu[5] & 0xff) << 8) | (apdu[6] & 0xff);
+				if (7 + dataLength > apdu.length) {
+					return statusWord(StatusWord.SW_WRONG_LENGTH);
+				}
+			}
+		}
+		switch(apdu[1] & 0xff) {
+			case INS_REGISTER:
+				return register(apdu, 7, dataLength);
+			case INS_AUTHENTICATE:
+				return authenticate(apdu, apdu[2] & 0xff, 7, dataLength);
+			case INS_VERSION:
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				bos.write('U');
+				bos.write('2');
+				bos.write('F');
+				bos.write('_');
+				bos.write('V');
+				bos.write('2');
+				bos.write(0x90);
+				bos.write(0x00);
+				return bos.toByteArray();
+			default:
+				return statusWord(StatusWord.SW_INS_NOT_SUPPORTED);
+		}
+	}
+
+	private byte[] register(byte[] apdu, int offset, int dataLength) {
+		if (dataLength != 64) {
+			return statusWord(StatusWord.SW_WRONG_LENGTH);
+		}
+		AsymmetricCipherKeyPair keyPair = keyPairGenerator.generateKeyPair();
+		byte[] publicKey = ((ECPublicKeyParameters)keyPair.getPublic()).getQ().getEncoded(false);
+		byte[] keyHandle = new byte[keyHandleLength];
+		random.nextBytes(keyHandle);
+		Key key = new Key();
+		key.privateKey = ((ECPrivateKeyParameters)keyPair.getPrivate()).getD();
+		key.applicationParameter = Arrays.copyOfRange(apdu, offset + 32, offset + 64);
+		keys.put(Dump.dump(keyHandle), key);
+		SHA256Digest sha256 = new SHA256Digest();
+		byte[] hash = new byte[32];
+		sha256.update((byte)0x00);
+		sha256.update(apdu, offset + 32, 32); // application parameter
+		sha256.update(apdu, offset, 32); // challenge
+		sha256.update(keyHandle, 0, keyHandle.length);
+		sha256.update(publicKey, 0, publicKey.length);
+		sha256.doFinal(hash, 0);
+		byte[] signature = sign(attestationKey, hash);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(0x05);
+		bos.write(publicKey, 0, publicKey.length);
+		bos.write(keyHandle.length);
+		bos.write(keyHandle, 0, keyHandle.length);
+		bos.write(attestationCertificate, 0, attestationCertificate.length);
+		bos.write(signature, 0, signature.length);
+		bos.write(0x90);
+		bos.write(0x00);
+		return bos.toByteArray();
+	}
+
+	private byte[] authenticate(byte[] apdu, int p1, int offset, int dataLength) {
+		if (dataLength < 65) {
+			return statusWord(StatusWord.SW_WRONG_LENGTH);
+		}
+		int keyHandleLength = apdu[offset + 64] & 0xff;
+		if (65 + keyHandleLength != dataLength) {
+			return statusWord(StatusWord.SW_WRONG_LENGTH);
+		}
+		Key key = keys.get(Dump.dump(apdu, offset + 65, keyHandleLength));
+		if ((key == null) || !Arrays.equals(key.applicationParameter, Arrays.copyOfRange(apdu, offset + 32, offset + 64))) {
+			return statusWord(StatusWord.SW_WRONG_DATA);
+		}
+		switch(p1) {
+			case P1_CHECK_ONLY:
+				return statusWord(StatusWord.SW_CONDITIONS_NOT_SATISFIED);
+			case P1_ENFORCE_USER_PRESENCE:
+			case P1_DONT_ENFORCE_USER_PRESENCE:
+				break;
+			default:
+				return statusWord(StatusWord.SW_WRONG_DATA);
+		}
+		counter++;
+		byte userPresence = 0x01;
+		SHA256Digest sha256 = new SHA256Digest();
+		byte[] hash = new byte[32];
+		sha256.update(apdu, offset + 32, 32); // application parameter
+		sha256.update(userPresence);
+		sha256.update((byte)((counter >> 24) & 0xff));
+		sha256.update((byte)((counter >> 16) & 0xff));
+		sha256.update((byte)((counter >> 8) & 0xff));
+		sha256.update((byte)(counter & 0xff));
+		sha256.update(apdu, offset, 32); // challenge
+		sha256.doFinal(hash, 0);
+		byte[] signature = sign(key.privateKey, hash);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(userPresence);
+		bos.write((counter >> 24) & 0xff);
+		bos.write((counter >> 16) & 0xff);
+		bos.write((counter >> 8) & 0xff);
+		bos.write(counter & 0xff);
+		bos.write(signature, 0, signature.length);
+		bos.write(0x90);
+		bos.write(0x00);
+		return bos.toByteArray();
+	}
+
+}
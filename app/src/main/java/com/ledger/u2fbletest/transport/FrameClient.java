@@ -0,0 +1,302 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.transport;
+
+import java.util.Vector;
+
+import com.ledger.u2fbletest.Logger;
+import com.ledger.u2fbletest.apdus.Apdu;
+import com.ledger.u2fbletest.apdus.ApduWriter;
+import com.ledger.u2fbletest.runner.FramedChannel;
+import com.ledger.u2fbletest.utils.BLETransportHelper;
+import com.ledger.u2fbletest.utils.Dump;
+
+/*
+ * Blocking U2F BLE framing client on top of a FrameTransport. Fragments are written one at a time,
+ * each write being acknowledged before the next one, keepalives extend the response deadline.
+ */
+public class FrameClient implements FramedChannel, FrameTransportListener {
+
+	public static final int DEFAULT_TIMEOUT = 5000;
+
+	private FrameTransport transport;
+	private Logger logger;
+	private long timeoutMs;
+	private final Object lock = new Object();
+	private boolean opened;
+	private boolean connected;
+	private int controlPointLength;
+	private int fragmentSize;
+	private String error;
+	private boolean writePending;
+	private boolean writeSuccess;
+	private int expectedCommand;
+	private Vector<byte[]> responseFrames;
+	private byte[] response;
+	private long deadline;
+	private long framesSent;
+	private long framesReceived;
+	private long bytesSent;
+	private long bytesReceived;
+	private long keepalives;
+
+	public FrameClient(FrameTransport transport, Logger logger, long timeoutMs) {
+		this.transport = transport;
+		this.logger = logger;
+		this.timeoutMs = timeoutMs;
+		responseFrames = new Vector<byte[]>();
+	}
+
+	public FrameClient(FrameTransport transport, Logger logger) {
+		this(transport, logger, DEFAULT_TIMEOUT);
+	}
+
+	public FrameTransport getTransport() {
+		return transport;
+	}
+
+	public int getControlPointLength() {
+		synchronized(lock) {
+			return controlPointLength;
+		}
+	}
+
+	@Override
+	public int getMaxFragmentSize() {
+		connect();
+		return getControlPointLength();
+	}
+
+	@Override
+	public void setFragmentSize(int fragmentSize) {
+		synchronized(lock) {
+			this.fragmentSize = fragmentSize;
+		}
+	}
+
+	@Override
+	public int getFragmentSize() {
+		synchronized(lock) {
+			return ((fragmentSize != 0) && (fragmentSize < controlPointLength) ? fragmentSize : controlPointLength);
+		}
+	}
+
+	public boolean isConnected() {
+		synchronized(lock) {
+			return connected;
+		}
+	}
+
+	private void waitFor(String operation) {
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+			throw new RuntimeException(operation + " timeout");
+		}
+		try {
+			lock.wait(remaining);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(operation + " interrupted");
+		}
+		if (error != null) {
+			throw new RuntimeException(error);
+		}
+	}
+
+	public void connect() {
+		synchronized(lock) {
+			if (connected) {
+				return;
+			}
+			if (opened) {
+				throw new RuntimeException("Transport closed");
+			}
+			opened = true;
+			error = null;
+			deadline = System.currentTimeMillis() + timeoutMs;
+			transport.open(this);
+			while (!connected) {
+				waitFor("Connection");
+			}
+		}
+	}
+
+	public void close() {
+		transport.close();
+	}
+
+	public byte[] exchange(int command, byte[] data) {
+		connect();
+		return exchangeFrames(command, BLETransportHelper.split(command, data, getFragmentSize()));
+	}
+
+	public byte[] exchange(Apdu apdu) {
+		connect();
+		return exchangeFrames(BLETransportHelper.COMMAND_MSG, ApduWriter.split(BLETransportHelper.COMMAND_MSG, apdu, getFragmentSize()));
+	}
+
+	@Override
+	public byte[] exchangeApdu(byte[] apdu) {
+		return exchange(BLETransportHelper.COMMAND_MSG, apdu);
+	}
+
+	@Override
+	public byte[] ping(byte[] data) {
+		return exchange(BLETransportHelper.COMMAND_PING, data);
+	}
+
+	private byte[] exchangeFrames(int command, Vector<byte[]> frames) {
+		synchronized(lock) {
+			if (!connected) {
+				throw new RuntimeException(error != null ? error : "Not connected");
+			}
+			error = null;
+			expectedCommand = command;
+			responseFrames.removeAllElements();
+			response = null;
+			deadline = System.currentTimeMillis() + timeoutMs;
+			for (byte[] frame : frames) {
+				writePending = true;
+				writeSuccess = false;
+				if (!transport.writeFrame(frame)) {
+					writePending = false;
+					throw new RuntimeException("Writing failed locally");
+				}
+				framesSent++;
+				bytesSent += frame.length;
+				while (writePending) {
+					waitFor("Write");
+				}
+				if (!writeSuccess) {
+					throw new RuntimeException("Write failed remotely");
+				}
+			}
+			while (response == null) {
+				waitFor("Response");
+			}
+			byte[] result = response;
+			response = null;
+			return result;
+		}
+	}
+
+	@Override
+	public void onConnected(int controlPointLength) {
+		synchronized(lock) {
+			this.controlPointLength = controlPointLength;
+			connected = true;
+			lock.notifyAll();
+		}
+	}
+
+	@Override
+	public void onFrame(byte[] frame) {
+		synchronized(lock) {
+			framesReceived++;
+			bytesReceived += frame.length;
+			switch(BLETransportHelper.getChunkType(frame)) {
+				case CHUNK_KEEPALIVE:
+					keepalives++;
+					deadline = System.currentTimeMillis() + timeoutMs;
+					return;
+				case CHUNK_ERROR:
+					error = "Error reported " + (frame.length > 3 ? frame[3] : -1);
+					lock.notifyAll();
+					return;
+				default:
+					break;
+			}
+			responseFrames.add(frame);
+			try {
+				byte[] result = BLETransportHelper.join(expectedCommand, responseFrames);
+				if (result != null) {
+					responseFrames.removeAllElements();
+					response = result;
+					lock.notifyAll();
+				}
+			}
+			catch(RuntimeException e) {
+				responseFrames.removeAllElements();
+				error = "Invalid fragmented response " + e.getMessage();
+				logger.debug(error + " " + Dump.dump(frame));
+				lock.notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public void onWriteComplete(boolean success) {
+		synchronized(lock) {
+			writePending = false;
+			writeSuccess = success;
+			lock.notifyAll();
+		}
+	}
+
+	@Override
+	public void onDisconnected(String reason) {
+		synchronized(lock) {
+			connected = false;
+			error = "Disconnected " + reason;
+			lock.notifyAll();
+		}
+	}
+
+	public long getFramesSent() {
+		synchronized(lock) {
+			return framesSent;
+		}
+	}
+
+	public long getFramesReceived() {
+		synchronized(lock) {
+			return framesReceived;
+		}
+	}
+
+	public long getBytesSent() {
+		synchronized(lock) {
+			return bytesSent;
+		}
+	}
+
+	public long getBytesReceived() {
+		synchronized(lock) {
+			return bytesReceived;
+		}
+	}
+
+	public long getKeepalives() {
+		synchronized(lock) {
+			return keepalives;
+		}
+	}
+
+	public void resetStatistics() {
+		synchronized(lock) {
+			framesSent = 0;
+			framesReceived = 0;
+			bytesSent = 0;
+			bytesReceived = 0;
+			keepalives = 0;
+		}
+	}
+
+}
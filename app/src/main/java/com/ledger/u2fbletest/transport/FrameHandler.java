@@ -0,0 +1,32 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.transport;
+
+import java.util.Vector;
+
+/*
+ * Authenticator side of a frame link, used by in process and TCP stand-ins.
+ */
+public interface FrameHandler {
+
+	public int getControlPointLength();
+	/* Returns the response frames once a complete request has been received, null otherwise */
+	public Vector<byte[]> handleFrame(byte[] frame);
+
+}
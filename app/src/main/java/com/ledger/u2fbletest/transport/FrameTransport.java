@@ -0,0 +1,31 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.transport;
+
+/*
+ * Frame level link to an authenticator. Completion of open and writeFrame is reported asynchronously
+ * through the FrameTransportListener, write completion may be signalled before writeFrame returns.
+ */
+public interface FrameTransport {
+
+	public void open(FrameTransportListener listener);
+	public boolean writeFrame(byte[] frame);
+	public void close();
+
+}
@@ -0,0 +1,102 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.transport;
+
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/*
+ * In process transport delivering frames to a FrameHandler, callbacks are run on a dedicated thread
+ * as they would be on a radio link.
+ */
+public class LoopbackTransport implements FrameTransport {
+
+	private FrameHandler handler;
+	private int processingDelayMs;
+	private FrameTransportListener listener;
+	private ExecutorService executor;
+
+	public LoopbackTransport(FrameHandler handler, int processingDelayMs) {
+		this.handler = handler;
+		this.processingDelayMs = processingDelayMs;
+	}
+
+	public LoopbackTransport(FrameHandler handler) {
+		this(handler, 0);
+	}
+
+	@Override
+	public synchronized void open(FrameTransportListener listener) {
+		this.listener = listener;
+		executor = Executors.newSingleThreadExecutor();
+		final FrameTransportListener currentListener = listener;
+		executor.execute(new Runnable() {
+			public void run() {
+				currentListener.onConnected(handler.getControlPointLength());
+			}
+		});
+	}
+
+	@Override
+	public synchronized boolean writeFrame(byte[] frame) {
+		if (executor == null) {
+			return false;
+		}
+		final byte[] data = frame.clone();
+		final FrameTransportListener currentListener = listener;
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					currentListener.onWriteComplete(true);
+					Vector<byte[]> response = handler.handleFrame(data);
+					if (response == null) {
+						return;
+					}
+					if (processingDelayMs > 0) {
+						try {
+							Thread.sleep(processingDelayMs);
+						}
+						catch(InterruptedException e) {
+							return;
+						}
+					}
+					for (byte[] responseFrame : response) {
+						currentListener.onFrame(responseFrame);
+					}
+				}
+			});
+		}
+		catch(RejectedExecutionException e) {
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+			listener.onDisconnected("Closed");
+		}
+	}
+
+}
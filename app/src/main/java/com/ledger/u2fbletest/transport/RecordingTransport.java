@@ -0,0 +1,95 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.transport;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.ledger.u2fbletest.utils.Dump;
+
+/*
+ * Records the frames going through another transport, one per line, "> " for frames written and
+ * "< " for frames received. The resulting file can be played back with ReplayTransport.
+ */
+public class RecordingTransport implements FrameTransport, FrameTransportListener {
+
+	public static final String HEADER = "# control point length ";
+	public static final String SENT = "> ";
+	public static final String RECEIVED = "< ";
+
+	private FrameTransport transport;
+	private Writer output;
+	private FrameTransportListener listener;
+
+	public RecordingTransport(FrameTransport transport, Writer output) {
+		this.transport = transport;
+		this.output = output;
+	}
+
+	private synchronized void record(String line) {
+		try {
+			output.write(line);
+			output.write('\n');
+			output.flush();
+		}
+		catch(IOException e) {
+			throw new RuntimeException("Recording failed " + e);
+		}
+	}
+
+	@Override
+	public void open(FrameTransportListener listener) {
+		this.listener = listener;
+		transport.open(this);
+	}
+
+	@Override
+	public boolean writeFrame(byte[] frame) {
+		record(SENT + Dump.dump(frame));
+		return transport.writeFrame(frame);
+	}
+
+	@Override
+	public void close() {
+		transport.close();
+	}
+
+	@Override
+	public void onConnected(int controlPointLength) {
+		record(HEADER + controlPointLength);
+		listener.onConnected(controlPointLength);
+	}
+
+	@Override
+	public void onFrame(byte[] frame) {
+		record(RECEIVED + Dump.dump(frame));
+		listener.onFrame(frame);
+	}
+
+	@Override
+	public void onWriteComplete(boolean success) {
+		listener.onWriteComplete(success);
+	}
+
+	@Override
+	public void onDisconnected(String reason) {
+		listener.onDisconnected(reason);
+	}
+
+}
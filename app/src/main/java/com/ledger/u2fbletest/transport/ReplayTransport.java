@@ -0,0 +1,183 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.transport;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.ledger.u2fbletest.utils.Dump;
+
+/*
+ * Plays back a session captured by RecordingTransport. Each written frame consumes the next recorded
+ * "> " entry, once the last frame of a request is written the following "< " entries are delivered.
+ * Written frames differing from the recording are counted but tolerated, the recording loops when its end
+ * is reached. Runners seed their payloads when recording and replaying, so that any mismatch is a divergence.
+ */
+public class ReplayTransport implements FrameTransport {
+
+	public static final int DEFAULT_CONTROL_POINT_LENGTH = 20;
+
+	private static class Entry {
+		boolean sent;
+		byte[] frame;
+
+		Entry(boolean sent, byte[] frame) {
+			this.sent = sent;
+			this.frame = frame;
+		}
+	}
+
+	private Vector<Entry> entries;
+	private int controlPointLength;
+	private int position;
+	private int mismatches;
+	private FrameTransportListener listener;
+	private ExecutorService executor;
+
+	public ReplayTransport(Reader source) throws IOException {
+		read(source);
+	}
+
+	public ReplayTransport(File file) throws IOException {
+		FileReader source = new FileReader(file);
+		try {
+			read(source);
+		}
+		finally {
+			source.close();
+		}
+	}
+
+	private void read(Reader source) throws IOException {
+		entries = new Vector<Entry>();
+		controlPointLength = DEFAULT_CONTROL_POINT_LENGTH;
+		BufferedReader reader = new BufferedReader(source);
+		String line;
+		int lineNumber = 0;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.startsWith(RecordingTransport.HEADER)) {
+				controlPointLength = Integer.parseInt(line.substring(RecordingTransport.HEADER.length()).trim());
+			}
+			else
+			if (line.startsWith(RecordingTransport.SENT.trim()) || line.startsWith(RecordingTransport.RECEIVED.trim())) {
+				byte[] frame = Dump.hexToBin(line.substring(1).trim());
+				if ((frame == null) || (frame.length == 0)) {
+					throw new RuntimeException("Invalid frame at line " + lineNumber);
+				}
+				entries.add(new Entry(line.charAt(0) == RecordingTransport.SENT.charAt(0), frame));
+			}
+			else
+			if ((line.length() != 0) && !line.startsWith("#")) {
+				throw new RuntimeException("Invalid replay line " + lineNumber);
+			}
+		}
+		boolean hasSent = false;
+		for (Entry entry : entries) {
+			hasSent |= entry.sent;
+		}
+		if (!hasSent) {
+			throw new RuntimeException("No frame written in recording");
+		}
+	}
+
+	public int getControlPointLength() {
+		return controlPointLength;
+	}
+
+	public synchronized int getMismatches() {
+		return mismatches;
+	}
+
+	@Override
+	public synchronized void open(FrameTransportListener listener) {
+		this.listener = listener;
+		position = 0;
+		executor = Executors.newSingleThreadExecutor();
+		final FrameTransportListener currentListener = listener;
+		executor.execute(new Runnable() {
+			public void run() {
+				currentListener.onConnected(controlPointLength);
+			}
+		});
+	}
+
+	private Entry next() {
+		Entry entry = entries.get(position);
+		position = (position + 1) % entries.size();
+		return entry;
+	}
+
+	@Override
+	public synchronized boolean writeFrame(byte[] frame) {
+		if (executor == null) {
+			return false;
+		}
+		while (!entries.get(position).sent) {
+			next();
+		}
+		if (!Arrays.equals(next().frame, frame)) {
+			mismatches++;
+		}
+		final Vector<byte[]> response = new Vector<byte[]>();
+		while (!entries.get(position).sent) {
+			response.add(next().frame);
+		}
+		final FrameTransportListener currentListener = listener;
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					currentListener.onWriteComplete(true);
+					for (byte[] responseFrame : response) {
+						currentListener.onFrame(responseFrame);
+					}
+				}
+			});
+		}
+		catch(RejectedExecutionException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/* The listener is notified outside the monitor, clients call writeFrame while holding their own lock */
+	@Override
+	public void close() {
+		FrameTransportListener currentListener;
+		synchronized(this) {
+			if (executor == null) {
+				return;
+			}
+			executor.shutdownNow();
+			executor = null;
+			currentListener = listener;
+		}
+		currentListener.onDisconnected("Closed");
+	}
+
+}
@@ -0,0 +1,148 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.transport;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/*
+ * TCP transport for remote simulators. The server starts by sending the control point length on 2 bytes,
+ * then frames are exchanged in both directions prefixed by their length on 2 bytes.
+ */
+public class SocketTransport implements FrameTransport {
+
+	public static final int CONNECT_TIMEOUT = 5000;
+
+	private String host;
+	private int port;
+	private Socket socket;
+	private OutputStream output;
+	private FrameTransportListener listener;
+	private Thread reader;
+
+	public SocketTransport(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	public static byte[] readFrame(DataInputStream input) throws IOException {
+		int length = input.readUnsignedShort();
+		byte[] frame = new byte[length];
+		input.readFully(frame);
+		return frame;
+	}
+
+	public static void writeFrame(OutputStream output, byte[] frame) throws IOException {
+		if (frame.length > 0xffff) {
+			throw new RuntimeException("Frame too long");
+		}
+		byte[] buffer = new byte[frame.length + 2];
+		buffer[0] = (byte)(frame.length >> 8);
+		buffer[1] = (byte)(frame.length & 0xff);
+		System.arraycopy(frame, 0, buffer, 2, frame.length);
+		output.write(buffer);
+		output.flush();
+	}
+
+	@Override
+	public synchronized void open(final FrameTransportListener listener) {
+		final Socket currentSocket = new Socket();
+		socket = currentSocket;
+		this.listener = listener;
+		reader = new Thread(new Runnable() {
+			public void run() {
+				String reason = "Closed";
+				try {
+					currentSocket.setTcpNoDelay(true);
+					currentSocket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+					InputStream socketInput = currentSocket.getInputStream();
+					synchronized(SocketTransport.this) {
+						output = currentSocket.getOutputStream();
+					}
+					DataInputStream input = new DataInputStream(socketInput);
+					listener.onConnected(input.readUnsignedShort());
+					for (;;) {
+						listener.onFrame(readFrame(input));
+					}
+				}
+				catch(EOFException e) {
+					reason = "Remote closed";
+				}
+				catch(IOException e) {
+					if (!currentSocket.isClosed()) {
+						reason = e.toString();
+					}
+				}
+				try {
+					currentSocket.close();
+				}
+				catch(IOException e) {
+				}
+				listener.onDisconnected(reason);
+			}
+		}, "SocketTransport " + host + ":" + port);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	@Override
+	public boolean writeFrame(byte[] frame) {
+		OutputStream currentOutput;
+		FrameTransportListener currentListener;
+		synchronized(this) {
+			currentOutput = output;
+			currentListener = listener;
+		}
+		if (currentOutput == null) {
+			return false;
+		}
+		try {
+			writeFrame(currentOutput, frame);
+		}
+		catch(IOException e) {
+			return false;
+		}
+		/* TCP writes are acknowledged locally, there is no per frame confirmation from the peer */
+		currentListener.onWriteComplete(true);
+		return true;
+	}
+
+	@Override
+	public void close() {
+		Socket currentSocket;
+		synchronized(this) {
+			currentSocket = socket;
+			socket = null;
+			output = null;
+		}
+		if (currentSocket != null) {
+			try {
+				currentSocket.close();
+			}
+			catch(IOException e) {
+			}
+		}
+	}
+
+}
@@ -38,6 +38,9 @@ public class BLETransportHelper {
     }
     
     public static ChunkType getChunkType(byte[] data) {
+    	if ((data == null) || (data.length == 0)) {
+    		return ChunkType.CHUNK_UNKNOWN;
+    	}
     	if ((data[0] & 0x80) == 0) {
     		return ChunkType.CHUNK_CONTINUATION;
     	}
@@ -56,41 +59,9 @@ public class BLETransportHelper {
     }
 
     public static Vector<byte[]> split(int command, byte[] dataToTransport, int chunksize) {
-    	Vector<byte[]> result = new Vector<byte[]>();
-    	if (chunksize < 8) {
-    		throw new RuntimeException("Invalid chunk size");
-    	}
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        int remaining_length = dataToTransport.length;
-        int offset = 0;
-        int seq = 0;
-        boolean firstPacket = true;
-        
-        while (remaining_length > 0) {
-        	int l = 0;
-        	if (!firstPacket) {
-        		baos.write(seq);
-        		l = Math.min(chunksize - 1, remaining_length);
-        	}
-        	else {
-        		baos.write(command);
-                // first packet has the total transport length
-                baos.write(remaining_length >> 8);
-                baos.write(remaining_length);
-                l = Math.min(chunksize - 3, remaining_length);
-        	}        		            
-            baos.write(dataToTransport, offset, l);
-            remaining_length -= l;
-            offset += l;
-            result.add(baos.toByteArray());
-            baos.reset();
-            if (!firstPacket) {
-            	seq++;
-            }
-            firstPacket = false;
-        }
-        
-        return result;            	    	
+    	FrameWriter frameWriter = new FrameWriter(command, dataToTransport.length, chunksize);
+    	frameWriter.write(dataToTransport, 0, dataToTransport.length);
+    	return frameWriter.getFrames();
     }
     
     public static byte[] join(int command, Vector<byte[]> chunks) {
@@ -99,6 +70,9 @@ public class BLETransportHelper {
         int length = -1;
         boolean firstPacket = true;
         for (byte[] chunk : chunks) {
+        	if (chunk.length < (firstPacket ? 3 : 1)) {
+        		throw new RuntimeException("Truncated frame");
+        	}
         	if (firstPacket) {
         		if ((int)(chunk[0] & 0xff) != command) {
         			throw new RuntimeException("Unexpected command");
@@ -109,7 +83,7 @@ public class BLETransportHelper {
         		firstPacket = false;
         	}
         	else {
-        		if ((int)(chunk[0] & 0xff) != seq) {
+        		if ((int)(chunk[0] & 0xff) != (seq & 0x7f)) {
         			throw new RuntimeException("Unexpected sequence");
         		}
         		baos.write(chunk, 1, chunk.length - 1);
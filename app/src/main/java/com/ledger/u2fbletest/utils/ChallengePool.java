@@ -0,0 +1,125 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.utils;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Pool of random challenges filled in bulk by a background thread, so that drawing one is a copy rather than a
+ * SecureRandom call on the exchange path. Blocks of challenges are recycled once consumed. When the filler falls
+ * behind, challenges are generated in place and counted as misses.
+ */
+public class ChallengePool {
+
+	public static final int CHALLENGE_LENGTH = 32;
+	public static final int DEFAULT_CHALLENGES_PER_BLOCK = 256;
+	public static final int DEFAULT_BLOCKS = 4;
+
+	private static ChallengePool instance;
+
+	private SecureRandom random;
+	private int blockLength;
+	private ArrayBlockingQueue<byte[]> readyBlocks;
+	private ArrayBlockingQueue<byte[]> freeBlocks;
+	private byte[] current;
+	private int offset;
+	private AtomicLong misses;
+	private Thread filler;
+
+	public ChallengePool(int challengesPerBlock, int blocks) {
+		random = new SecureRandom();
+		blockLength = challengesPerBlock * CHALLENGE_LENGTH;
+		readyBlocks = new ArrayBlockingQueue<byte[]>(blocks);
+		freeBlocks = new ArrayBlockingQueue<byte[]>(blocks);
+		for (int i=0; i<blocks; i++) {
+			freeBlocks.add(new byte[blockLength]);
+		}
+		misses = new AtomicLong();
+		filler = new Thread(new Runnable() {
+			public void run() {
+				fill();
+			}
+		}, "ChallengePool");
+		filler.setDaemon(true);
+		filler.start();
+	}
+
+	public ChallengePool() {
+		this(DEFAULT_CHALLENGES_PER_BLOCK, DEFAULT_BLOCKS);
+	}
+
+	/* Process wide pool, shared by the runners */
+	public static synchronized ChallengePool getInstance() {
+		if (instance == null) {
+			instance = new ChallengePool();
+		}
+		return instance;
+	}
+
+	private void fill() {
+		try {
+			for (;;) {
+				byte[] block = freeBlocks.take();
+				random.nextBytes(block);
+				readyBlocks.put(block);
+			}
+		}
+		catch(InterruptedException e) {
+		}
+	}
+
+	/* Copies the next challenge at the given offset */
+	public void next(byte[] target, int targetOffset) {
+		synchronized(this) {
+			if ((current == null) || (offset == blockLength)) {
+				if (current != null) {
+					freeBlocks.offer(current);
+				}
+				current = readyBlocks.poll();
+				offset = 0;
+			}
+			if (current != null) {
+				System.arraycopy(current, offset, target, targetOffset, CHALLENGE_LENGTH);
+				offset += CHALLENGE_LENGTH;
+				return;
+			}
+		}
+		misses.incrementAndGet();
+		byte[] challenge = new byte[CHALLENGE_LENGTH];
+		random.nextBytes(challenge);
+		System.arraycopy(challenge, 0, target, targetOffset, CHALLENGE_LENGTH);
+	}
+
+	public byte[] next() {
+		byte[] result = new byte[CHALLENGE_LENGTH];
+		next(result, 0);
+		return result;
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public void close() {
+		filler.interrupt();
+	}
+
+}
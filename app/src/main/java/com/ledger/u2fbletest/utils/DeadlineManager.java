@@ -0,0 +1,172 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.utils;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Per device timeout budgets for each phase of a BLE session. Budgets start from the configured
+ * timeout and follow a rolling percentile of the latencies observed on the device once enough
+ * samples are available, never going below the phase floor nor above its cap.
+ */
+public class DeadlineManager {
+
+	public static enum Phase {
+		CONNECT(1000, 10000),
+		DISCOVER(300, 10000),
+		READ(200, 5000),
+		WRITE(150, 3000),
+		/* from the last write acknowledgement or response fragment to the next notification */
+		RESPONSE(200, 10000),
+		/* after a keepalive reporting that the device is processing */
+		PROCESSING(300, 10000),
+		/* after a keepalive reporting that the device waits for the user */
+		USER_PRESENCE(1000, 15000);
+
+		private int floor;
+		private int cap;
+
+		private Phase(int floor, int cap) {
+			this.floor = floor;
+			this.cap = cap;
+		}
+
+		public int getFloor() {
+			return floor;
+		}
+
+		public int getCap() {
+			return cap;
+		}
+	}
+
+	public static final int KEEPALIVE_PROCESSING = 0x01;
+	public static final int KEEPALIVE_TUP_NEEDED = 0x02;
+
+	/* an exchange is abandoned after this delay, even if the device keeps sending keepalives */
+	public static final int EXCHANGE_CAP = 30000;
+
+	public static final int WINDOW = 32;
+	public static final int MIN_SAMPLES = 5;
+	public static final double PERCENTILE = 99;
+	public static final int MARGIN = 50;
+
+	/* devices last used are kept first, scans meet many advertisers including rotating private addresses */
+	public static final int MAX_DEVICES = 64;
+
+	private static LinkedHashMap<String, DeadlineManager> managers = new LinkedHashMap<String, DeadlineManager>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, DeadlineManager> eldest) {
+			return size() > MAX_DEVICES;
+		}
+	};
+
+	private int defaultBudget;
+	private long[][] samples;
+	private int[] counts;
+	private int[] positions;
+	private int[] timeouts;
+	private long[] sorted;
+
+	public DeadlineManager(int defaultBudget) {
+		this.defaultBudget = defaultBudget;
+		int phases = Phase.values().length;
+		samples = new long[phases][WINDOW];
+		counts = new int[phases];
+		positions = new int[phases];
+		timeouts = new int[phases];
+		sorted = new long[WINDOW];
+	}
+
+	/* Observations are kept across connections, as devices are often recreated for the same address */
+	public static DeadlineManager forDevice(String address, int defaultBudget) {
+		synchronized(managers) {
+			DeadlineManager manager = managers.get(address);
+			if (manager == null) {
+				manager = new DeadlineManager(defaultBudget);
+				managers.put(address, manager);
+			}
+			manager.setDefaultBudget(defaultBudget);
+			return manager;
+		}
+	}
+
+	public static Phase getKeepalivePhase(int status) {
+		return (status == KEEPALIVE_TUP_NEEDED ? Phase.USER_PRESENCE : Phase.PROCESSING);
+	}
+
+	public synchronized void setDefaultBudget(int defaultBudget) {
+		this.defaultBudget = defaultBudget;
+	}
+
+	public synchronized void record(Phase phase, long elapsedMs) {
+		int index = phase.ordinal();
+		samples[index][positions[index]] = elapsedMs;
+		positions[index] = (positions[index] + 1) % WINDOW;
+		counts[index] = Math.min(counts[index] + 1, WINDOW);
+	}
+
+	/* A timed out phase is recorded as twice its budget so that the budget can grow back */
+	public synchronized void recordTimeout(Phase phase, long budgetMs) {
+		timeouts[phase.ordinal()]++;
+		record(phase, Math.min(budgetMs * 2, phase.getCap()));
+	}
+
+	public synchronized int getBudget(Phase phase) {
+		int index = phase.ordinal();
+		int count = counts[index];
+		long budget;
+		if (count < MIN_SAMPLES) {
+			budget = Math.max(defaultBudget, phase.getFloor());
+		}
+		else {
+			System.arraycopy(samples[index], 0, sorted, 0, count);
+			Arrays.sort(sorted, 0, count);
+			int rank = (int)Math.ceil(PERCENTILE / 100.0 * count);
+			budget = 2 * sorted[Math.max(0, Math.min(count - 1, rank - 1))] + MARGIN;
+		}
+		return (int)Math.max(phase.getFloor(), Math.min(phase.getCap(), budget));
+	}
+
+	public synchronized int getSampleCount(Phase phase) {
+		return counts[phase.ordinal()];
+	}
+
+	public synchronized int getTimeouts(Phase phase) {
+		return timeouts[phase.ordinal()];
+	}
+
+	public synchronized String toString() {
+		StringBuffer result = new StringBuffer();
+		for (Phase phase : Phase.values()) {
+			if (result.length() != 0) {
+				result.append(", ");
+			}
+			result.append(phase.toString().toLowerCase(Locale.US)).append(' ').append(getBudget(phase)).append(" ms");
+			if (timeouts[phase.ordinal()] != 0) {
+				result.append(" (").append(timeouts[phase.ordinal()]).append(" timeouts)");
+			}
+		}
+		return result.toString();
+	}
+
+}
@@ -0,0 +1,286 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.utils;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Vector;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Runs callbacks on an executor instead of the thread reporting the event. Events sharing a key (a device
+ * address) run one at a time in submission order. The producer is typically the GATT callback thread and
+ * never waits : each key has a bounded queue for informational events, which are dropped and counted when
+ * it is full, while essential events (responses, errors, state changes) are always queued, someone waiting
+ * for them.
+ */
+public class EventDispatcher {
+
+	public static final int DEFAULT_THREADS = 2;
+	public static final int DEFAULT_QUEUE_CAPACITY = 256;
+	/* events run per key before yielding the thread to other keys */
+	private static final int BATCH = 16;
+
+	private static class Event {
+		Runnable task;
+		boolean essential;
+		long queued;
+
+		Event(Runnable task, boolean essential) {
+			this.task = task;
+			this.essential = essential;
+			queued = System.nanoTime();
+		}
+	}
+
+	/* Queue of a key, guarded by the dispatcher and removed once it is empty and no longer scheduled */
+	private class Lane implements Runnable {
+		private Object key;
+		private Vector<Event> queue = new Vector<Event>();
+		private boolean scheduled;
+
+		Lane(Object key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			for (int i=0; i<BATCH; i++) {
+				Event event;
+				synchronized(EventDispatcher.this) {
+					if (queue.isEmpty()) {
+						scheduled = false;
+						removeLane(this);
+						return;
+					}
+					event = queue.remove(0);
+					recordLag(System.nanoTime() - event.queued);
+				}
+				runEvent(event);
+			}
+			schedule(this);
+		}
+	}
+
+	private Executor executor;
+	private ExecutorService ownedExecutor;
+	private int capacity;
+	private HashMap<Object, Lane> lanes;
+
+	private long dispatched;
+	private long dropped;
+	private long failures;
+	private int maxDepth;
+	private long lagSum;
+	private long maxLag;
+	private RuntimeException lastFailure;
+
+	public EventDispatcher(Executor executor, int capacity) {
+		if (capacity <= 0) {
+			throw new RuntimeException("Invalid queue capacity " + capacity);
+		}
+		this.executor = executor;
+		this.capacity = capacity;
+		lanes = new HashMap<Object, Lane>();
+	}
+
+	public EventDispatcher(int threads) {
+		this(null, DEFAULT_QUEUE_CAPACITY);
+		ownedExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count;
+
+			@Override
+			public synchronized Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Event dispatcher " + (++count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor = ownedExecutor;
+	}
+
+	public EventDispatcher() {
+		this(DEFAULT_THREADS);
+	}
+
+	/* Once the executor is shut down, essential events run on the calling thread and the others are dropped */
+	private void schedule(Lane lane) {
+		try {
+			executor.execute(lane);
+		}
+		catch(RejectedExecutionException e) {
+			Vector<Event> rejected;
+			synchronized(this) {
+				rejected = new Vector<Event>(lane.queue);
+				lane.queue.removeAllElements();
+				lane.scheduled = false;
+				removeLane(lane);
+			}
+			for (Event event : rejected) {
+				if (event.essential) {
+					runEvent(event);
+				}
+				else {
+					synchronized(this) {
+						dropped++;
+					}
+				}
+			}
+		}
+	}
+
+	private void removeLane(Lane lane) {
+		if (lanes.get(lane.key) == lane) {
+			lanes.remove(lane.key);
+		}
+	}
+
+	private void runEvent(Event event) {
+		try {
+			event.task.run();
+		}
+		catch(RuntimeException e) {
+			recordFailure(e);
+		}
+	}
+
+	private synchronized void recordLag(long lag) {
+		dispatched++;
+		lagSum += lag;
+		maxLag = Math.max(maxLag, lag);
+	}
+
+	private synchronized void recordFailure(RuntimeException e) {
+		failures++;
+		lastFailure = e;
+	}
+
+	/* Informational event, returns false if it was dropped because its queue is full */
+	public boolean dispatch(Object key, Runnable task) {
+		return dispatch(key, task, false);
+	}
+
+	/* Event which cannot be lost, queued beyond the capacity of its queue */
+	public void dispatchEssential(Object key, Runnable task) {
+		dispatch(key, task, true);
+	}
+
+	private boolean dispatch(Object key, Runnable task, boolean essential) {
+		Lane lane;
+		boolean start;
+		synchronized(this) {
+			lane = lanes.get(key);
+			if (lane == null) {
+				lane = new Lane(key);
+				lanes.put(key, lane);
+			}
+			if (!essential && (lane.queue.size() >= capacity)) {
+				dropped++;
+				return false;
+			}
+			lane.queue.add(new Event(task, essential));
+			maxDepth = Math.max(maxDepth, lane.queue.size());
+			start = !lane.scheduled;
+			lane.scheduled = true;
+		}
+		if (start) {
+			schedule(lane);
+		}
+		return true;
+	}
+
+	/* Executor view of a single key, for instance to run promise listeners in order with the device events.
+	 * Promise listeners are essential, the caller is waiting for them */
+	public Executor getExecutor(final Object key) {
+		return new Executor() {
+			@Override
+			public void execute(Runnable task) {
+				dispatchEssential(key, task);
+			}
+		};
+	}
+
+	public synchronized int getQueueDepth() {
+		int depth = 0;
+		for (Lane lane : lanes.values()) {
+			depth += lane.queue.size();
+		}
+		return depth;
+	}
+
+	/* keys with queued or running events */
+	public synchronized int getLaneCount() {
+		return lanes.size();
+	}
+
+	public synchronized int getMaxQueueDepth() {
+		return maxDepth;
+	}
+
+	public synchronized long getDispatched() {
+		return dispatched;
+	}
+
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	public synchronized long getFailures() {
+		return failures;
+	}
+
+	public synchronized RuntimeException getLastFailure() {
+		return lastFailure;
+	}
+
+	/* dispatch lag is the time between queueing an event and running it, in nanoseconds */
+	public synchronized double getMeanLag() {
+		return (dispatched != 0 ? (double)lagSum / dispatched : 0);
+	}
+
+	public synchronized long getMaxLag() {
+		return maxLag;
+	}
+
+	public synchronized void resetStatistics() {
+		dispatched = 0;
+		dropped = 0;
+		failures = 0;
+		maxDepth = 0;
+		lagSum = 0;
+		maxLag = 0;
+		lastFailure = null;
+	}
+
+	public void shutdown() {
+		if (ownedExecutor != null) {
+			ownedExecutor.shutdown();
+		}
+	}
+
+	public synchronized String toString() {
+		return String.format(Locale.US, "dispatched %d dropped %d failures %d lanes %d depth %d max depth %d lag mean %s max %s ms",
+			dispatched, dropped, failures, lanes.size(), getQueueDepth(), maxDepth, LatencyStats.toMs(getMeanLag()), LatencyStats.toMs(maxLag));
+	}
+
+}
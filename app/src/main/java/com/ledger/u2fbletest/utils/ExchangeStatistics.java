@@ -0,0 +1,174 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.utils;
+
+/*
+ * Link and exchange counters of a device : frames and bytes in each direction, exchange latency, and the
+ * negotiated MTU, fragment size and PHY so that runs on different links can be compared.
+ */
+public class ExchangeStatistics {
+
+	public static final int PHY_UNKNOWN = 0;
+	public static final int PHY_LE_1M = 1;
+	public static final int PHY_LE_2M = 2;
+	public static final int PHY_LE_CODED = 3;
+
+	private long exchanges;
+	private long failures;
+	private long framesSent;
+	private long framesReceived;
+	private long bytesSent;
+	private long bytesReceived;
+	private long retries;
+	private LatencyStats latency;
+	private int mtu;
+	private int fragmentSize;
+	private int txPhy;
+	private int rxPhy;
+
+	public ExchangeStatistics() {
+		latency = new LatencyStats();
+	}
+
+	public static String getPhyName(int phy) {
+		switch(phy) {
+			case PHY_LE_1M:
+				return "1M";
+			case PHY_LE_2M:
+				return "2M";
+			case PHY_LE_CODED:
+				return "coded";
+			default:
+				return "unknown";
+		}
+	}
+
+	public synchronized void frameSent(int length) {
+		framesSent++;
+		bytesSent += length;
+	}
+
+	public synchronized void frameReceived(int length) {
+		framesReceived++;
+		bytesReceived += length;
+	}
+
+	/* duration in nanoseconds */
+	public void exchangeCompleted(long duration) {
+		synchronized(this) {
+			exchanges++;
+		}
+		latency.add(duration);
+	}
+
+	/* a fragment written again after a transient failure */
+	public synchronized void fragmentRetried() {
+		retries++;
+	}
+
+	public synchronized void exchangeFailed() {
+		failures++;
+	}
+
+	public synchronized void setMtu(int mtu) {
+		this.mtu = mtu;
+	}
+
+	public synchronized void setFragmentSize(int fragmentSize) {
+		this.fragmentSize = fragmentSize;
+	}
+
+	public synchronized void setPhy(int txPhy, int rxPhy) {
+		this.txPhy = txPhy;
+		this.rxPhy = rxPhy;
+	}
+
+	public synchronized long getExchanges() {
+		return exchanges;
+	}
+
+	public synchronized long getFailures() {
+		return failures;
+	}
+
+	public synchronized long getFramesSent() {
+		return framesSent;
+	}
+
+	public synchronized long getFramesReceived() {
+		return framesReceived;
+	}
+
+	public synchronized long getBytesSent() {
+		return bytesSent;
+	}
+
+	public synchronized long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	public synchronized long getRetries() {
+		return retries;
+	}
+
+	public LatencyStats getLatency() {
+		return latency;
+	}
+
+	public synchronized int getMtu() {
+		return mtu;
+	}
+
+	public synchronized int getFragmentSize() {
+		return fragmentSize;
+	}
+
+	public synchronized int getTxPhy() {
+		return txPhy;
+	}
+
+	public synchronized int getRxPhy() {
+		return rxPhy;
+	}
+
+	/* Keeps the link parameters */
+	public void reset() {
+		synchronized(this) {
+			exchanges = 0;
+			failures = 0;
+			framesSent = 0;
+			framesReceived = 0;
+			bytesSent = 0;
+			bytesReceived = 0;
+			retries = 0;
+		}
+		latency.reset();
+	}
+
+	public String toString() {
+		String link;
+		synchronized(this) {
+			link = "phy tx " + getPhyName(txPhy) + " rx " + getPhyName(rxPhy) + " mtu " + mtu + " fragment " + fragmentSize +
+				" exchanges " + exchanges + " failures " + failures + " retries " + retries + " sent " + framesSent + "/" + bytesSent +
+				" received " + framesReceived + "/" + bytesReceived;
+		}
+		return link + " latency " + latency;
+	}
+
+}
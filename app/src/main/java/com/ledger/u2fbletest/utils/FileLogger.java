@@ -0,0 +1,376 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+import com.ledger.u2fbletest.Logger;
+
+/*
+ * Logger writing compressed log files from a background thread. Callers only append to a lock free queue and
+ * never block, lines being dropped once too many are pending. The writer batches lines into gzip members, a
+ * member being completed at each flush point so that everything before it can be read back with gunzip even if
+ * the process dies later. Files are rotated once their uncompressed size reaches the limit, as prefix.log.gz,
+ * prefix.1.log.gz, prefix.2.log.gz ... A file left by a previous run is rotated when the first line is written.
+ */
+public class FileLogger implements Logger, Flushable {
+
+	public static final long DEFAULT_MAX_FILE_SIZE = 4 * 1024 * 1024;
+	public static final int DEFAULT_MAX_FILES = 8;
+	public static final int DEFAULT_MAX_PENDING = 65536;
+
+	private static final String SUFFIX = ".log.gz";
+	private static final int BATCH_SIZE = 256;
+	private static final int BUFFER_SIZE = 16384;
+	private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(500);
+	/* bounds what a crash can lose when no flush point is reached */
+	private static final long MEMBER_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+	private static final long FLUSH_TIMEOUT = 5000;
+	private static final long CLOSE_TIMEOUT = 5000;
+
+	private static class Line {
+		private long time;
+		private String level;
+		private String message;
+
+		private Line(long time, String level, String message) {
+			this.time = time;
+			this.level = level;
+			this.message = message;
+		}
+	}
+
+	/* Closing a member releases its deflater but must leave the file open */
+	private static class MemberOutput extends FilterOutputStream {
+		private MemberOutput(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) throws IOException {
+			out.write(data, offset, length);
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.flush();
+		}
+	}
+
+	private static class FlushPoint {
+		private CountDownLatch done = new CountDownLatch(1);
+	}
+
+	private File directory;
+	private String prefix;
+	private long maxFileSize;
+	private int maxFiles;
+	private int maxPending;
+	private ConcurrentLinkedQueue<Object> queue;
+	private AtomicInteger pending;
+	private AtomicLong dropped;
+	private AtomicLong written;
+	private volatile boolean closed;
+	private volatile String lastError;
+	private Thread writer;
+
+	/* writer thread state */
+	private DateFormat dateFormat;
+	private long lastSecond;
+	private String secondPrefix;
+	private StringBuffer batch;
+	private FileOutputStream file;
+	private GZIPOutputStream member;
+	private long memberStart;
+	private long fileSize;
+
+	public FileLogger(File directory, String prefix, long maxFileSize, int maxFiles) {
+		this.directory = directory;
+		this.prefix = prefix;
+		this.maxFileSize = maxFileSize;
+		this.maxFiles = maxFiles;
+		maxPending = DEFAULT_MAX_PENDING;
+		queue = new ConcurrentLinkedQueue<Object>();
+		pending = new AtomicInteger();
+		dropped = new AtomicLong();
+		written = new AtomicLong();
+		dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.", Locale.US);
+		lastSecond = -1;
+		batch = new StringBuffer();
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "FileLogger");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	public FileLogger(File directory, String prefix) {
+		this(directory, prefix, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILES);
+	}
+
+	public void setMaxPending(int maxPending) {
+		this.maxPending = maxPending;
+	}
+
+	public File getFile() {
+		return getFile(0);
+	}
+
+	private File getFile(int index) {
+		return new File(directory, prefix + (index != 0 ? "." + index : "") + SUFFIX);
+	}
+
+	private void log(String level, String message) {
+		if (closed) {
+			return;
+		}
+		if (pending.incrementAndGet() > maxPending) {
+			pending.decrementAndGet();
+			dropped.incrementAndGet();
+			return;
+		}
+		queue.offer(new Line(System.currentTimeMillis(), level, message));
+		LockSupport.unpark(writer);
+	}
+
+	@Override
+	public void info(String message) {
+		log("I", message);
+	}
+
+	@Override
+	public void error(String message) {
+		log("E", message);
+	}
+
+	@Override
+	public void debug(String message) {
+		log("D", message);
+	}
+
+	/* Waits until everything logged before is written and synced, for campaign boundaries rather than hot paths */
+	@Override
+	public void flush() {
+		if (closed) {
+			return;
+		}
+		FlushPoint point = new FlushPoint();
+		queue.offer(point);
+		LockSupport.unpark(writer);
+		try {
+			if (!point.done.await(FLUSH_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				lastError = "Flush timeout";
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/* Writes what is pending then closes the current file, later messages are ignored */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(CLOSE_TIMEOUT);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getWritten() {
+		return written.get();
+	}
+
+	public int getPending() {
+		return pending.get();
+	}
+
+	public String getLastError() {
+		return lastError;
+	}
+
+	private void writeLoop() {
+		for (;;) {
+			Object item = queue.poll();
+			if (item == null) {
+				if (closed) {
+					break;
+				}
+				if ((member != null) && (System.nanoTime() - memberStart >= MEMBER_INTERVAL)) {
+					finishMember(false);
+				}
+				LockSupport.parkNanos(this, IDLE_WAIT);
+				continue;
+			}
+			int lines = 0;
+			while (item instanceof Line) {
+				Line line = (Line)item;
+				pending.decrementAndGet();
+				appendTime(line.time);
+				batch.append(' ').append(line.level).append(' ').append(line.message).append('\n');
+				lines++;
+				if (lines == BATCH_SIZE) {
+					item = null;
+					break;
+				}
+				item = queue.poll();
+			}
+			if (lines != 0) {
+				writeBatch(lines);
+			}
+			if (item instanceof FlushPoint) {
+				finishMember(true);
+				((FlushPoint)item).done.countDown();
+			}
+		}
+		finishMember(true);
+		closeFile();
+	}
+
+	/* Formatting dates is the writer bottleneck, the date and time is only formatted once per second */
+	private void appendTime(long time) {
+		long second = time / 1000;
+		if (second != lastSecond) {
+			lastSecond = second;
+			secondPrefix = dateFormat.format(new Date(second * 1000));
+		}
+		int millis = (int)(time % 1000);
+		batch.append(secondPrefix);
+		if (millis < 100) {
+			batch.append('0');
+		}
+		if (millis < 10) {
+			batch.append('0');
+		}
+		batch.append(millis);
+	}
+
+	private void writeBatch(int lines) {
+		try {
+			byte[] data = batch.toString().getBytes("UTF-8");
+			if (member == null) {
+				if (file == null) {
+					directory.mkdirs();
+					/* the uncompressed size of a previous file is unknown, it is rotated rather than appended to */
+					if (getFile(0).length() != 0) {
+						rotate();
+					}
+					fileSize = 0;
+					file = new FileOutputStream(getFile(0), true);
+				}
+				member = new GZIPOutputStream(new MemberOutput(file), BUFFER_SIZE);
+				memberStart = System.nanoTime();
+			}
+			member.write(data);
+			fileSize += data.length;
+			written.addAndGet(lines);
+		}
+		catch(IOException e) {
+			lastError = e.getMessage();
+			dropped.addAndGet(lines);
+			closeFile();
+		}
+		finally {
+			batch.setLength(0);
+		}
+		if (fileSize >= maxFileSize) {
+			rotate();
+		}
+	}
+
+	/* Completes the current gzip member, the file stays open for the next one */
+	private void finishMember(boolean sync) {
+		try {
+			if (member != null) {
+				GZIPOutputStream current = member;
+				member = null;
+				current.close();
+			}
+			if ((file != null) && sync) {
+				file.flush();
+				file.getFD().sync();
+			}
+		}
+		catch(IOException e) {
+			lastError = e.getMessage();
+			closeFile();
+		}
+	}
+
+	private void closeFile() {
+		if (member != null) {
+			try {
+				member.close();
+			}
+			catch(IOException e) {
+			}
+			member = null;
+		}
+		if (file != null) {
+			try {
+				file.close();
+			}
+			catch(IOException e) {
+				lastError = e.getMessage();
+			}
+			file = null;
+		}
+	}
+
+	private void rotate() {
+		finishMember(false);
+		closeFile();
+		File oldest = getFile(maxFiles - 1);
+		if (oldest.exists() && !oldest.delete()) {
+			lastError = "Cannot delete " + oldest;
+		}
+		for (int i=maxFiles - 2; i>=0; i--) {
+			File source = getFile(i);
+			if (source.exists() && !source.renameTo(getFile(i + 1))) {
+				lastError = "Cannot rename " + source;
+			}
+		}
+		fileSize = 0;
+	}
+
+}
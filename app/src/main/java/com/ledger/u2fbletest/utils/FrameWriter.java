@@ -0,0 +1,109 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.utils;
+
+import java.util.Vector;
+
+/*
+ * Writes a transport message directly into correctly sized frames as data is produced,
+ * without building the whole message first.
+ */
+public class FrameWriter {
+
+	public static final int MAX_LENGTH = 0xffff;
+
+	private Vector<byte[]> frames;
+	private int chunkSize;
+	private int remaining;
+	private byte[] frame;
+	private int frameOffset;
+	private int seq;
+
+	public FrameWriter(int command, int length, int chunkSize) {
+		if (chunkSize < 8) {
+			throw new RuntimeException("Invalid chunk size");
+		}
+		if ((length < 0) || (length > MAX_LENGTH)) {
+			throw new RuntimeException("Invalid data length");
+		}
+		this.frames = new Vector<byte[]>();
+		this.chunkSize = chunkSize;
+		this.remaining = length;
+		frame = new byte[Math.min(chunkSize, 3 + length)];
+		frame[0] = (byte)command;
+		// first packet has the total transport length
+		frame[1] = (byte)(length >> 8);
+		frame[2] = (byte)length;
+		frameOffset = 3;
+		completeFrame();
+	}
+
+	private void completeFrame() {
+		if (frameOffset == frame.length) {
+			frames.add(frame);
+			frame = null;
+		}
+	}
+
+	private void nextFrame() {
+		if (remaining <= 0) {
+			throw new RuntimeException("Data exceeds announced length");
+		}
+		frame = new byte[Math.min(chunkSize, 1 + remaining)];
+		frame[0] = (byte)(seq & 0x7f);
+		frameOffset = 1;
+		seq++;
+	}
+
+	public void write(int b) {
+		if (frame == null) {
+			nextFrame();
+		}
+		frame[frameOffset++] = (byte)b;
+		remaining--;
+		completeFrame();
+	}
+
+	public void write(byte[] data, int offset, int length) {
+		while (length > 0) {
+			if (frame == null) {
+				nextFrame();
+			}
+			int l = Math.min(frame.length - frameOffset, length);
+			System.arraycopy(data, offset, frame, frameOffset, l);
+			frameOffset += l;
+			offset += l;
+			length -= l;
+			remaining -= l;
+			completeFrame();
+		}
+	}
+
+	public int getRemaining() {
+		return remaining;
+	}
+
+	public Vector<byte[]> getFrames() {
+		if (remaining != 0) {
+			throw new RuntimeException("Missing data " + remaining);
+		}
+		return frames;
+	}
+
+}
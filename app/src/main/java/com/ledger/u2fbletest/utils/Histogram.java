@@ -0,0 +1,95 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.utils;
+
+import java.util.Locale;
+
+/*
+ * Fixed memory latency histogram with power of two buckets, from 125 us to about 65 s. Samples are in nanoseconds.
+ */
+public class Histogram {
+
+	private static final long FIRST_BOUND = 125000;
+	private static final int BUCKETS = 20;
+	private static final int BAR_WIDTH = 40;
+
+	private long[] counts;
+	private long total;
+
+	public Histogram() {
+		counts = new long[BUCKETS + 1];
+	}
+
+	/* upper bound of a bucket in nanoseconds, the last bucket is unbounded */
+	public static long getBound(int bucket) {
+		return FIRST_BOUND << bucket;
+	}
+
+	public synchronized void add(long value) {
+		int bucket = 0;
+		while ((bucket < BUCKETS) && (value > getBound(bucket))) {
+			bucket++;
+		}
+		counts[bucket]++;
+		total++;
+	}
+
+	public synchronized long getCount(int bucket) {
+		return counts[bucket];
+	}
+
+	public synchronized long getTotal() {
+		return total;
+	}
+
+	public synchronized void reset() {
+		for (int i=0; i<counts.length; i++) {
+			counts[i] = 0;
+		}
+		total = 0;
+	}
+
+	/* One line per non empty bucket range, with a bar scaled on the largest bucket */
+	public synchronized String toString() {
+		StringBuffer result = new StringBuffer();
+		int first = 0;
+		int last = counts.length - 1;
+		while ((first < last) && (counts[first] == 0)) {
+			first++;
+		}
+		while ((last > first) && (counts[last] == 0)) {
+			last--;
+		}
+		long max = 1;
+		for (long count : counts) {
+			max = Math.max(max, count);
+		}
+		for (int i=first; i<=last; i++) {
+			String label = (i < BUCKETS ? "<= " + LatencyStats.toMs(getBound(i)) : " > " + LatencyStats.toMs(getBound(BUCKETS - 1)));
+			result.append(String.format(Locale.US, "%14s ms %8d ", label, counts[i]));
+			int width = (int)((counts[i] * BAR_WIDTH + max - 1) / max);
+			for (int j=0; j<width; j++) {
+				result.append('#');
+			}
+			result.append('\n');
+		}
+		return result.toString();
+	}
+
+}
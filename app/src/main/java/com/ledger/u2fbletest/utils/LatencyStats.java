@@ -0,0 +1,97 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.utils;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/*
+ * Collects latency samples (in nanoseconds) and reports summary statistics.
+ */
+public class LatencyStats {
+
+	private long[] samples;
+	private int count;
+	private long sum;
+	private long min;
+	private long max;
+
+	public LatencyStats() {
+		samples = new long[64];
+		reset();
+	}
+
+	public synchronized void reset() {
+		count = 0;
+		sum = 0;
+		min = Long.MAX_VALUE;
+		max = Long.MIN_VALUE;
+	}
+
+	public synchronized void add(long value) {
+		if (count == samples.length) {
+			samples = Arrays.copyOf(samples, samples.length * 2);
+		}
+		samples[count++] = value;
+		sum += value;
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+
+	public synchronized long getMin() {
+		return (count != 0 ? min : 0);
+	}
+
+	public synchronized long getMax() {
+		return (count != 0 ? max : 0);
+	}
+
+	public synchronized long getSum() {
+		return sum;
+	}
+
+	public synchronized double getMean() {
+		return (count != 0 ? (double)sum / count : 0);
+	}
+
+	/* percentile in the 0-100 range, nearest rank */
+	public synchronized long getPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		int rank = (int)Math.ceil((percentile / 100.0) * count);
+		return sorted[Math.max(0, Math.min(count - 1, rank - 1))];
+	}
+
+	public static String toMs(double nanos) {
+		return String.format(Locale.US, "%.3f", nanos / 1000000.0);
+	}
+
+	public String toString() {
+		return "count " + getCount() + " min " + toMs(getMin()) + " mean " + toMs(getMean()) + " p50 " + toMs(getPercentile(50)) +
+			" p95 " + toMs(getPercentile(95)) + " max " + toMs(getMax()) + " ms";
+	}
+
+}
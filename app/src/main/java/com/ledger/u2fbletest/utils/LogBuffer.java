@@ -0,0 +1,183 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.utils;
+
+import java.util.Locale;
+import java.util.Vector;
+
+/*
+ * Bounded ring buffer of log entries, the oldest entries being overwritten once full. Each entry gets a
+ * sequence number so that readers can fetch what was added since their last read, and is tagged with the
+ * first device address found in its message.
+ */
+public class LogBuffer {
+
+	public static final int LEVEL_DEBUG = 0;
+	public static final int LEVEL_INFO = 1;
+	public static final int LEVEL_ERROR = 2;
+
+	public static final String[] LEVEL_NAMES = { "debug", "info", "error" };
+
+	public static final int DEFAULT_CAPACITY = 5000;
+
+	private static final int ADDRESS_LENGTH = 17;
+
+	public static class Entry {
+		private long sequence;
+		private long timestamp;
+		private int level;
+		private String device;
+		private String message;
+		private String text;
+
+		private Entry(long sequence, long timestamp, int level, String device, String message) {
+			this.sequence = sequence;
+			this.timestamp = timestamp;
+			this.level = level;
+			this.device = device;
+			this.message = message;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public int getLevel() {
+			return level;
+		}
+
+		public String getDevice() {
+			return device;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		/* Formatted line cached by the view */
+		public String getText() {
+			return text;
+		}
+
+		public void setText(String text) {
+			this.text = text;
+		}
+
+		public boolean matches(int minLevel, String deviceFilter) {
+			return (level >= minLevel) && ((deviceFilter == null) || deviceFilter.equals(device));
+		}
+	}
+
+	private Entry[] entries;
+	private long nextSequence;
+	private long firstSequence;
+	private Vector<String> devices;
+	private long dropped;
+
+	public LogBuffer(int capacity) {
+		entries = new Entry[capacity];
+		devices = new Vector<String>();
+	}
+
+	public LogBuffer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	private static boolean isHex(char c) {
+		return ((c >= '0') && (c <= '9')) || ((c >= 'A') && (c <= 'F')) || ((c >= 'a') && (c <= 'f'));
+	}
+
+	/* First XX:XX:XX:XX:XX:XX address of the message, or null */
+	public static String extractAddress(String message) {
+		int index = message.indexOf(':');
+		while ((index >= 2) && (index + ADDRESS_LENGTH - 2 <= message.length())) {
+			int start = index - 2;
+			boolean found = true;
+			for (int i=0; i<ADDRESS_LENGTH; i++) {
+				char c = message.charAt(start + i);
+				if ((i % 3) == 2 ? (c != ':') : !isHex(c)) {
+					found = false;
+					break;
+				}
+			}
+			if (found) {
+				return message.substring(start, start + ADDRESS_LENGTH).toUpperCase(Locale.US);
+			}
+			index = message.indexOf(':', index + 1);
+		}
+		return null;
+	}
+
+	public Entry add(int level, String message) {
+		String device = extractAddress(message);
+		synchronized(this) {
+			Entry entry = new Entry(nextSequence, System.currentTimeMillis(), level, device, message);
+			int index = (int)(nextSequence % entries.length);
+			if (entries[index] != null) {
+				dropped++;
+			}
+			entries[index] = entry;
+			nextSequence++;
+			if ((device != null) && !devices.contains(device)) {
+				devices.add(device);
+			}
+			return entry;
+		}
+	}
+
+	/* Appends the entries with a sequence number greater or equal to the given one, returns the next sequence number */
+	public synchronized long getSince(long sequence, Vector<Entry> result) {
+		long first = Math.max(sequence, Math.max(firstSequence, nextSequence - entries.length));
+		for (long i=first; i<nextSequence; i++) {
+			result.add(entries[(int)(i % entries.length)]);
+		}
+		return nextSequence;
+	}
+
+	public synchronized Vector<String> getDevices() {
+		return new Vector<String>(devices);
+	}
+
+	public synchronized int getDeviceCount() {
+		return devices.size();
+	}
+
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	public int getCapacity() {
+		return entries.length;
+	}
+
+	/* Entries are forgotten but sequence numbers keep growing, readers only see new entries */
+	public synchronized void clear() {
+		for (int i=0; i<entries.length; i++) {
+			entries[i] = null;
+		}
+		firstSequence = nextSequence;
+		devices.removeAllElements();
+		dropped = 0;
+	}
+
+}
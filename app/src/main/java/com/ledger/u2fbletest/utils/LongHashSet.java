@@ -0,0 +1,103 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.utils;
+
+import java.util.Arrays;
+
+/*
+ * Open addressing set of primitive longs, avoiding the boxing and entry allocations of a HashSet<Long> on hot
+ * paths such as scan result deduplication.
+ */
+public class LongHashSet {
+
+	private static final int DEFAULT_CAPACITY = 64;
+
+	private long[] keys;
+	private boolean[] used;
+	private int size;
+	private int mask;
+
+	public LongHashSet(int expectedSize) {
+		int capacity = DEFAULT_CAPACITY;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	public LongHashSet() {
+		this(DEFAULT_CAPACITY / 2);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		used = new boolean[capacity];
+		mask = capacity - 1;
+		size = 0;
+	}
+
+	private static int hash(long key) {
+		long value = key * 0x9E3779B97F4A7C15L;
+		return (int)(value ^ (value >>> 32));
+	}
+
+	private int find(long key) {
+		int index = hash(key) & mask;
+		while (used[index] && (keys[index] != key)) {
+			index = (index + 1) & mask;
+		}
+		return index;
+	}
+
+	/* Returns true if the key was not already present */
+	public boolean add(long key) {
+		int index = find(key);
+		if (used[index]) {
+			return false;
+		}
+		used[index] = true;
+		keys[index] = key;
+		size++;
+		if (size * 2 > keys.length) {
+			long[] oldKeys = keys;
+			boolean[] oldUsed = used;
+			allocate(keys.length * 2);
+			for (int i=0; i<oldKeys.length; i++) {
+				if (oldUsed[i]) {
+					add(oldKeys[i]);
+				}
+			}
+		}
+		return true;
+	}
+
+	public boolean contains(long key) {
+		return used[find(key)];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		Arrays.fill(used, false);
+		size = 0;
+	}
+
+}
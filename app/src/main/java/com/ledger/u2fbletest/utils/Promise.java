@@ -0,0 +1,361 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.utils;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * Minimal completable future, CompletableFuture not being available on the supported API levels.
+ * Listeners run on the thread completing the promise, or immediately if it is already done.
+ */
+public class Promise<T> implements Future<T> {
+
+	public static interface Listener<T> {
+		public void onComplete(Promise<T> promise);
+	}
+
+	public static interface Transform<T, R> {
+		public R apply(T value) throws Exception;
+	}
+
+	private static final int PENDING = 0;
+	private static final int COMPLETED = 1;
+	private static final int FAILED = 2;
+	private static final int CANCELLED = 3;
+
+	private static Timer timer;
+
+	private int state;
+	private T value;
+	private Throwable failure;
+	private Vector<Listener<T>> listeners;
+	private Vector<Runnable> cancelHandlers;
+
+	public Promise() {
+		listeners = new Vector<Listener<T>>();
+		cancelHandlers = new Vector<Runnable>();
+	}
+
+	public static <T> Promise<T> completed(T value) {
+		Promise<T> result = new Promise<T>();
+		result.complete(value);
+		return result;
+	}
+
+	public static <T> Promise<T> failed(Throwable failure) {
+		Promise<T> result = new Promise<T>();
+		result.fail(failure);
+		return result;
+	}
+
+	private static synchronized Timer getTimer() {
+		if (timer == null) {
+			timer = new Timer("Promise timeouts", true);
+		}
+		return timer;
+	}
+
+	private boolean settle(int newState, T value, Throwable failure) {
+		Vector<Listener<T>> currentListeners;
+		Vector<Runnable> currentCancelHandlers = null;
+		synchronized(this) {
+			if (state != PENDING) {
+				return false;
+			}
+			state = newState;
+			this.value = value;
+			this.failure = failure;
+			currentListeners = listeners;
+			listeners = null;
+			if (newState != COMPLETED) {
+				currentCancelHandlers = cancelHandlers;
+			}
+			cancelHandlers = null;
+			notifyAll();
+		}
+		if (currentCancelHandlers != null) {
+			for (Runnable handler : currentCancelHandlers) {
+				handler.run();
+			}
+		}
+		for (Listener<T> listener : currentListeners) {
+			listener.onComplete(this);
+		}
+		return true;
+	}
+
+	public boolean complete(T value) {
+		return settle(COMPLETED, value, null);
+	}
+
+	/* Failing a promise also runs its cancel handlers, so that the pending operation is abandoned */
+	public boolean fail(Throwable failure) {
+		return settle(FAILED, null, failure);
+	}
+
+	public boolean fail(String reason) {
+		return fail(new RuntimeException(reason));
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return settle(CANCELLED, null, new CancellationException());
+	}
+
+	public Promise<T> onCancel(Runnable handler) {
+		boolean run;
+		synchronized(this) {
+			run = (state == FAILED) || (state == CANCELLED);
+			if (state == PENDING) {
+				cancelHandlers.add(handler);
+			}
+		}
+		if (run) {
+			handler.run();
+		}
+		return this;
+	}
+
+	public Promise<T> addListener(Listener<T> listener) {
+		synchronized(this) {
+			if (state == PENDING) {
+				listeners.add(listener);
+				return this;
+			}
+		}
+		listener.onComplete(this);
+		return this;
+	}
+
+	/* Runs the listener through an executor, for instance a single device queue of an EventDispatcher */
+	public Promise<T> addListener(final Listener<T> listener, final Executor executor) {
+		return addListener(new Listener<T>() {
+			@Override
+			public void onComplete(final Promise<T> promise) {
+				executor.execute(new Runnable() {
+					public void run() {
+						listener.onComplete(promise);
+					}
+				});
+			}
+		});
+	}
+
+	public Promise<T> setTimeout(final long timeoutMs) {
+		final TimerTask task = new TimerTask() {
+			@Override
+			public void run() {
+				fail(new RuntimeException("Timeout after " + timeoutMs + " ms"));
+			}
+		};
+		getTimer().schedule(task, timeoutMs);
+		addListener(new Listener<T>() {
+			@Override
+			public void onComplete(Promise<T> promise) {
+				task.cancel();
+			}
+		});
+		return this;
+	}
+
+	public <R> Promise<R> thenApply(final Transform<T, R> transform) {
+		final Promise<R> result = new Promise<R>();
+		result.onCancel(new Runnable() {
+			public void run() {
+				cancel(false);
+			}
+		});
+		addListener(new Listener<T>() {
+			@Override
+			public void onComplete(Promise<T> promise) {
+				if (!promise.isSuccessful()) {
+					result.fail(promise.getFailure());
+					return;
+				}
+				try {
+					result.complete(transform.apply(promise.getValue()));
+				}
+				catch(Exception e) {
+					result.fail(e);
+				}
+			}
+		});
+		return result;
+	}
+
+	public <R> Promise<R> thenCompose(final Transform<T, Promise<R>> transform) {
+		final Promise<R> result = new Promise<R>();
+		result.onCancel(new Runnable() {
+			public void run() {
+				cancel(false);
+			}
+		});
+		addListener(new Listener<T>() {
+			@Override
+			public void onComplete(Promise<T> promise) {
+				if (!promise.isSuccessful()) {
+					result.fail(promise.getFailure());
+					return;
+				}
+				final Promise<R> next;
+				try {
+					next = transform.apply(promise.getValue());
+				}
+				catch(Exception e) {
+					result.fail(e);
+					return;
+				}
+				result.onCancel(new Runnable() {
+					public void run() {
+						next.cancel(false);
+					}
+				});
+				next.addListener(new Listener<R>() {
+					@Override
+					public void onComplete(Promise<R> nextPromise) {
+						if (nextPromise.isSuccessful()) {
+							result.complete(nextPromise.getValue());
+						}
+						else {
+							result.fail(nextPromise.getFailure());
+						}
+					}
+				});
+			}
+		});
+		return result;
+	}
+
+	/* Completes with all the values in order once every promise succeeded, fails on the first failure */
+	public static <T> Promise<Vector<T>> all(final Vector<Promise<T>> promises) {
+		final Promise<Vector<T>> result = new Promise<Vector<T>>();
+		final int[] remaining = { promises.size() };
+		if (promises.isEmpty()) {
+			result.complete(new Vector<T>());
+			return result;
+		}
+		for (Promise<T> promise : promises) {
+			promise.addListener(new Listener<T>() {
+				@Override
+				public void onComplete(Promise<T> promise) {
+					if (!promise.isSuccessful()) {
+						result.fail(promise.getFailure());
+						return;
+					}
+					boolean done;
+					synchronized(remaining) {
+						done = (--remaining[0] == 0);
+					}
+					if (done) {
+						Vector<T> values = new Vector<T>();
+						for (Promise<T> source : promises) {
+							values.add(source.getValue());
+						}
+						result.complete(values);
+					}
+				}
+			});
+		}
+		return result;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return (state == CANCELLED);
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return (state != PENDING);
+	}
+
+	public synchronized boolean isSuccessful() {
+		return (state == COMPLETED);
+	}
+
+	public synchronized T getValue() {
+		return value;
+	}
+
+	public synchronized Throwable getFailure() {
+		return failure;
+	}
+
+	@Override
+	public synchronized T get() throws InterruptedException, ExecutionException {
+		while (state == PENDING) {
+			wait();
+		}
+		return getResult();
+	}
+
+	@Override
+	public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		while (state == PENDING) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				throw new TimeoutException();
+			}
+			wait(remaining);
+		}
+		return getResult();
+	}
+
+	private T getResult() throws ExecutionException {
+		if (state == CANCELLED) {
+			throw new CancellationException();
+		}
+		if (state == FAILED) {
+			throw new ExecutionException(failure);
+		}
+		return value;
+	}
+
+	/* Blocking helper for worker threads, failures are reported as RuntimeException */
+	public T join(long timeoutMs) {
+		try {
+			return get(timeoutMs, TimeUnit.MILLISECONDS);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted");
+		}
+		catch(TimeoutException e) {
+			cancel(false);
+			throw new RuntimeException("Timeout after " + timeoutMs + " ms");
+		}
+		catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw new RuntimeException(cause.getMessage() != null ? cause.getMessage() : cause.toString());
+		}
+		catch(CancellationException e) {
+			throw new RuntimeException("Cancelled");
+		}
+	}
+
+}
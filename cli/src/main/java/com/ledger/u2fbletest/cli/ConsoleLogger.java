@@ -0,0 +1,74 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.cli;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import com.ledger.u2fbletest.Logger;
+
+public class ConsoleLogger implements Logger {
+
+	private boolean verbose;
+	private Logger sink;
+	private SimpleDateFormat format;
+
+	/* The sink, when set, receives every message including debug ones */
+	public ConsoleLogger(boolean verbose, Logger sink) {
+		this.verbose = verbose;
+		this.sink = sink;
+		format = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+	}
+
+	public ConsoleLogger(boolean verbose) {
+		this(verbose, null);
+	}
+
+	private synchronized void log(String level, String message) {
+		System.err.println(format.format(new Date()) + " " + level + " " + message);
+	}
+
+	@Override
+	public void info(String message) {
+		if (sink != null) {
+			sink.info(message);
+		}
+		log("I", message);
+	}
+
+	@Override
+	public void error(String message) {
+		if (sink != null) {
+			sink.error(message);
+		}
+		log("E", message);
+	}
+
+	@Override
+	public void debug(String message) {
+		if (sink != null) {
+			sink.debug(message);
+		}
+		if (verbose) {
+			log("D", message);
+		}
+	}
+
+}
@@ -0,0 +1,725 @@
+/*
+*******************************************************************************    
+*   U2F BLE Tester
+*   (c) 2016 Ledger
+*   
+*  Licensed under the Apache License, Version 2.0 (the "License");
+*  you may not use this file except in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+*   Unless required by applicable law or agreed to in writing, software
+*   distributed under the License is distributed on an "AS IS" BASIS,
+*   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*  See the License for the specific language governing permissions and
+*   limitations under the License.
+********************************************************************************/
+
+package com.ledger.u2fbletest.cli;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Vector;
+
+import com.ledger.u2fbletest.Logger;
+import com.ledger.u2fbletest.apdus.AuthenticateResponseView;
+import com.ledger.u2fbletest.apdus.AuthenticateTemplate;
+import com.ledger.u2fbletest.apdus.RegisterResponse;
+import com.ledger.u2fbletest.apdus.RegisterResponseView;
+import com.ledger.u2fbletest.apdus.RegisterTemplate;
+import com.ledger.u2fbletest.apdus.StatusWord;
+import com.ledger.u2fbletest.crypto.VerificationPipeline;
+import com.ledger.u2fbletest.fuzz.AuthenticateResponseTarget;
+import com.ledger.u2fbletest.fuzz.FuzzEngine;
+import com.ledger.u2fbletest.fuzz.FuzzTarget;
+import com.ledger.u2fbletest.fuzz.JoinTarget;
+import com.ledger.u2fbletest.fuzz.RegisterResponseTarget;
+import com.ledger.u2fbletest.runner.ApduChannel;
+import com.ledger.u2fbletest.runner.Campaign;
+import com.ledger.u2fbletest.runner.CampaignEngine;
+import com.ledger.u2fbletest.runner.ChannelFactory;
+import com.ledger.u2fbletest.runner.ConformanceRunner;
+import com.ledger.u2fbletest.runner.PingProbe;
+import com.ledger.u2fbletest.runner.SoakRunner;
+import com.ledger.u2fbletest.runner.ThroughputBenchmark;
+import com.ledger.u2fbletest.simulator.SimulatorFrameHandler;
+import com.ledger.u2fbletest.simulator.SimulatorServer;
+import com.ledger.u2fbletest.simulator.U2FSimulator;
+import com.ledger.u2fbletest.transport.FrameClient;
+import com.ledger.u2fbletest.transport.FrameTransport;
+import com.ledger.u2fbletest.transport.LoopbackTransport;
+import com.ledger.u2fbletest.transport.RecordingTransport;
+import com.ledger.u2fbletest.transport.ReplayTransport;
+import com.ledger.u2fbletest.transport.SocketTransport;
+import com.ledger.u2fbletest.utils.ChallengePool;
+import com.ledger.u2fbletest.utils.FileLogger;
+import com.ledger.u2fbletest.utils.LatencyStats;
+
+/*
+ * Command line runner driving the U2F BLE framing and APDUs over a simulator, replay or TCP transport
+ */
+public class U2FBLECli {
+
+	public static final String USAGE =
+		"Usage: u2fbletest <command> [options]\n" +
+		"Commands:\n" +
+		"  register                 register count times\n" +
+		"  authenticate             register once, then authenticate count times\n" +
+		"  ping                     ping count times with ping-size bytes\n" +
+		"  probe                    ping count times every interval, reporting a round trip histogram\n" +
+		"  benchmark                sweep payload and fragment sizes, reporting the throughput as CSV\n" +
+		"  soak                     connect, ping and close in a loop for duration, reporting resource growth\n" +
+		"  matrix                   run the conformance matrix count times\n" +
+		"  campaign <file>          run a campaign, devices being transport specifications\n" +
+		"  serve                    expose a simulator over TCP\n" +
+		"  fuzz                     fuzz the framing and response parsers\n" +
+		"Options:\n" +
+		"  --transport <spec>       sim, sim:<id>, replay:<file> or tcp:<host>:<port> (default sim)\n" +
+		"  --count <n>              number of operations (default 100)\n" +
+		"  --ping-size <n>          ping payload length (default 64)\n" +
+		"  --interval <ms>          time between probes (default 100)\n" +
+		"  --mode <ping|msg>        benchmark exchanges (default ping)\n" +
+		"  --fragment-sizes <list>  benchmark fragment sizes, comma separated (default 20,64,128,244)\n" +
+		"  --max-payload <n>        largest benchmark payload (default 65535)\n" +
+		"  --record <file>          record the frames exchanged for later replay\n" +
+		"  --delay <ms>             simulator processing delay (default 0)\n" +
+		"  --control-point <n>      simulator control point length (default 20)\n" +
+		"  --port <n>               serve port (default 7000)\n" +
+		"  --timeout <ms>           response timeout (default 5000)\n" +
+		"  --output <file>          campaign results (default campaign output or stdout) or soak samples as CSV\n" +
+		"  --verify                 check register and authenticate signatures\n" +
+		"  --target <name>          fuzz target, join, register, authenticate or all (default all)\n" +
+		"  --corpus <dir>           persistent fuzzing corpus directory\n" +
+		"  --duration <s>           fuzzing or soak duration (default 60)\n" +
+		"  --runs <n>               maximum fuzzing runs per target or soak cycles (default unlimited)\n" +
+		"  --sample-interval <s>    time between soak resource samples (default 60)\n" +
+		"  --seed <n>               fuzzing random seed (default time based), payload seed when recording or replaying (default 0)\n" +
+		"  --log-file <file>        also write all messages to rotated gzip files named after <file>\n" +
+		"  --verbose                log debug messages\n";
+
+	private static final long VERIFICATION_TIMEOUT = 60000;
+
+	private String transportSpec = "sim";
+	private int count = 100;
+	private int pingSize = 64;
+	private long interval = PingProbe.DEFAULT_INTERVAL;
+	private ThroughputBenchmark.Mode benchmarkMode = ThroughputBenchmark.Mode.PING;
+	private String fragmentSizes = "20,64,128,244";
+	private int maxPayload = ThroughputBenchmark.MAX_PAYLOAD;
+	private String recordFile;
+	private int delay;
+	private int controlPointLength = SimulatorFrameHandler.DEFAULT_CONTROL_POINT_LENGTH;
+	private int port = 7000;
+	private int timeout = FrameClient.DEFAULT_TIMEOUT;
+	private String outputFile;
+	private boolean verify;
+	private String fuzzTarget = "all";
+	private String corpusDirectory;
+	private int duration = 60;
+	private long runs;
+	private long sampleInterval = SoakRunner.DEFAULT_SAMPLE_INTERVAL / 1000;
+	private long seed = System.nanoTime();
+	private boolean seedGiven;
+	private Logger logger;
+	private FileLogger fileLogger;
+	private SecureRandom random = new SecureRandom();
+	/* seeded when recording or replaying, so that the replayed requests match the recorded ones */
+	private Random payloadRandom = random;
+	private boolean deterministic;
+	private ChallengePool challengePool = ChallengePool.getInstance();
+	private VerificationPipeline verificationPipeline;
+	/* responses are checked in place, a copy is only made for the verification workers */
+	private RegisterResponseView registerView = new RegisterResponseView();
+	private AuthenticateResponseView authenticateView = new AuthenticateResponseView();
+	private Vector<Writer> recordings = new Vector<Writer>();
+	private HashMap<String, U2FSimulator> simulators = new HashMap<String, U2FSimulator>();
+
+	private FrameTransport createTransport(String spec) throws IOException {
+		if (spec.equals("sim")) {
+			return new LoopbackTransport(new SimulatorFrameHandler(new U2FSimulator(), controlPointLength), delay);
+		}
+		else
+		if (spec.startsWith("sim:")) {
+			return new LoopbackTransport(new SimulatorFrameHandler(getSimulator(spec), controlPointLength), delay);
+		}
+		else
+		if (spec.startsWith("replay:")) {
+			return new ReplayTransport(new File(spec.substring("replay:".length())));
+		}
+		else
+		if (spec.startsWith("tcp:")) {
+			int separator = spec.lastIndexOf(':');
+			if (separator <= "tcp:".length()) {
+				throw new RuntimeException("Invalid transport " + spec);
+			}
+			return new SocketTransport(spec.substring("tcp:".length(), separator), Integer.parseInt(spec.substring(separator + 1)));
+		}
+		throw new RuntimeException("Invalid transport " + spec);
+	}
+
+	/* Transports using the same sim:<id> specification share the simulator, and so its credentials */
+	private U2FSimulator getSimulator(String spec) {
+		synchronized(simulators) {
+			U2FSimulator simulator = simulators.get(spec);
+			if (simulator == null) {
+				simulator = new U2FSimulator();
+				simulators.put(spec, simulator);
+			}
+			return simulator;
+		}
+	}
+
+	private FrameClient createClient(String spec, String recordPath) throws IOException {
+		FrameTransport transport = createTransport(spec);
+		if (recordPath != null) {
+			Writer recording = new FileWriter(recordPath);
+			recordings.add(recording);
+			transport = new RecordingTransport(transport, recording);
+		}
+		FrameClient client = new FrameClient(transport, logger, timeout);
+		client.connect();
+		return client;
+	}
+
+	private byte[] newRandom() {
+		byte[] result = new byte[32];
+		payloadRandom.nextBytes(result);
+		return result;
+	}
+
+	private static int getReplayMismatches(FrameClient client) {
+		if (client.getTransport() instanceof ReplayTransport) {
+			return ((ReplayTransport)client.getTransport()).getMismatches();
+		}
+		return 0;
+	}
+
+	private static byte[] checkResponse(byte[] response) {
+		int statusWord = StatusWord.getStatusWord(response);
+		if (statusWord != StatusWord.SW_NO_ERROR) {
+			throw new RuntimeException("Unexpected status " + StatusWord.toString(statusWord));
+		}
+		return response;
+	}
+
+	/* Templates are patched in place, the request objects are only built to check signatures */
+	private RegisterResponseView register(FrameClient client, RegisterTemplate template) {
+		if (deterministic) {
+			template.setChallenge(newRandom());
+		}
+		else {
+			template.nextChallenge(challengePool);
+		}
+		RegisterResponseView response = registerView.wrap(checkResponse(client.exchange(template)));
+		if (verificationPipeline != null) {
+			verificationPipeline.verifyRegister(template.toRegister(), response.toRegisterResponse());
+		}
+		return response;
+	}
+
+	private void authenticate(FrameClient client, AuthenticateTemplate template, RegisterResponse registerResponse) {
+		if (deterministic) {
+			template.setChallenge(newRandom());
+		}
+		else {
+			template.nextChallenge(challengePool);
+		}
+		AuthenticateResponseView response = authenticateView.wrap(checkResponse(client.exchange(template)));
+		if (verificationPipeline != null) {
+			verificationPipeline.verifyAuthenticate(template.toAuthenticate(), response.toAuthenticateResponse(), registerResponse);
+		}
+	}
+
+	private void printSummary(String operation, FrameClient client, LatencyStats latency, int failed, long elapsedNanos) {
+		double seconds = elapsedNanos / 1000000000.0;
+		System.out.println(operation + " : " + latency.getCount() + " passed, " + failed + " failed in " + String.format(Locale.US, "%.3f", seconds) + " s, " +
+			String.format(Locale.US, "%.1f", (seconds > 0 ? latency.getCount() / seconds : 0)) + " ops/s");
+		System.out.println("latency " + latency);
+		System.out.println("up " + client.getFramesSent() + " frames " + client.getBytesSent() + " bytes, down " +
+			client.getFramesReceived() + " frames " + client.getBytesReceived() + " bytes, " + client.getKeepalives() + " keepalives");
+		if (client.getTransport() instanceof ReplayTransport) {
+			System.out.println("replay mismatches " + getReplayMismatches(client));
+		}
+	}
+
+	/* Signatures are checked off the exchange loop, failures are added once every verification is done */
+	private int runExchanges(String command) throws IOException, InterruptedException {
+		FrameClient client = createClient(transportSpec, recordFile);
+		if (verify) {
+			verificationPipeline = new VerificationPipeline(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), Math.max(count + 1, VerificationPipeline.DEFAULT_QUEUE_SIZE));
+		}
+		byte[] applicationParameter = newRandom();
+		RegisterTemplate registerTemplate = new RegisterTemplate(applicationParameter);
+		AuthenticateTemplate authenticateTemplate = null;
+		RegisterResponse registerResponse = null;
+		byte[] pingData = new byte[pingSize];
+		if (command.equals("authenticate")) {
+			registerResponse = register(client, registerTemplate).toRegisterResponse();
+			authenticateTemplate = new AuthenticateTemplate(applicationParameter, registerResponse.getKeyHandle(), false);
+			client.resetStatistics();
+		}
+		LatencyStats latency = new LatencyStats();
+		int failed = 0;
+		long start = System.nanoTime();
+		for (int i=0; i<count; i++) {
+			long operationStart = System.nanoTime();
+			try {
+				if (command.equals("register")) {
+					register(client, registerTemplate);
+				}
+				else
+				if (command.equals("authenticate")) {
+					authenticate(client, authenticateTemplate, registerResponse);
+				}
+				else {
+					payloadRandom.nextBytes(pingData);
+					byte[] response = client.ping(pingData);
+					if (!Arrays.equals(response, pingData)) {
+						throw new RuntimeException("Invalid ping response");
+					}
+				}
+				latency.add(System.nanoTime() - operationStart);
+			}
+			catch(RuntimeException e) {
+				failed++;
+				logger.error(command + " " + i + " failed : " + e.getMessage());
+				if (!client.isConnected()) {
+					break;
+				}
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		client.close();
+		printSummary(command, client, latency, failed, elapsed);
+		/* requests are seeded, a replay which does not send the recorded frames is a failure */
+		failed += getReplayMismatches(client);
+		if (verificationPipeline != null) {
+			if (!verificationPipeline.awaitIdle(VERIFICATION_TIMEOUT)) {
+				logger.error("Verification timeout");
+				failed++;
+			}
+			System.out.println("verification " + verificationPipeline);
+			failed += verificationPipeline.getFailed() + verificationPipeline.getRejected();
+			verificationPipeline.shutdown();
+		}
+		return (failed == 0 ? 0 : 1);
+	}
+
+	private int runProbe() throws IOException, InterruptedException {
+		FrameClient client = createClient(transportSpec, recordFile);
+		PingProbe probe = new PingProbe(client, logger);
+		probe.setRandom(payloadRandom);
+		probe.setSize(pingSize);
+		probe.setInterval(interval);
+		probe.run(count);
+		client.close();
+		System.out.print(probe.getSummary());
+		return ((probe.getMatched() == probe.getSent()) && (getReplayMismatches(client) == 0) ? 0 : 1);
+	}
+
+	/* The count is the number of exchanges per point, the simulator control point grows to the largest fragment size */
+	private int runBenchmark() throws IOException {
+		String[] items = fragmentSizes.split(",");
+		int[] sizes = new int[items.length];
+		for (int i=0; i<items.length; i++) {
+			sizes[i] = Integer.parseInt(items[i].trim());
+			controlPointLength = Math.max(controlPointLength, sizes[i]);
+		}
+		FrameClient client = createClient(transportSpec, recordFile);
+		ThroughputBenchmark benchmark = new ThroughputBenchmark(client, logger);
+		benchmark.setRandom(payloadRandom);
+		benchmark.setMode(benchmarkMode);
+		benchmark.setRepetitions(count);
+		benchmark.setMaxPayload(maxPayload);
+		Vector<ThroughputBenchmark.Point> points = benchmark.run(sizes);
+		client.close();
+		System.out.print(benchmark.toCsv(points));
+		if (getReplayMismatches(client) != 0) {
+			return 1;
+		}
+		for (ThroughputBenchmark.Point point : points) {
+			if (point.getFailed() != 0) {
+				return 1;
+			}
+		}
+		return 0;
+	}
+
+	/* Each cycle opens its own transport, so that leaks of the connection setup and teardown accumulate */
+	private int runSoak() throws IOException {
+		final byte[] pingData = new byte[pingSize];
+		SoakRunner soak = new SoakRunner(new SoakRunner.Cycle() {
+			@Override
+			public void run(int index) throws Exception {
+				FrameClient client = createClient(transportSpec, null);
+				try {
+					payloadRandom.nextBytes(pingData);
+					if (!Arrays.equals(client.ping(pingData), pingData)) {
+						throw new RuntimeException("Invalid ping response");
+					}
+					if (getReplayMismatches(client) != 0) {
+						throw new RuntimeException("Replay mismatch");
+					}
+				}
+				finally {
+					client.close();
+				}
+			}
+		}, logger);
+		soak.setDuration(duration * 1000L);
+		soak.setMaxCycles((int)Math.min(runs, Integer.MAX_VALUE));
+		soak.setSampleInterval(sampleInterval * 1000);
+		soak.run();
+		if (outputFile != null) {
+			Writer output = new FileWriter(outputFile);
+			try {
+				output.write(soak.toCsv());
+			}
+			finally {
+				output.close();
+			}
+		}
+		System.out.print(soak.getSummary());
+		return ((soak.getFailed() == 0) && !soak.hasGrowth() ? 0 : 1);
+	}
+
+	private int runMatrix() throws IOException {
+		FrameClient client = createClient(transportSpec, recordFile);
+		ConformanceRunner runner = new ConformanceRunner(client, logger);
+		if (deterministic) {
+			runner.setRandom(payloadRandom);
+		}
+		Vector<ConformanceRunner.CaseResult> results = runner.run(count);
+		client.close();
+		System.out.print(ConformanceRunner.toCsv(results));
+		if (getReplayMismatches(client) != 0) {
+			return 1;
+		}
+		for (ConformanceRunner.CaseResult result : results) {
+			if (result.getFailed() != 0) {
+				return 1;
+			}
+		}
+		return 0;
+	}
+
+	private int runCampaign(String campaignFile) throws IOException, InterruptedException {
+		File file = new File(campaignFile);
+		Campaign campaign = Campaign.parse(file);
+		String outputPath = (outputFile != null ? outputFile : campaign.getOutput());
+		Writer output;
+		if (outputPath != null) {
+			File outputTarget = new File(outputPath);
+			if (!outputTarget.isAbsolute() && (outputFile == null)) {
+				outputTarget = new File(file.getAbsoluteFile().getParentFile(), outputPath);
+			}
+			output = new FileWriter(outputTarget);
+		}
+		else {
+			output = new OutputStreamWriter(System.out);
+		}
+		final Vector<FrameClient> clients = new Vector<FrameClient>();
+		final int[] index = new int[1];
+		CampaignEngine engine = new CampaignEngine(campaign, new ChannelFactory() {
+			@Override
+			public ApduChannel open(String device) {
+				String recordPath = null;
+				synchronized(clients) {
+					if (recordFile != null) {
+						recordPath = recordFile + "." + (index[0]++);
+					}
+				}
+				try {
+					FrameClient client = createClient(device, recordPath);
+					clients.add(client);
+					return client;
+				}
+				catch(IOException e) {
+					throw new RuntimeException("Cannot open " + device + " : " + e.getMessage());
+				}
+			}
+
+			/* closed as soon as the device is done, the statistics are read at the end */
+			@Override
+			public void release(ApduChannel channel) {
+				((FrameClient)channel).close();
+			}
+		}, output, logger);
+		for (String device : campaign.getDevices()) {
+			if (device.startsWith("replay:")) {
+				deterministic = true;
+			}
+		}
+		if (deterministic) {
+			engine.setSeed(seedGiven ? seed : 0);
+		}
+		if (fileLogger != null) {
+			fileLogger.flush();
+		}
+		long start = System.nanoTime();
+		engine.run();
+		long elapsed = System.nanoTime() - start;
+		if (fileLogger != null) {
+			fileLogger.flush();
+		}
+		output.flush();
+		if (outputPath != null) {
+			output.close();
+		}
+		long framesSent = 0;
+		long framesReceived = 0;
+		long bytesSent = 0;
+		long bytesReceived = 0;
+		int mismatches = 0;
+		for (FrameClient client : clients) {
+			mismatches += getReplayMismatches(client);
+			framesSent += client.getFramesSent();
+			framesReceived += client.getFramesReceived();
+			bytesSent += client.getBytesSent();
+			bytesReceived += client.getBytesReceived();
+		}
+		System.err.println(engine.getSummary());
+		System.err.println("elapsed " + String.format(Locale.US, "%.3f", elapsed / 1000000000.0) + " s, up " + framesSent + " frames " + bytesSent +
+			" bytes, down " + framesReceived + " frames " + bytesReceived + " bytes");
+		if (mismatches != 0) {
+			System.err.println("replay mismatches " + mismatches);
+		}
+		return (engine.hasFailures() || (mismatches != 0) ? 1 : 0);
+	}
+
+	private int serve() throws IOException {
+		SimulatorServer server = new SimulatorServer(new U2FSimulator(), controlPointLength, logger);
+		logger.info("Simulator listening on port " + server.bind(port));
+		server.run();
+		return 0;
+	}
+
+	private int fuzz() throws InterruptedException {
+		FuzzTarget[] targets = { new JoinTarget(), new RegisterResponseTarget(), new AuthenticateResponseTarget() };
+		final File directory = (corpusDirectory != null ? new File(corpusDirectory) : null);
+		final Vector<FuzzEngine> engines = new Vector<FuzzEngine>();
+		Vector<Thread> threads = new Vector<Thread>();
+		logger.info("Fuzzing with seed " + seed);
+		for (int i=0; i<targets.length; i++) {
+			if (!fuzzTarget.equals("all") && !fuzzTarget.equals(targets[i].getName())) {
+				continue;
+			}
+			final FuzzEngine engine = new FuzzEngine(targets[i], directory, seed + i, logger);
+			engines.add(engine);
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					engine.run(duration * 1000L, runs);
+				}
+			}, "Fuzz " + targets[i].getName());
+			threads.add(thread);
+			thread.start();
+		}
+		if (engines.isEmpty()) {
+			throw new RuntimeException("Unknown fuzz target " + fuzzTarget);
+		}
+		int status = 0;
+		for (int i=0; i<engines.size(); i++) {
+			threads.get(i).join();
+			FuzzEngine engine = engines.get(i);
+			for (FuzzEngine.Crash crash : engine.getCrashes()) {
+				System.out.println(crash);
+				status = 1;
+			}
+		}
+		return status;
+	}
+
+	private int run(String[] args) throws Exception {
+		String command = null;
+		String campaignFile = null;
+		boolean verbose = false;
+		for (int i=0; i<args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("--verify")) {
+				verify = true;
+			}
+			else
+			if (arg.equals("--verbose")) {
+				verbose = true;
+			}
+			else
+			if (arg.startsWith("--")) {
+				if (i + 1 >= args.length) {
+					throw new RuntimeException("Missing value for " + arg);
+				}
+				String value = args[++i];
+				if (arg.equals("--transport")) {
+					transportSpec = value;
+				}
+				else
+				if (arg.equals("--count")) {
+					count = Integer.parseInt(value);
+				}
+				else
+				if (arg.equals("--ping-size")) {
+					pingSize = Integer.parseInt(value);
+				}
+				else
+				if (arg.equals("--interval")) {
+					interval = Long.parseLong(value);
+				}
+				else
+				if (arg.equals("--mode")) {
+					benchmarkMode = ThroughputBenchmark.Mode.valueOf(value.toUpperCase(Locale.US));
+				}
+				else
+				if (arg.equals("--fragment-sizes")) {
+					fragmentSizes = value;
+				}
+				else
+				if (arg.equals("--max-payload")) {
+					maxPayload = Integer.parseInt(value);
+				}
+				else
+				if (arg.equals("--record")) {
+					recordFile = value;
+				}
+				else
+				if (arg.equals("--delay")) {
+					delay = Integer.parseInt(value);
+				}
+				else
+				if (arg.equals("--control-point")) {
+					controlPointLength = Integer.parseInt(value);
+				}
+				else
+				if (arg.equals("--port")) {
+					port = Integer.parseInt(value);
+				}
+				else
+				if (arg.equals("--timeout")) {
+					timeout = Integer.parseInt(value);
+				}
+				else
+				if (arg.equals("--output")) {
+					outputFile = value;
+				}
+				else
+				if (arg.equals("--target")) {
+					fuzzTarget = value;
+				}
+				else
+				if (arg.equals("--corpus")) {
+					corpusDirectory = value;
+				}
+				else
+				if (arg.equals("--duration")) {
+					duration = Integer.parseInt(value);
+				}
+				else
+				if (arg.equals("--runs")) {
+					runs = Long.parseLong(value);
+				}
+				else
+				if (arg.equals("--sample-interval")) {
+					sampleInterval = Long.parseLong(value);
+				}
+				else
+				if (arg.equals("--log-file")) {
+					File logFile = new File(value).getAbsoluteFile();
+					fileLogger = new FileLogger(logFile.getParentFile(), logFile.getName());
+				}
+				else
+				if (arg.equals("--seed")) {
+					seed = Long.parseLong(value);
+					seedGiven = true;
+				}
+				else {
+					throw new RuntimeException("Unknown option " + arg);
+				}
+			}
+			else
+			if (command == null) {
+				command = arg;
+			}
+			else
+			if (command.equals("campaign") && (campaignFile == null)) {
+				campaignFile = arg;
+			}
+			else {
+				throw new RuntimeException("Unexpected argument " + arg);
+			}
+		}
+		logger = new ConsoleLogger(verbose, fileLogger);
+		deterministic = (recordFile != null) || transportSpec.startsWith("replay:");
+		if (deterministic) {
+			payloadRandom = new Random(seedGiven ? seed : 0);
+		}
+		if (command == null) {
+			System.err.print(USAGE);
+			return 2;
+		}
+		try {
+			if (command.equals("register") || command.equals("authenticate") || command.equals("ping")) {
+				return runExchanges(command);
+			}
+			else
+			if (command.equals("probe")) {
+				return runProbe();
+			}
+			else
+			if (command.equals("benchmark")) {
+				return runBenchmark();
+			}
+			else
+			if (command.equals("soak")) {
+				return runSoak();
+			}
+			else
+			if (command.equals("matrix")) {
+				return runMatrix();
+			}
+			else
+			if (command.equals("campaign")) {
+				if (campaignFile == null) {
+					throw new RuntimeException("Missing campaign file");
+				}
+				return runCampaign(campaignFile);
+			}
+			else
+			if (command.equals("serve")) {
+				return serve();
+			}
+			else
+			if (command.equals("fuzz")) {
+				return fuzz();
+			}
+			throw new RuntimeException("Unknown command " + command);
+		}
+		finally {
+			for (Writer recording : recordings) {
+				recording.close();
+			}
+			if (fileLogger != null) {
+				fileLogger.close();
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		int status;
+		try {
+			status = new U2FBLECli().run(args);
+		}
+		catch(Exception e) {
+			System.err.println("Failed : " + e.getMessage());
+			status = 2;
+		}
+		System.exit(status);
+	}
+
+}